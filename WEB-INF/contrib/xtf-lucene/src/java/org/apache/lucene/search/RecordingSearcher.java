@@ -60,6 +60,22 @@ public class RecordingSearcher extends IndexSearcher
    */
   public void search(Query query, Filter filter, final SpanHitCollector results)
     throws IOException 
+  {
+    search(query, filter, results, 0, Integer.MAX_VALUE);
+  }
+
+  /** Lower-level search API which supports span collection, limited to a
+   * range of document numbers.
+   *
+   * <p>{@link SpanHitCollector#collect(int,float,FieldSpanSource)} is called
+   * for every non-zero scoring document in the range 
+   * <code>[fromDoc, toDoc)</code> which matches the filter. For chunked
+   * indexes, the range boundaries must not split the chunks of any main
+   * document.
+   */
+  public void search(Query query, Filter filter, final SpanHitCollector results,
+                     int fromDoc, int toDoc)
+    throws IOException 
   {
     SpanHitCollector collector = results;
     if (filter != null) 
@@ -95,12 +111,18 @@ public class RecordingSearcher extends IndexSearcher
       return;
     FieldSpanSource spanSource = new FieldSpanSource(recordingScorers);
 
-    // Now process all the documents and collect them and their spans.
-    while (scorer.next()) {
+    // Now process all the documents in the range and collect them and 
+    // their spans.
+    //
+    boolean more = (fromDoc > 0) ? scorer.skipTo(fromDoc) : scorer.next();
+    while (more) {
       int doc = scorer.doc();
+      if (doc >= toDoc)
+        break;
       spanSource.curDoc = doc;
       float score = scorer.score(); // must call before recordSpans()
       collector.collect(doc, score, spanSource);
+      more = scorer.next();
     }
   }
 
@@ -18,7 +18,8 @@ package org.apache.lucene.util;
 
 /** A PriorityQueue maintains a partial ordering of its elements such that the
   least element can always be found in constant time.  Put()'s and pop()'s
-  require log(size) time. */
+  require log(size) time. Subclasses may override the basic operations to
+  store their elements in some other form. */
 public abstract class PriorityQueue {
   private Object[] heap;
   private int size;
@@ -58,7 +59,7 @@ public abstract class PriorityQueue {
    * If one tries to add more objects than maxSize from initialize
    * a RuntimeException (ArrayIndexOutOfBound) is thrown.
    */
-  public final void put(Object element) {
+  public void put(Object element) {
     size++;
     heap[size] = element;
     upHeap();
@@ -90,7 +91,7 @@ public abstract class PriorityQueue {
    }
 
   /** Returns the least element of the PriorityQueue in constant time. */
-  public final Object top() {
+  public Object top() {
     if (size > 0)
       return heap[1];
     else
@@ -99,7 +100,7 @@ public abstract class PriorityQueue {
 
   /** Removes and returns the least element of the PriorityQueue in log(size)
     time. */
-  public final Object pop() {
+  public Object pop() {
     if (size > 0) {
       Object result = heap[1];			  // save first value
       heap[1] = heap[size];			  // move last to first
@@ -118,18 +119,18 @@ public abstract class PriorityQueue {
    *  { o = pq.pop(); o.change(); pq.push(o); }
    * </pre>
    */
-  public final void adjustTop() {
+  public void adjustTop() {
     downHeap();
   }
 
 
   /** Returns the number of elements currently stored in the PriorityQueue. */
-  public final int size() {
+  public int size() {
     return size;
   }
 
   /** Removes all entries from the PriorityQueue. */
-  public final void clear() {
+  public void clear() {
     for (int i = 0; i <= size; i++)
       heap[i] = null;
     size = 0;
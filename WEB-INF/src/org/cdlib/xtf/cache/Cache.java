@@ -29,9 +29,11 @@ package org.cdlib.xtf.cache;
  * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
  * POSSIBILITY OF SUCH DAMAGE.
  */
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import org.cdlib.xtf.util.EmbeddedList;
 import org.cdlib.xtf.util.LinkableImpl;
 
@@ -184,11 +186,34 @@ public abstract class Cache<K,V>
     keyMap = new HashMap(maxEntries);
   } // clear()
 
+  /**
+   * Gets the value for a key without freshening the entry or checking its
+   * dependencies.
+   *
+   * @param key   The key to look up
+   * @return      The value for that key, or null if not found.
+   */
+  public synchronized V peek(K key) {
+    ListEntry ent = (ListEntry)keyMap.get(key);
+    return (ent == null) ? null : ent.value;
+  } // peek()
+
+  /** Gets a list of all the keys currently in the cache */
+  public synchronized List<K> keys() {
+    return new ArrayList<K>(keyMap.keySet());
+  }
+
   /** Tells how many entries are currently cached */
   public synchronized int size() {
     return keyMap.size();
   }
 
+  /** Gets the key of the least recently used entry, or null if empty */
+  protected synchronized K oldestKey() {
+    ListEntry ent = (ListEntry)ageList.getHead();
+    return (ent == null) ? null : ent.key;
+  }
+
   /**
    * Maintains the maxEntries and maxTime constraints imposed on the cache.
    * Schedules additional cleanup when necessary.
@@ -55,6 +55,7 @@ import org.cdlib.xtf.textEngine.QueryProcessor;
 import org.cdlib.xtf.textEngine.QueryRequest;
 import org.cdlib.xtf.textEngine.QueryRequestParser;
 import org.cdlib.xtf.textEngine.QueryResult;
+import org.cdlib.xtf.textEngine.QueryResultCache;
 import org.cdlib.xtf.util.AttribList;
 import org.cdlib.xtf.util.Trace;
 import org.cdlib.xtf.util.XMLFormatter;
@@ -77,6 +78,9 @@ public class CrossQuery extends TextServlet
   /** Used for stylesheet profiling, if enabled */
   protected TimeProfilingListener profListener;
 
+  /** Caches query results, or null if not enabled */
+  protected QueryResultCache queryResultCache;
+
   /**
    * Called by the superclass to find out the name of our specific config
    * file.
@@ -93,6 +97,16 @@ public class CrossQuery extends TextServlet
     // Load the configuration file.
     config = new CrossQueryConfig(this, configPath);
 
+    // Set up the result cache (if enabled). Any old one is out of date.
+    queryResultCache = null;
+    if (config.queryCacheSize > 0) {
+      long maxBytes = config.queryCacheMaxSize * 1024L * 1024L;
+      queryResultCache = new QueryResultCache(config.queryCacheSize,
+                                              config.queryCacheExpire,
+                                              config.queryCacheMaxHits,
+                                              maxBytes);
+    }
+
     // And we're done.
     return config;
   } // readConfig()
@@ -206,13 +220,18 @@ public class CrossQuery extends TextServlet
     QueryResult queryResult = proc.processRequest(queryReq);
 
     // Format the hits for the output document.
-    formatHits("crossQueryResult",
-               req,
-               res,
-               attribs,
-               queryReq,
-               queryResult,
-               startTime);
+    try {
+      formatHits("crossQueryResult",
+                 req,
+                 res,
+                 attribs,
+                 queryReq,
+                 queryResult,
+                 startTime);
+    }
+    finally {
+      queryResult.release();
+    }
   } // apply()
 
   /**
@@ -399,6 +418,7 @@ public class CrossQuery extends TextServlet
     // Fill in the auxiliary info
     queryReq.parserInput = fmt.toString();
     queryReq.parserOutput = XMLWriter.toString(queryReqDoc, false);
+    queryReq.resultCache = queryResultCache;
 
     // All done.
     return queryReq;
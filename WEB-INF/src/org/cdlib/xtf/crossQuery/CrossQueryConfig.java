@@ -47,6 +47,18 @@ public class CrossQueryConfig extends TextConfig
    */
   public String queryParserSheet;
 
+  /** Max # of query results to cache. Default: 0 (no caching) */
+  public int queryCacheSize = 0;
+
+  /** Time (in seconds) an unused result stays cached. Default: 0 (no limit) */
+  public int queryCacheExpire = 0;
+
+  /** Results with more hits than this aren't cached. Default: 100 */
+  public int queryCacheMaxHits = 100;
+
+  /** Max total size (in megabytes) of cached query results. Default: 16 */
+  public int queryCacheMaxSize = 16;
+
   /** Default constructor */
   public CrossQueryConfig(CrossQuery servlet) {
     super(servlet);
@@ -88,6 +100,22 @@ public class CrossQueryConfig extends TextConfig
       queryParserSheet = servlet.getRealPath(strVal);
       return true;
     }
+    else if (tagAttr.equalsIgnoreCase("queryCache.size")) {
+      queryCacheSize = parseInt(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("queryCache.expire")) {
+      queryCacheExpire = parseInt(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("queryCache.maxHits")) {
+      queryCacheMaxHits = parseInt(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("queryCache.maxSize")) {
+      queryCacheMaxSize = parseInt(tagAttr, strVal);
+      return true;
+    }
 
     // Don't recognize it... see if the base class does.
     return super.handleProperty(tagAttr, strVal);
@@ -149,13 +149,18 @@ public class RawQuery extends CrossQuery
     QueryResult queryResult = proc.processRequest(queryReq);
 
     // Format the hits for the output document.
-    formatHits("crossQueryResult",
-               req,
-               res,
-               new AttribList(),
-               queryReq,
-               queryResult,
-               startTime);
+    try {
+      formatHits("crossQueryResult",
+                 req,
+                 res,
+                 new AttribList(),
+                 queryReq,
+                 queryResult,
+                 startTime);
+    }
+    finally {
+      queryResult.release();
+    }
   } // apply()
 
   private class RawQueryConfig extends CrossQueryConfig
@@ -33,6 +33,13 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 import javax.xml.parsers.SAXParser;
 import javax.xml.transform.Templates;
 import javax.xml.transform.sax.SAXResult;
@@ -50,6 +57,7 @@ import org.cdlib.xtf.util.StructuredFile;
 import org.cdlib.xtf.util.StructuredStore;
 import org.cdlib.xtf.util.SubStoreReader;
 import org.cdlib.xtf.util.SubStoreWriter;
+import org.cdlib.xtf.util.Trace;
 import org.xml.sax.Attributes;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
@@ -76,6 +84,39 @@ public class DefaultDocLocator implements DocLocator
     this.servlet = servlet;
   }
 
+  /**
+   * Lazy files currently being built, keyed by path. Requests for a document
+   * whose lazy file is under construction wait on its future, while requests
+   * for other documents proceed undisturbed.
+   */
+  private ConcurrentHashMap<String, FutureTask<Object>> pendingBuilds = 
+    new ConcurrentHashMap<String, FutureTask<Object>>();
+
+  /** Source directories already handed to the pre-builder */
+  private ConcurrentHashMap<String, Boolean> seenDirs = 
+    new ConcurrentHashMap<String, Boolean>();
+
+  /** Background threads that build lazy files ahead of demand */
+  private ExecutorService prebuildPool;
+
+  /** Set once {@link #close()} has been called */
+  private boolean closed = false;
+
+  /**
+   * Settings that lazy files were pre-built with during this session,
+   * keyed by path. Pre-building has to guess the pre-filter and DOCTYPE
+   * handling, so a pre-built file is only used once a request confirms 
+   * the guess was right.
+   */
+  private ConcurrentHashMap<String, PrebuildSettings> prebuilt = 
+    new ConcurrentHashMap<String, PrebuildSettings>();
+
+  /** Marker sub-file in lazy files built by us, rather than the indexer */
+  private static final String POST_INDEX_MARKER = "isPostIndexLazyFile";
+
+  /** Marker sub-file in lazy files built with guessed settings */
+  private static final String PREBUILT_MARKER = "isPrebuiltLazyFile";
+
   /**
    * Search for a StructuredStore containing the "lazy" or persistent
    * representation of a given document. Index parameters are specified,
@@ -83,9 +124,8 @@ public class DefaultDocLocator implements DocLocator
    * is called first, and if it returns null, then
    * {@link #getInputSource(String, boolean)} will be called as a fall-back.
    * 
-   * Note: synchronized to prevent the situation where multiple threads
-   * might try to create the same lazy store at the same time and interfere
-   * with each other.
+   * Note: if a lazy file has to be built, only other requests for the same
+   * document wait for it; see {@link #ensureLazyFile}.
    *
    * @param indexConfigPath Path to the index configuration file
    * @param indexName       Name of the index being searched
@@ -97,9 +137,9 @@ public class DefaultDocLocator implements DocLocator
    * @return                Store containing the tree, or null if none
    *                        could be found.
    */
-  public synchronized StructuredStore getLazyStore(String indexConfigPath, String indexName,
-                                                   String sourcePath, Templates preFilter,
-                                                   boolean removeDoctypeDecl)
+  public StructuredStore getLazyStore(String indexConfigPath, String indexName,
+                                      String sourcePath, Templates preFilter,
+                                      boolean removeDoctypeDecl)
     throws IOException 
   {
     // If we're not allowed to use lazy files, then don't.
@@ -128,62 +168,285 @@ public class DefaultDocLocator implements DocLocator
     File lazyFile = calcLazyPath(new File(servlet.getRealPath("")),
                                  new File(indexConfigPath),
                                  indexName,
-                                 new File(sourcePath),
+                                 sourceFile,
                                  false);
       
     // Get the config flag telling us whether we're allowed to build lazy
-    // files outside of indexing.
+    // files outside of indexing. This is off by default, but people who
+    // want to use dynaXML without textIndexer will allow dynaXML to build
+    // lazy files by itself.
     //
     boolean buildLazyFilesAlone = false;
     if (config instanceof DynaXMLConfig)
       buildLazyFilesAlone = ((DynaXMLConfig)config).buildLazyFilesAlone;
 
-    // If the lazy file is out of date (and we created it), rebuild it. Note
-    // that it's not safe to rebuild lazy files created by the indexer, since
-    // it would cause hit highlighting to fail due to a mismatch between
-    // node numbers stored in the index vs. stored in the lazy file.
-    //
-    if (buildLazyFilesAlone &&
-        lazyFile.canRead() &&
-        sourceFile.lastModified() > lazyFile.lastModified() &&
-        isPostIndexLazyFile(lazyFile))
+    if (!buildLazyFilesAlone) {
+      if (!lazyFile.canRead())
+        return null;
+    }
+    else 
     {
-      lazyFile.delete();
+      // Build (or re-build) the lazy file if necessary, then give the
+      // pre-builder a chance to get started on its neighbors.
+      //
+      if (needsBuild(lazyFile, sourceFile))
+        ensureLazyFile(lazyFile, sourceFile, indexConfigPath, indexName,
+                       preFilter, removeDoctypeDecl, false);
+      prebuildNeighbors(sourceFile, indexConfigPath, indexName,
+                        preFilter, removeDoctypeDecl);
     }
 
-    // If we can't read it for any reason (including because we just deleted an
-    // out-of-date file), try to build it instead...
+    // Cool. Open the lazy file, mapped so that concurrent requests on the
+    // same document don't contend for a single file pointer.
     //
-    if (!lazyFile.canRead()) 
+    StructuredStore store = StructuredFile.open(lazyFile, true);
+
+    // If the file was pre-built and we can't confirm it used the right
+    // settings, build it again properly (or if we're not allowed to, don't
+    // use it at all.)
+    //
+    while (!prebuildConfirmed(store, lazyFile, preFilter, removeDoctypeDecl))
     {
-      // ... unless we've been asked not to build lazy files alone.
-      // This is the case by default, but people who want to use dynaXML
-      // without textIndexer will allow dynaXML to build lazy files by
-      // itself.
-      //
+      store.close();
       if (!buildLazyFilesAlone)
         return null;
-      
-      // Decide whether we need to strip whitespace
-      boolean stripWhitespace = false;
+      ensureLazyFile(lazyFile, sourceFile, indexConfigPath, indexName,
+                     preFilter, removeDoctypeDecl, false);
+      store = StructuredFile.open(lazyFile, true);
+    }
+    return store;
+  } // getLazyStore()
+
+  /**
+   * Check whether a lazy file needs to be built: either it can't be read
+   * at all, or it's out of date and we created it. Note that it's not safe
+   * to rebuild lazy files created by the indexer, since it would cause hit
+   * highlighting to fail due to a mismatch between node numbers stored in
+   * the index vs. stored in the lazy file.
+   */
+  private boolean needsBuild(File lazyFile, File sourceFile)
+  {
+    if (!lazyFile.canRead())
+      return true;
+    return sourceFile.lastModified() > lazyFile.lastModified() &&
+           hasMarker(lazyFile, POST_INDEX_MARKER);
+  }
+
+  /**
+   * Check that a lazy file is fit for a request with the given settings.
+   * Files that weren't pre-built always are. Pre-built files are only if
+   * they were built during this session with the very same settings. The
+   * settings aren't kept anywhere else, so after a restart a pre-built 
+   * file is never trusted.
+   */
+  private boolean prebuildConfirmed(StructuredStore store, File lazyFile,
+                                    Templates preFilter, 
+                                    boolean removeDoctypeDecl)
+  {
+    if (!hasMarker(store, PREBUILT_MARKER))
+      return true;
+    PrebuildSettings settings = prebuilt.get(lazyFile.getAbsolutePath());
+    return settings != null && 
+           settings.preFilter == preFilter &&
+           settings.removeDoctypeDecl == removeDoctypeDecl;
+  }
+
+  /**
+   * Makes sure the lazy file for a source document is present and up to
+   * date, building it if necessary. If another thread is already building
+   * the same file, we simply wait for it to finish rather than starting a
+   * second build.
+   *
+   * @param lazyFile        Lazy file to check
+   * @param sourceFile      The source document
+   * @param indexConfigPath Path to the index configuration file
+   * @param indexName       Name of the index
+   * @param preFilter       Prefilter stylesheet to run (or null for none)
+   * @param removeDoctypeDecl true to remove DOCTYPE declarations
+   * @param prebuilding     true if the settings are only a guess (made
+   *                        by the pre-builder), false if they're known
+   *                        to be right for the document.
+   */
+  private void ensureLazyFile(final File lazyFile, final File sourceFile,
+                              final String indexConfigPath,
+                              final String indexName,
+                              final Templates preFilter,
+                              final boolean removeDoctypeDecl,
+                              final boolean prebuilding)
+    throws IOException
+  {
+    final String key = lazyFile.getAbsolutePath();
+    FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>() 
+    {
+      public Object call() throws IOException 
+      {
+        // Another thread may have finished the job between our check and
+        // the time we got here. A request also needs to replace a file
+        // pre-built with the wrong settings.
+        //
+        if (!needsBuild(lazyFile, sourceFile) && 
+            (prebuilding || prebuildConfirmed(lazyFile, preFilter, 
+                                              removeDoctypeDecl)))
+          return null;
+        
+        // Decide whether we need to strip whitespace
+        boolean stripWhitespace = false;
+        try {
+          stripWhitespace = IndexUtil.getIndexInfo(new File(indexConfigPath),
+                                                   indexName).stripWhitespace;
+        }
+        catch (Exception e) {
+        }
+
+        // Build a fresh file to replace any out-of-date one. Record the 
+        // settings of a pre-built one, so requests can check them.
+        //
+        if (prebuilding)
+          prebuilt.put(key, new PrebuildSettings(preFilter, removeDoctypeDecl));
+        else
+          prebuilt.remove(key);
+        buildLazyStore(lazyFile,
+                       sourceFile.getPath(),
+                       preFilter,
+                       removeDoctypeDecl,
+                       stripWhitespace,
+                       prebuilding);
+        return null;
+      }
+    });
+
+    // If nobody else is building this file, we do it; otherwise we wait
+    // on theirs.
+    //
+    FutureTask<Object> existing = pendingBuilds.putIfAbsent(key, task);
+    if (existing == null) 
+    {
       try {
-        stripWhitespace = IndexUtil.getIndexInfo(new File(indexConfigPath),
-                                                 indexName).stripWhitespace;
+        task.run();
       }
-      catch (Exception e) {
+      finally {
+        pendingBuilds.remove(key, task);
       }
+      existing = task;
+    }
 
-      // Build the lazy file.
-      buildLazyStore(lazyFile,
-                     sourcePath,
-                     preFilter,
-                     removeDoctypeDecl,
-                     stripWhitespace);
+    try {
+      existing.get();
+    }
+    catch (InterruptedException e) {
+      // Keep the interrupt, so a pre-builder knows to stop.
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
     }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException)cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException)cause;
+      throw new RuntimeException(cause);
+    }
+  } // ensureLazyFile()
 
-    // Cool. Open the lazy file.
-    return StructuredFile.open(lazyFile);
-  } // getLazyStore()
+  /**
+   * If configured, queues up background builds of lazy files for the other
+   * XML documents in the source document's directory, the first time we
+   * see that directory. They're assumed to share the index, pre-filter,
+   * and DOCTYPE handling of the requested document.
+   */
+  private void prebuildNeighbors(final File sourceFile,
+                                 final String indexConfigPath,
+                                 final String indexName,
+                                 final Templates preFilter,
+                                 final boolean removeDoctypeDecl)
+  {
+    // Skip it if there's no pool, or the directory is old news.
+    ExecutorService pool = getPrebuildPool();
+    if (pool == null)
+      return;
+    final File dir = sourceFile.getAbsoluteFile().getParentFile();
+    if (dir == null || seenDirs.putIfAbsent(dir.getPath(), Boolean.TRUE) != null)
+      return;
+
+    pool.execute(new Runnable() 
+    {
+      public void run() 
+      {
+        File[] files = dir.listFiles();
+        if (files == null)
+          return;
+        for (File f : files) 
+        {
+          // Stop if we're being shut down.
+          if (Thread.currentThread().isInterrupted())
+            return;
+          if (!f.isFile() || !f.getName().toLowerCase().endsWith(".xml"))
+            continue;
+          try {
+            File lazyFile = calcLazyPath(new File(servlet.getRealPath("")),
+                                         new File(indexConfigPath),
+                                         indexName,
+                                         f,
+                                         false);
+            if (needsBuild(lazyFile, f))
+              ensureLazyFile(lazyFile, f, indexConfigPath, indexName,
+                             preFilter, removeDoctypeDecl, true);
+          }
+          catch (Throwable t) {
+            if (Thread.currentThread().isInterrupted())
+              return;
+            Trace.warning("Unable to pre-build lazy file for \"" + f + 
+                          "\": " + t);
+          }
+        }
+      }
+    });
+  } // prebuildNeighbors()
+
+  /**
+   * Get the pool of pre-builder threads, creating it the first time. Returns
+   * null if pre-building isn't configured.
+   */
+  private synchronized ExecutorService getPrebuildPool()
+  {
+    if (prebuildPool == null && !closed) 
+    {
+      TextConfig config = servlet.getConfig();
+      int nThreads = 0;
+      if (config instanceof DynaXMLConfig)
+        nThreads = ((DynaXMLConfig)config).lazyTreePrebuildThreads;
+      if (nThreads <= 0)
+        return null;
+
+      // Use daemon threads at low priority, so that pre-building never
+      // holds up shutdown or competes with real requests.
+      //
+      prebuildPool = Executors.newFixedThreadPool(nThreads, new ThreadFactory() 
+      {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "LazyFilePrebuilder");
+          t.setDaemon(true);
+          t.setPriority(Thread.MIN_PRIORITY);
+          return t;
+        }
+      });
+    }
+    return prebuildPool;
+  } // getPrebuildPool()
+
+  /**
+   * Stops the pre-builder threads (abandoning any builds that haven't
+   * started.) Should be called when the servlet is taken out of service, 
+   * so the threads don't outlive it.
+   */
+  public synchronized void close()
+  {
+    closed = true;
+    if (prebuildPool != null) {
+      prebuildPool.shutdownNow();
+      prebuildPool = null;
+    }
+  } // close()
 
   /**
    * Wrapper for IndexUtil.calcLazyPath(); useful for derived classes to supply their
@@ -243,10 +506,11 @@ public class DefaultDocLocator implements DocLocator
    *                          XML document
    * @param stripWhitespace If set, whitespace will be removed between elements
    *                        in the lazy file.
+   * @param prebuilt      true if the settings were guessed by the pre-builder
    */
   private void buildLazyStore(File lazyFile, String sourcePath,
                               Templates preFilter, boolean removeDoctypeDecl,
-                              boolean stripWhitespace)
+                              boolean stripWhitespace, boolean prebuilt)
     throws IOException 
   {
     // The directory the lazy file is to be stored in might not exist yet.
@@ -268,9 +532,16 @@ public class DefaultDocLocator implements DocLocator
     // outside of the indexing process. That way, we can identify files that
     // are okay to update when the timestamp of the original changes.
     //
-    SubStoreWriter sub = lazyStore.createSubStore("isPostIndexLazyFile");
+    SubStoreWriter sub = lazyStore.createSubStore(POST_INDEX_MARKER);
     sub.writeByte(1);
     sub.close();
+
+    // Likewise mark files built with guessed settings.
+    if (prebuilt) {
+      sub = lazyStore.createSubStore(PREBUILT_MARKER);
+      sub.writeByte(1);
+      sub.close();
+    }
     
     // Start the build process.
     Receiver lazyReceiver = lazyBuilder.begin(lazyStore);
@@ -329,8 +600,18 @@ public class DefaultDocLocator implements DocLocator
       // Finish off the lazy file.
       lazyBuilder.finish(lazyReceiver, true);
       
-      // And rename the temp file.
-      tmpFile.renameTo(lazyFile);
+      // And rename the temp file over the old one (if any), so that 
+      // readers always find a complete file. Some platforms won't rename 
+      // over an existing file; for those, we have to delete it first.
+      //
+      if (!tmpFile.renameTo(lazyFile)) {
+        lazyFile.delete();
+        if (!tmpFile.renameTo(lazyFile)) {
+          tmpFile.delete();
+          throw new IOException("Unable to rename \"" + tmpFile + 
+                                "\" to \"" + lazyFile + "\"");
+        }
+      }
     }
     catch (IOException e) {
       lazyBuilder.abort(lazyReceiver);
@@ -339,17 +620,36 @@ public class DefaultDocLocator implements DocLocator
   } // buildLazyStore()
   
   /**
-   * Check if the given lazy file was created after the indexing process
-   * (i.e. by this doc locator)
+   * Check if the given lazy file carries a marker sub-file, e.g. one
+   * showing it was created after the indexing process (i.e. by this doc
+   * locator.)
    */
-  private boolean isPostIndexLazyFile(File f)
+  private boolean hasMarker(File f, String markerName)
   {
     StructuredStore store = null;
+    try {
+      store = StructuredFile.open(f);
+      return hasMarker(store, markerName);
+    }
+    catch (IOException e) { 
+      return false;
+    }
+    finally {
+      try {
+        if (store != null)
+          store.close();
+      }
+      catch (IOException e) { }
+    }
+  }
+
+  /** Check if an open lazy store carries the given marker sub-file. */
+  private boolean hasMarker(StructuredStore store, String markerName)
+  {
     SubStoreReader sub = null;
     boolean ret = false;
     try {
-      store = StructuredFile.open(f);
-      sub = store.openSubStore("isPostIndexLazyFile");
+      sub = store.openSubStore(markerName);
       if (sub.readByte() == 1)
         ret = true;
     }
@@ -358,8 +658,6 @@ public class DefaultDocLocator implements DocLocator
       try {
         if (sub != null)
           sub.close();
-        if (store != null)
-          store.close();
       }
       catch (IOException e) { }
     }
@@ -367,6 +665,40 @@ public class DefaultDocLocator implements DocLocator
     return ret;
   }
 
+  /** Like {@link #prebuildConfirmed(StructuredStore, File, Templates, 
+   *  boolean)}, but opens the file itself. */
+  private boolean prebuildConfirmed(File lazyFile, Templates preFilter,
+                                    boolean removeDoctypeDecl)
+  {
+    StructuredStore store = null;
+    try {
+      store = StructuredFile.open(lazyFile);
+      return prebuildConfirmed(store, lazyFile, preFilter, removeDoctypeDecl);
+    }
+    catch (IOException e) { 
+      return false;
+    }
+    finally {
+      try {
+        if (store != null)
+          store.close();
+      }
+      catch (IOException e) { }
+    }
+  }
+
+  /** Settings a lazy file was pre-built with */
+  private static class PrebuildSettings
+  {
+    Templates preFilter;
+    boolean   removeDoctypeDecl;
+
+    PrebuildSettings(Templates preFilter, boolean removeDoctypeDecl) {
+      this.preFilter = preFilter;
+      this.removeDoctypeDecl = removeDoctypeDecl;
+    }
+  }
+
   /**
    * Passes SAX events to a ContentHandler. Also performs character
    * buffering that mimics what the textIndexer normally does.
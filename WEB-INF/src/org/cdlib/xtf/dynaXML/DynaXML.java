@@ -61,6 +61,7 @@ import org.cdlib.xtf.servletBase.TextServlet;
 import org.cdlib.xtf.servletBase.StylesheetCache;
 import org.cdlib.xtf.textEngine.IndexUtil;
 import org.cdlib.xtf.textEngine.QueryRequestParser;
+import org.cdlib.xtf.textEngine.QueryResultCache;
 import org.cdlib.xtf.util.AttribList;
 import org.cdlib.xtf.util.EasyNode;
 import org.cdlib.xtf.util.GeneralException;
@@ -97,6 +98,9 @@ public class DynaXML extends TextServlet
   /** Holds global servlet configuration info */
   private DynaXMLConfig config;
 
+  /** Caches in-document search results, or null if not enabled */
+  protected QueryResultCache queryResultCache;
+
   /** Locator used to find lazy and non-lazy document files */
   private DocLocator docLocator = createDocLocator();
 
@@ -120,6 +124,23 @@ public class DynaXML extends TextServlet
     // Create a helper for authentication.
     authenticator = new Authenticator(this);
 
+    // Size the cache of lazy trees shared between requests.
+    LazyTreeBuilder.setSharedCacheSize(
+      config.lazyTreeCacheSize * 1024L * 1024L);
+
+    // Set up the search result cache (if enabled), so that paging through
+    // the hits in a document doesn't re-run the search each time. Any old
+    // one is out of date. Each result holds a single document.
+    //
+    queryResultCache = null;
+    if (config.queryCacheSize > 0) {
+      long maxBytes = config.queryCacheMaxSize * 1024L * 1024L;
+      queryResultCache = new QueryResultCache(config.queryCacheSize,
+                                              config.queryCacheExpire,
+                                              1,
+                                              maxBytes);
+    }
+
     // And we're done.
     return config;
   } // readConfig()
@@ -438,6 +459,18 @@ public class DynaXML extends TextServlet
     return "dynaXML dynamic publishing servlet";
   } // getServletInfo()
 
+  /**
+   * Called by the servlet container when this servlet is being taken out
+   * of service. Stops the doc locator's background threads, if any.
+   */
+  @Override
+  public void destroy()
+  {
+    if (docLocator instanceof DefaultDocLocator)
+      ((DefaultDocLocator)docLocator).close();
+    super.destroy();
+  } // destroy()
+
   /**
   * Loads the source document, optionally performs a text search on it, and
   * then runs the document formatter to produce the final HTML result page.
@@ -628,6 +661,7 @@ public class DynaXML extends TextServlet
                                            docReq.indexName,
                                            new File(docReq.source));
       SearchTree tree = new SearchTree(config, docKey, lazyStore);
+      docReq.query.resultCache = queryResultCache;
       tree.search(createQueryProcessor(), docReq.query);
       sourceDoc = tree;
     }
@@ -77,6 +77,21 @@ class DynaXMLConfig extends TextConfig
   /** Whether to generate lazy files alone (outside of textIndexer) */
   public boolean buildLazyFilesAlone = false;
 
+  /** Max size (in megabytes) of decoded lazy trees shared between requests */
+  public int lazyTreeCacheSize = 64;
+
+  /** # of background threads building lazy files ahead of demand */
+  public int lazyTreePrebuildThreads = 0;
+
+  /** Max # of in-document search results to cache. Default: 20 */
+  public int queryCacheSize = 20;
+
+  /** Time (in seconds) an unused result stays cached. Default: 0 (no limit) */
+  public int queryCacheExpire = 0;
+
+  /** Max total size (in megabytes) of cached search results. Default: 16 */
+  public int queryCacheMaxSize = 16;
+
   /**
    * Constructor - Reads and parses the global configuration file (XML) for
    * the servlet.
@@ -153,6 +168,26 @@ class DynaXMLConfig extends TextConfig
       buildLazyFilesAlone = parseBoolean(tagAttr, strVal);
       return true;
     }
+    else if (tagAttr.equalsIgnoreCase("lazyTrees.cacheSize")) {
+      lazyTreeCacheSize = parseInt(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("lazyTrees.prebuildThreads")) {
+      lazyTreePrebuildThreads = parseInt(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("queryCache.size")) {
+      queryCacheSize = parseInt(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("queryCache.expire")) {
+      queryCacheExpire = parseInt(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("queryCache.maxSize")) {
+      queryCacheMaxSize = parseInt(tagAttr, strVal);
+      return true;
+    }
 
     // Don't recognize it... see if the base class does.
     return super.handleProperty(tagAttr, strVal);
@@ -1,9 +1,7 @@
 package org.cdlib.xtf.lazyTree;
 
 import java.io.IOException;
-import java.lang.ref.SoftReference;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Vector;
@@ -23,6 +21,7 @@ import net.sf.saxon.trans.XPathException;
 import net.sf.saxon.tree.SystemIdMap;
 import net.sf.saxon.type.Type;
 
+import org.cdlib.xtf.util.ClockIntCache;
 import org.cdlib.xtf.util.DiskHashReader;
 import org.cdlib.xtf.util.DiskHashWriter;
 import org.cdlib.xtf.util.PackedByteBuf;
@@ -40,9 +39,9 @@ import org.cdlib.xtf.util.Trace;
  * <p>This class should never be instatiated directly, but rather loaded by
  * LazyTreeBuilder.</p>
  *
- * <p>Once loaded, a soft reference to the node is kept in RAM; if memory runs
- * low, these soft references will be thrown away. This behavior can be
- * defeated by calling {@link #setAllPermanent(boolean)}.</p>
+ * <p>Once loaded, the node is kept in a bounded cache; if the cache fills
+ * up, the least recently used nodes will be thrown away. This behavior can
+ * be defeated by calling {@link #setAllPermanent(boolean)}.</p>
  *
  * @author Martin Haye
  */
@@ -88,17 +87,8 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
   /** How many nodes, excluding attributes and namespaces. */
   protected int numberOfNodes;
 
-  /** Size of the header on the node file */
-  protected static final int NODE_FILE_HEADER_SIZE = 12;
-
-  /** The size of the largest node entry on disk */
-  protected int maxNodeSize;
-
-  /** Byte buffer for reading nodes */
-  protected byte[] nodeBytes;
-
-  /** Buffer for unpacking nodes */
-  protected PackedByteBuf nodeBuf;
+  /** Decoded names and node records, possibly shared with other documents */
+  NodeTable nodeTable;
 
   /** Contains all the attributes */
   protected SubStoreReader attrFile;
@@ -131,10 +121,16 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
   /** Maps name numbers in the file to namecodes in the current NamePool */
   int[] nameNumToCode;
 
-  /** Caches nodes in memory so they only have to be loaded once. */
-  HashMap nodeCache = new HashMap();
+  /** Max # of (non-permanent) nodes to keep in the cache */
+  protected static final int NODE_CACHE_SIZE = 65536;
 
-  /** True if nodes in the cache should be permanent, false for weak refs */
+  /**
+   * Caches nodes in memory so they usually only have to be loaded once.
+   * Permanent entries stay; others are evicted when the cache fills up.
+   */
+  ClockIntCache nodeCache = new ClockIntCache(NODE_CACHE_SIZE);
+
+  /** True if nodes in the cache should be permanent, false to allow eviction */
   boolean allPermanent = false;
 
   /** Notified of profile-related events */
@@ -175,27 +171,26 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
     // Record the name pool.
     namePool = pool;
 
-    // First, read in the names.
+    // First, get the names and node headers. Other documents on the same
+    // file may well have decoded these already.
+    //
     synchronized (mainStore) 
     {
-      readNames(store.openSubStore("names"));
-
-      // Now open the other files and read their headers.
+      nodeTable = NodeTable.open(store, pool);
+      numberOfNamespaces = nodeTable.numberOfNamespaces;
+      namespaceParent = nodeTable.namespaceParent;
+      namespaceCode = nodeTable.namespaceCode;
+      nameNumToCode = nodeTable.nameNumToCode;
+      rootNodeNum = nodeTable.rootNodeNum;
+      numberOfNodes = nodeTable.numberOfNodes;
+      maxAttrSize = nodeTable.maxAttrSize;
+
+      // Now open the other files.
       nodeFile = store.openSubStore("nodes");
-      rootNodeNum = nodeFile.readInt();
-      numberOfNodes = nodeFile.readInt();
-      maxNodeSize = nodeFile.readInt();
-
       attrFile = store.openSubStore("attributes");
-      maxAttrSize = attrFile.readInt();
-
       textFile = store.openSubStore("text");
 
-      // Allocate the buffer for reading nodes.
-      nodeBytes = new byte[maxNodeSize];
-      nodeBuf = new PackedByteBuf(0);
-
-      // Likewise for reading attributes.
+      // Allocate the buffer for reading attributes.
       attrBytes = new byte[maxAttrSize];
       attrBuf = new PackedByteBuf(0);
 
@@ -214,7 +209,7 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
   public void setAllPermanent(boolean flag) {
     allPermanent = flag;
     if (allPermanent)
-      nodeCache.put(Integer.valueOf(0), this);
+      nodeCache.putPermanent(0, this);
   }
 
   /**
@@ -258,41 +253,6 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
     }
   } // close()
 
-  /**
-   * Fetches the name list from a sub-file in the persistent disk file.
-   *
-   * @param in The subfile to load from
-   */
-  private void readNames(SubStoreReader in)
-    throws IOException 
-  {
-    // Read in the packed data.
-    byte[] data = new byte[(int)in.length()];
-    in.read(data);
-    PackedByteBuf buf = new PackedByteBuf(data);
-
-    // Read in the namespaces and calculate their codes.
-    numberOfNamespaces = buf.readInt();
-    namespaceParent = new int[numberOfNamespaces];
-    namespaceCode = new int[numberOfNamespaces];
-    for (int i = 0; i < numberOfNamespaces; i++) {
-      String prefix = buf.readString();
-      String uri = buf.readString();
-      namespaceCode[i] = namePool.allocateNamespaceCode(prefix, uri);
-      namespaceParent[i] = buf.readInt();
-    }
-
-    // Now process all the namecodes.
-    int nNamecodes = buf.readInt();
-    nameNumToCode = new int[nNamecodes];
-    for (int i = 0; i < nNamecodes; i++) {
-      String prefix = buf.readString();
-      String uri = buf.readString();
-      String localName = buf.readString();
-      nameNumToCode[i] = namePool.allocate(prefix, uri, localName);
-    }
-  } // readNames()
-
   /**
    * Writes a disk-based version of an xsl:key index. Use getIndex() later
    * to read it back.
@@ -445,19 +405,16 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
       if (profileListener != null)
         profileListener.bumpCount(num);
 
-      // Read the most data it could be.
-      synchronized (mainStore) {
-        nodeFile.seek(NODE_FILE_HEADER_SIZE + (num * maxNodeSize));
-        nodeFile.read(nodeBytes);
-      }
-
-      // Get the type and the flags.
-      nodeBuf.setBytes(nodeBytes);
-      short kind = nodeBuf.readByte();
-      int flags = nodeBuf.readInt();
+      // Look up the decoded record (decoding its block if no other
+      // document has yet.)
+      //
+      int[] rec = nodeTable.block(num, nodeFile);
+      int pos = (num & (NodeTable.BLOCK_SIZE - 1)) * NodeTable.STRIDE;
+      if (rec[pos + NodeTable.KIND] < 0)
+        return null;
 
       // Construct the node based on the kind.
-      switch (kind) {
+      switch (rec[pos + NodeTable.KIND]) {
         case Type.DOCUMENT:
           node = this;
           break;
@@ -482,53 +439,30 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
       node.nodeNum = num;
       node.document = this;
 
-      // Read other stuff according to the flags.
-      if ((flags & Flag.HAS_NAMECODE) != 0) {
-        int nameIdx = nodeBuf.readInt();
-        node.nameCode = nameNumToCode[nameIdx];
-      }
-      else
-        node.nameCode = -1;
-
-      if ((flags & Flag.HAS_PARENT) != 0)
-        node.parentNum = nodeBuf.readInt();
-      else
-        node.parentNum = -1;
-
-      if ((flags & Flag.HAS_PREV_SIBLING) != 0)
-        node.prevSibNum = nodeBuf.readInt();
-      else
-        node.prevSibNum = -1;
-
-      if ((flags & Flag.HAS_NEXT_SIBLING) != 0)
-        node.nextSibNum = nodeBuf.readInt();
-      else
-        node.nextSibNum = -1;
+      // Fill in the rest from the record.
+      node.nameCode = rec[pos + NodeTable.NAMECODE];
+      node.parentNum = rec[pos + NodeTable.PARENT];
+      node.prevSibNum = rec[pos + NodeTable.PREV_SIB];
+      node.nextSibNum = rec[pos + NodeTable.NEXT_SIB];
       
       assert node.prevSibNum != node.nextSibNum || node.prevSibNum < 0;
       assert node.prevSibNum < node.nodeNum;
       assert node.nextSibNum > node.nodeNum || node.nextSibNum < 0;
 
-      if ((flags & Flag.HAS_CHILD) != 0) {
-        assert node instanceof ParentNodeImpl;
-        ((ParentNodeImpl)node).childNum = nodeBuf.readInt();
-        assert ((ParentNodeImpl)node).childNum > 0;
+      if (node instanceof ParentNodeImpl) {
+        ((ParentNodeImpl)node).childNum = rec[pos + NodeTable.CHILD];
+        assert ((ParentNodeImpl)node).childNum != 0;
       }
-      else if (node instanceof ParentNodeImpl)
-        ((ParentNodeImpl)node).childNum = -1;
-
-      int alpha = -1;
-      if ((flags & Flag.HAS_ALPHA) != 0)
-        alpha = nodeBuf.readInt();
-
-      int beta = -1;
-      if ((flags & Flag.HAS_BETA) != 0)
-        beta = nodeBuf.readInt();
+      else
+        assert rec[pos + NodeTable.CHILD] < 0;
 
-      node.init(alpha, beta);
+      node.init(rec[pos + NodeTable.ALPHA], rec[pos + NodeTable.BETA]);
 
       // All done!
-      nodeCache.put(Integer.valueOf(num), new SoftReference(node));
+      if (allPermanent)
+        nodeCache.putPermanent(num, node);
+      else
+        nodeCache.put(num, node);
       return node;
     } // try
     catch (IOException e) {
@@ -551,24 +485,8 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
         throw new RuntimeException("Runaway request - time limit exceeded");
     }
 
-    // Do we have a reference in the cache? If not, return. And if it's a
-    // strong reference to a node, return it.
-    //
-    Object ref = nodeCache.get(Integer.valueOf(num));
-    NodeImpl node = null;
-    if (ref instanceof NodeImpl)
-      node = (NodeImpl)ref;
-    else if (ref instanceof SoftReference) 
-    {
-      // Is the reference still valid? If not, remove it.
-      SoftReference weak = (SoftReference)ref;
-      node = (NodeImpl)weak.get();
-      if (node == null)
-        nodeCache.remove(Integer.valueOf(num));
-    }
-
-    // All done.
-    return node;
+    // Return the cached node, if any.
+    return (NodeImpl)nodeCache.get(num);
   } // checkCache()
 
   /**
@@ -100,6 +100,17 @@ public class LazyTreeBuilder
     namePool = pool;
   }
 
+  /**
+   * Sets the maximum total size of the decoded node tables that loaded
+   * documents share between them. The least recently used tables are
+   * dropped to stay within the limit.
+   *
+   * @param bytes   Size limit in bytes; zero turns off sharing.
+   */
+  public static void setSharedCacheSize(long bytes) {
+    NodeTable.setMaxCacheSize(bytes);
+  }
+
   /**
    * Load a persistent document using the default loader.
    *
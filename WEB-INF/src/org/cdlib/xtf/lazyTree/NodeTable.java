@@ -0,0 +1,318 @@
+package org.cdlib.xtf.lazyTree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.sf.saxon.om.NamePool;
+
+import org.cdlib.xtf.util.PackedByteBuf;
+import org.cdlib.xtf.util.StructuredFile;
+import org.cdlib.xtf.util.StructuredStore;
+import org.cdlib.xtf.util.SubStoreReader;
+import org.cdlib.xtf.util.Trace;
+
+/**
+ * Holds the decoded names and node records of one lazy tree file. A table
+ * never changes once a block of records has been decoded, so it can be
+ * shared by any number of {@link LazyDocument}s (and threads) reading the
+ * same file. Node records are decoded on demand, a block at a time.
+ *
+ * Tables for lazy files are kept in a process-wide cache, keyed by file
+ * path and checked against the file's modification time and length. The
+ * cache is bounded by the total size of the decoded data; when it fills
+ * up, the least recently used tables are dropped (documents already
+ * using them keep working, but later ones will decode afresh.)
+ */
+final class NodeTable 
+{
+  /** Number of nodes decoded together in one block (a power of two) */
+  static final int BLOCK_SIZE = 256;
+
+  /** Shift to get from a node number to its block */
+  static final int BLOCK_SHIFT = 8;
+
+  /** Number of ints in each node record */
+  static final int STRIDE = 8;
+
+  /** Offsets of the various fields within a node record */
+  static final int KIND = 0;
+  static final int NAMECODE = 1;
+  static final int PARENT = 2;
+  static final int PREV_SIB = 3;
+  static final int NEXT_SIB = 4;
+  static final int CHILD = 5;
+  static final int ALPHA = 6;
+  static final int BETA = 7;
+
+  /** Size of the header on the node file */
+  static final int NODE_FILE_HEADER_SIZE = 12;
+
+  /** Default limit on the total size of cached tables (64 megabytes) */
+  private static long maxCacheSize = 64 * 1024 * 1024;
+
+  /** Total size of all the cached tables */
+  private static long cacheSize = 0;
+
+  /** Cached tables, by file path, in least-recently-used order */
+  private static LinkedHashMap<String, NodeTable> cache = 
+    new LinkedHashMap<String, NodeTable>(100, 0.75f, true);
+
+  /** Path of the lazy file, or null if not cacheable */
+  private final String path;
+
+  /** Modification time of the lazy file when the table was made */
+  private final long fileTime;
+
+  /** Length of the lazy file when the table was made */
+  private final long fileLength;
+
+  /** Name pool the namecodes belong to */
+  final NamePool namePool;
+
+  /** Node number of the root of the tree */
+  final int rootNodeNum;
+
+  /** How many nodes, excluding attributes and namespaces */
+  final int numberOfNodes;
+
+  /** The size of the largest node entry on disk */
+  final int maxNodeSize;
+
+  /** The size of the largest attribute block on disk */
+  final int maxAttrSize;
+
+  /** Number of namespaces declared in the file */
+  final int numberOfNamespaces;
+
+  /** Index of the element owning each namespace declaration */
+  final int[] namespaceParent;
+
+  /** Name pool code for each namespace declaration */
+  final int[] namespaceCode;
+
+  /** Maps name numbers in the file to namecodes in the name pool */
+  final int[] nameNumToCode;
+
+  /** Decoded blocks of node records (null until first needed) */
+  private final AtomicReferenceArray<int[]> blocks;
+
+  /** Current size (in bytes) of the decoded data */
+  private long size;
+
+  /** True while the table is accounted for in the cache */
+  private boolean inCache = false;
+
+  /**
+   * Read in the names and node file header from a lazy tree store. Called
+   * only by {@link #open(StructuredStore, NamePool)}.
+   */
+  private NodeTable(StructuredStore store, NamePool pool, String path,
+                    long fileTime, long fileLength)
+    throws IOException 
+  {
+    this.path = path;
+    this.fileTime = fileTime;
+    this.fileLength = fileLength;
+    this.namePool = pool;
+
+    // Read in the packed name data.
+    SubStoreReader in = store.openSubStore("names");
+    byte[] data = new byte[(int)in.length()];
+    in.read(data);
+    in.close();
+    PackedByteBuf buf = new PackedByteBuf(data);
+
+    // Read in the namespaces and calculate their codes.
+    numberOfNamespaces = buf.readInt();
+    namespaceParent = new int[numberOfNamespaces];
+    namespaceCode = new int[numberOfNamespaces];
+    for (int i = 0; i < numberOfNamespaces; i++) {
+      String prefix = buf.readString();
+      String uri = buf.readString();
+      namespaceCode[i] = pool.allocateNamespaceCode(prefix, uri);
+      namespaceParent[i] = buf.readInt();
+    }
+
+    // Now process all the namecodes.
+    int nNamecodes = buf.readInt();
+    nameNumToCode = new int[nNamecodes];
+    for (int i = 0; i < nNamecodes; i++) {
+      String prefix = buf.readString();
+      String uri = buf.readString();
+      String localName = buf.readString();
+      nameNumToCode[i] = pool.allocate(prefix, uri, localName);
+    }
+
+    // Grab the headers of the node and attribute files.
+    in = store.openSubStore("nodes");
+    rootNodeNum = in.readInt();
+    numberOfNodes = in.readInt();
+    maxNodeSize = in.readInt();
+    in.close();
+
+    in = store.openSubStore("attributes");
+    maxAttrSize = in.readInt();
+    in.close();
+
+    blocks = new AtomicReferenceArray<int[]>(
+      (numberOfNodes + BLOCK_SIZE - 1) >> BLOCK_SHIFT);
+    size = 64 + (namespaceParent.length * 2 + nameNumToCode.length) * 4 +
+           blocks.length() * 4;
+  } // constructor
+
+  /**
+   * Get the table for a lazy tree store, from the cache if possible. The
+   * caller is expected to hold the lock on the store.
+   *
+   * @param store   Store to read from
+   * @param pool    Name pool to map names with
+   * @return        A table, possibly shared with other documents.
+   */
+  static NodeTable open(StructuredStore store, NamePool pool)
+    throws IOException 
+  {
+    // Only plain files can be identified reliably enough to share.
+    if (!(store instanceof StructuredFile))
+      return new NodeTable(store, pool, null, 0, 0);
+
+    String path = store.getSystemId();
+    File file = new File(path);
+    long fileTime = file.lastModified();
+    long fileLength = file.length();
+    if (fileTime == 0)
+      return new NodeTable(store, pool, null, 0, 0);
+
+    // See if we already have a table that's up to date.
+    synchronized (NodeTable.class) 
+    {
+      NodeTable table = cache.get(path);
+      if (table != null && table.fileTime == fileTime &&
+          table.fileLength == fileLength && table.namePool == pool)
+        return table;
+    }
+
+    // Nope. Make a new one, and put it in the cache (replacing any stale
+    // one.)
+    //
+    NodeTable table = new NodeTable(store, pool, path, fileTime, fileLength);
+    synchronized (NodeTable.class) 
+    {
+      NodeTable old = cache.put(path, table);
+      if (old != null) {
+        old.inCache = false;
+        cacheSize -= old.size;
+      }
+      table.inCache = true;
+      cacheSize += table.size;
+      trimCache();
+    }
+    return table;
+  } // open()
+
+  /**
+   * Set the maximum total size of the cached tables. Tables beyond this
+   * are dropped, least recently used first.
+   *
+   * @param bytes   Size limit in bytes; zero disables sharing entirely.
+   */
+  static synchronized void setMaxCacheSize(long bytes) {
+    maxCacheSize = bytes;
+    trimCache();
+  }
+
+  /** Drop least-recently-used tables until we're within the size limit */
+  private static void trimCache() 
+  {
+    Iterator<NodeTable> iter = cache.values().iterator();
+    while (cacheSize > maxCacheSize && iter.hasNext()) 
+    {
+      NodeTable table = iter.next();
+      iter.remove();
+      table.inCache = false;
+      cacheSize -= table.size;
+      if (Trace.getOutputLevel() >= Trace.debug)
+        Trace.debug("Lazy tree cache: dropped " + table.path);
+    }
+  } // trimCache()
+
+  /**
+   * Get the block of node records containing the given node, decoding it
+   * from the node file if necessary. Safe to call from many threads at
+   * once; at worst a block gets decoded twice.
+   *
+   * @param nodeNum   Node to look for
+   * @param nodeFile  Node file to decode from (positional reads only)
+   * @return          The records; the node's record begins at index
+   *                  <code>(nodeNum % BLOCK_SIZE) * STRIDE</code>.
+   */
+  int[] block(int nodeNum, SubStoreReader nodeFile)
+    throws IOException 
+  {
+    int blockNum = nodeNum >> BLOCK_SHIFT;
+    int[] block = blocks.get(blockNum);
+    if (block != null)
+      return block;
+
+    // Read all the node entries in the block at once. The node count
+    // includes a final entry that was never written to the file, so be
+    // careful not to read past the end.
+    //
+    int first = blockNum << BLOCK_SHIFT;
+    int nNodes = Math.min(BLOCK_SIZE, numberOfNodes - first);
+    long offset = NODE_FILE_HEADER_SIZE + ((long)first * maxNodeSize);
+    int nPresent = (int)Math.min(nNodes,
+                                 (nodeFile.length() - offset) / maxNodeSize);
+    byte[] blockBytes = new byte[nPresent * maxNodeSize];
+    nodeFile.read(offset, blockBytes);
+
+    // Decode each one. Missing entries get an invalid kind.
+    block = new int[nNodes * STRIDE];
+    for (int i = nPresent; i < nNodes; i++)
+      block[i * STRIDE + KIND] = -1;
+
+    byte[] nodeBytes = new byte[maxNodeSize];
+    PackedByteBuf buf = new PackedByteBuf(0);
+    for (int i = 0; i < nPresent; i++) 
+    {
+      System.arraycopy(blockBytes, i * maxNodeSize, nodeBytes, 0, maxNodeSize);
+      buf.setBytes(nodeBytes);
+
+      int rec = i * STRIDE;
+      block[rec + KIND] = buf.readByte();
+      int flags = buf.readInt();
+      block[rec + NAMECODE] = ((flags & Flag.HAS_NAMECODE) != 0)
+                              ? nameNumToCode[buf.readInt()] : -1;
+      block[rec + PARENT] = ((flags & Flag.HAS_PARENT) != 0) 
+                            ? buf.readInt() : -1;
+      block[rec + PREV_SIB] = ((flags & Flag.HAS_PREV_SIBLING) != 0)
+                              ? buf.readInt() : -1;
+      block[rec + NEXT_SIB] = ((flags & Flag.HAS_NEXT_SIBLING) != 0)
+                              ? buf.readInt() : -1;
+      block[rec + CHILD] = ((flags & Flag.HAS_CHILD) != 0) 
+                           ? buf.readInt() : -1;
+      block[rec + ALPHA] = ((flags & Flag.HAS_ALPHA) != 0) 
+                           ? buf.readInt() : -1;
+      block[rec + BETA] = ((flags & Flag.HAS_BETA) != 0) 
+                          ? buf.readInt() : -1;
+    } // for i
+
+    // Publish the block. If another thread beat us to it, use theirs.
+    if (!blocks.compareAndSet(blockNum, null, block))
+      return blocks.get(blockNum);
+
+    // Account for the new data, which may push other tables out.
+    synchronized (NodeTable.class) 
+    {
+      size += block.length * 4;
+      if (inCache) {
+        cacheSize += block.length * 4;
+        trimCache();
+      }
+    }
+
+    return block;
+  } // block()
+} // class NodeTable
@@ -32,7 +32,6 @@ package org.cdlib.xtf.lazyTree;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.StringReader;
-import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
@@ -56,6 +55,7 @@ import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.spans.SpanQuery;
+import org.cdlib.xtf.textEngine.DefaultQueryProcessor;
 import org.cdlib.xtf.textEngine.DocHit;
 import org.cdlib.xtf.textEngine.QueryProcessor;
 import org.cdlib.xtf.textEngine.QueryRequest;
@@ -117,9 +117,8 @@ public class SearchTree extends LazyDocument
   /** Array of snippets sorted by descending score */
   Snippet[] hitsByScore = new Snippet[0];
   
-  /** Original DocHit and number within it for each Snippet */
-  DocHit[] hitsToDocHit = new DocHit[0];
-  int[] hitsToDocHitNum = new int[0];
+  /** Sub-document (if any) of the DocHit each Snippet came from */
+  String[] hitsToSubDocument = new String[0];
 
   /** Array of snippets sorted in document order */
   Snippet[] hitsByLocation = new Snippet[0];
@@ -357,105 +356,127 @@ public class SearchTree extends LazyDocument
     termMode = req.termMode;
     req.termMode = Math.min(req.termMode, ContextMarker.MARK_CONTEXT_TERMS);
 
-    // Add a meta-query that restricts to this document alone. Besides
-    // giving us only the hits we want, this also makes the query faster.
+    // Restrict the search to this document alone. The default processor
+    // can go straight to the document's chunks; for others, add a 
+    // meta-query that does the same thing (more slowly.)
     //
-    BooleanQuery bq = new BooleanQuery();
-    bq.add(new TermQuery(new Term("docInfo", "1")), BooleanClause.Occur.MUST);
-    Term t = new Term("key", sourceKey);
-    bq.add(new TermQuery(t), BooleanClause.Occur.MUST);
-    bq.add(req.query, BooleanClause.Occur.MUST);
-    req.query = bq;
+    if (processor instanceof DefaultQueryProcessor)
+      req.docKey = sourceKey;
+    else {
+      BooleanQuery bq = new BooleanQuery();
+      bq.add(new TermQuery(new Term("docInfo", "1")), BooleanClause.Occur.MUST);
+      Term t = new Term("key", sourceKey);
+      bq.add(new TermQuery(t), BooleanClause.Occur.MUST);
+      bq.add(req.query, BooleanClause.Occur.MUST);
+      req.query = bq;
+    }
 
     // Run the query and get the results.
     QueryResult result = processor.processRequest(req);
+    try
+    {
+      nHits = 0;
+      totalHits = 0;
+      for (int i = 0; i < result.docHits.length; i++) {
+        nHits += result.docHits[i].nSnippets();
+        totalHits += result.docHits[i].totalSnippets();
+      }
     
-    nHits = 0;
-    totalHits = 0;
-    for (int i = 0; i < result.docHits.length; i++) {
-      nHits += result.docHits[i].nSnippets();
-      totalHits += result.docHits[i].totalSnippets();
-    }
-    
-    hitsToDocHit = new DocHit[nHits];
-    hitsToDocHitNum = new int[nHits];
-    hitsByScore = new Snippet[nHits];
+      hitsToSubDocument = new String[nHits];
+      hitsByScore = new Snippet[nHits];
     
-    int n = 0;
-    for (int i = 0; i < result.docHits.length; i++) {
-      DocHit docHit = result.docHits[i];
-      for (int j = 0; j < docHit.nSnippets(); j++) {
-        hitsToDocHit[n] = docHit;
-        hitsToDocHitNum[n] = j;
-        hitsByScore[n] = docHit.snippet(j, false);
-        hitsByScore[n].rank = n;
-        n++;
+      // The hits may be shared with other requests (through the result
+      // cache), so make our own copies of the snippets before ranking them.
+      // Get the text now too, since the index may be closed once we 
+      // release the result.
+      //
+      int n = 0;
+      for (int i = 0; i < result.docHits.length; i++) {
+        DocHit docHit = result.docHits[i];
+        for (int j = 0; j < docHit.nSnippets(); j++) {
+          Snippet orig = docHit.snippet(j, true);
+          Snippet copy = new Snippet();
+          copy.score = orig.score;
+          copy.text = orig.text;
+          copy.sectionType = orig.sectionType;
+          copy.startNode = orig.startNode;
+          copy.startOffset = orig.startOffset;
+          copy.endNode = orig.endNode;
+          copy.endOffset = orig.endOffset;
+          copy.rank = n;
+          hitsToSubDocument[n] = docHit.subDocument();
+          hitsByScore[n] = copy;
+          n++;
+        }
       }
-    }
-    assert n == nHits;
+      assert n == nHits;
     
-    // We'll need the term map later when we're marking hits.
-    if (nHits > 0) 
-    {
-      termMap = result.textTerms;
-
-      // We also need the stopword set, and the plural map.
-      stopSet = result.context.stopSet;
-      pluralMap = result.context.pluralMap;
-      accentMap = result.context.accentMap;
-    }
-
-    // Make a second array of the hits, this time sorted by location.
-    hitsByLocation = new Snippet[hitsByScore.length];
-    System.arraycopy(hitsByScore, 0, hitsByLocation, 0, hitsByScore.length);
-    Arrays.sort(hitsByLocation,
-      new Comparator() 
+      // We'll need the term map later when we're marking hits.
+      if (nHits > 0) 
       {
-        public int compare(Object o1, Object o2) 
-        {
-          final Snippet s1 = (Snippet)o1;
-          final Snippet s2 = (Snippet)o2;
-          int n;
-          if ((n = s1.startNode - s2.startNode) != 0)
-            return n;
-          if ((n = s1.startOffset - s2.startOffset) != 0)
-            return n;
-
-          // Debugging help
-          @SuppressWarnings("unused")
-          String str1 = hitsToDocHit[s1.rank].snippet(hitsToDocHitNum[s1.rank], true).text;
-          @SuppressWarnings("unused")
-          String str2 = hitsToDocHit[s2.rank].snippet(hitsToDocHitNum[s2.rank], true).text;
-          assert false : "Chunk hits should never overlap!";
-          return 0;
-        }
-      });
+        termMap = result.textTerms;
 
-    // Extra check to be absolutely sure the hits don't overlap.
-    for (int i = 0; i < nHits - 1; i++) 
-    {
-      Snippet s1 = hitsByLocation[i];
-      Snippet s2 = hitsByLocation[i + 1];
-      assert s1.endNode >= s1.startNode;
-      assert s2.endNode >= s2.startNode;
-      assert s2.startNode >= s1.endNode;
+        // We also need the stopword set, and the plural map.
+        stopSet = result.context.stopSet;
+        pluralMap = result.context.pluralMap;
+        accentMap = result.context.accentMap;
+      }
 
-      if (s2.startNode == s1.endNode) 
+      // Make a second array of the hits, this time sorted by location.
+      hitsByLocation = new Snippet[hitsByScore.length];
+      System.arraycopy(hitsByScore, 0, hitsByLocation, 0, hitsByScore.length);
+      Arrays.sort(hitsByLocation,
+        new Comparator() 
+        {
+          public int compare(Object o1, Object o2) 
+          {
+            final Snippet s1 = (Snippet)o1;
+            final Snippet s2 = (Snippet)o2;
+            int n;
+            if ((n = s1.startNode - s2.startNode) != 0)
+              return n;
+            if ((n = s1.startOffset - s2.startOffset) != 0)
+              return n;
+
+            // Debugging help
+            @SuppressWarnings("unused")
+            String str1 = s1.text;
+            @SuppressWarnings("unused")
+            String str2 = s2.text;
+            assert false : "Chunk hits should never overlap!";
+            return 0;
+          }
+        });
+
+      // Extra check to be absolutely sure the hits don't overlap.
+      for (int i = 0; i < nHits - 1; i++) 
       {
-        if (s2.startOffset < s1.endOffset) 
+        Snippet s1 = hitsByLocation[i];
+        Snippet s2 = hitsByLocation[i + 1];
+        assert s1.endNode >= s1.startNode;
+        assert s2.endNode >= s2.startNode;
+        assert s2.startNode >= s1.endNode;
+
+        if (s2.startNode == s1.endNode) 
         {
-          s1 = hitsToDocHit[s1.rank].snippet(hitsToDocHitNum[s1.rank], true);
-          s2 = hitsToDocHit[s2.rank].snippet(hitsToDocHitNum[s2.rank], true);
-
-          // Debugging help
-          @SuppressWarnings("unused")
-          String t1 = s1.text;
-          @SuppressWarnings("unused")
-          String t2 = s2.text;
-          assert false;
+          if (s2.startOffset < s1.endOffset) 
+          {
+            // Debugging help
+            @SuppressWarnings("unused")
+            String t1 = s1.text;
+            @SuppressWarnings("unused")
+            String t2 = s2.text;
+            assert false;
+          }
         }
       }
     }
+    finally {
+      // The tree has copied everything it needs from the hits (including
+      // the snippet text), so let the searcher go.
+      //
+      result.release();
+    }
 
     // Make a mapping between the two arrays.
     hitRankToNum = new int[nHits];
@@ -509,9 +530,9 @@ public class SearchTree extends LazyDocument
       node = checkCache(normNum);
       if (node != null) {
         if (allPermanent)
-          nodeCache.put(Integer.valueOf(num), node);
+          nodeCache.putPermanent(num, node);
         else
-          nodeCache.put(Integer.valueOf(num), new SoftReference(node));
+          nodeCache.put(num, node);
         return node;
       }
     }
@@ -522,7 +543,7 @@ public class SearchTree extends LazyDocument
       return null;
     
     if (allPermanent)
-      nodeCache.put(Integer.valueOf(normNum), node);
+      nodeCache.putPermanent(normNum, node);
     
     assert node.parentNum >= 0 || node == this;
     assert node.nextSibNum >= -1;
@@ -547,7 +568,7 @@ public class SearchTree extends LazyDocument
 
     // All done.
     if (num >= MARKER_BASE)
-      nodeCache.put(Integer.valueOf(num), node);
+      nodeCache.putPermanent(num, node);
     return node;
   } // getNode()
 
@@ -604,7 +625,7 @@ public class SearchTree extends LazyDocument
 
     // The element we want should now be in the cache.
     SearchElementImpl el = (SearchElementImpl)nodeCache.get(
-      Integer.valueOf(HIT_ELMT_MARKER + hitNum));
+      HIT_ELMT_MARKER + hitNum);
     assert el != null : "Search element must be created with its text";
     return el;
   } // getHitElement
@@ -1009,7 +1030,7 @@ public class SearchTree extends LazyDocument
     node.setNodeNum(nextVirtualNum);
 
     if (!(node instanceof ProxyElement))
-      nodeCache.put(Integer.valueOf(nextVirtualNum), node);
+      nodeCache.putPermanent(nextVirtualNum, node);
 
     nextVirtualNum++;
   } // initNode
@@ -1024,7 +1045,7 @@ public class SearchTree extends LazyDocument
     // (normally the node cache only contains weak references.)
     //
     if (node != null)
-      nodeCache.put(Integer.valueOf(node.nodeNum), node);
+      nodeCache.putPermanent(node.nodeNum, node);
   } // modifyNode()
 
   /**
@@ -1053,15 +1074,13 @@ public class SearchTree extends LazyDocument
   {
     // Figure out which hit is being referenced
     int hitNum = num - SNIPPET_MARKER;
-    DocHit docHit = hitsToDocHit[hitNum];
-    Snippet snippet = realNotProxy 
-                      ? docHit.snippet(hitsToDocHitNum[hitNum], true) // we need the text.
-                      : hitsByScore[hitNum];
+    Snippet snippet = hitsByScore[hitNum];
+    String subDocument = hitsToSubDocument[hitNum];
 
     // Make the element, and create its links to other elements.
     int nAttribs = 2 + (snippet.sectionType != null ? 1 : 0) +
                    (suppressScores ? 0 : 1) +
-                   (docHit.subDocument() == null ? 0 : 1);
+                   (subDocument == null ? 0 : 1);
     SearchElement snippetElement = realNotProxy
                                    ? (SearchElement)new SearchElementImpl(this)
                                    : (SearchElement)new ProxyElement(this);
@@ -1075,7 +1094,7 @@ public class SearchTree extends LazyDocument
     // Give it a special place in the node cache so we can find it again.
     snippetElement.setNodeNum(num);
     if (realNotProxy)
-      nodeCache.put(Integer.valueOf(num), snippetElement);
+      nodeCache.putPermanent(num, snippetElement);
 
     // Add the score (if not suppressed), hit number, and (if present) 
     // the section type.
@@ -1095,8 +1114,8 @@ public class SearchTree extends LazyDocument
       snippetElement.setAttribute(attrNum++,
                                   sectionTypeAttrCode,
                                   snippet.sectionType);
-    if (docHit.subDocument() != null)
-      snippetElement.setAttribute(attrNum++, subDocumentAttrCode, docHit.subDocument());
+    if (subDocument != null)
+      snippetElement.setAttribute(attrNum++, subDocumentAttrCode, subDocument);
     assert attrNum == nAttribs;
 
     // If we're only making a proxy node, don't do the text stuff.
@@ -1365,7 +1384,7 @@ public class SearchTree extends LazyDocument
     NodeImpl[] stack = new NodeImpl[(numberOfNodes + nHits) * 3];
     int top = 0;
 
-    for (Iterator iter = nodeCache.values().iterator(); iter.hasNext();) {
+    for (Iterator iter = nodeCache.values(); iter.hasNext();) {
       Object ref = iter.next();
       if (ref instanceof NodeImpl)
         stack[top++] = (NodeImpl)ref;
@@ -1382,9 +1401,9 @@ public class SearchTree extends LazyDocument
       // to the stack for processing.
       //
       if (node.prevSibNum >= 0) {
-        if (!nodeCache.containsKey(Integer.valueOf(node.prevSibNum)))
+        if (!nodeCache.contains(node.prevSibNum))
           stack[top++] = getNode(node.prevSibNum);
-        assert nodeCache.containsKey(Integer.valueOf(node.prevSibNum));
+        assert nodeCache.contains(node.prevSibNum);
       }
 
       // Ditto the parent.
@@ -1395,19 +1414,19 @@ public class SearchTree extends LazyDocument
     // Cool. We've loaded everything necessary to get to the nodes that
     // were loaded before. Kill off all other links.
     //
-    for (Iterator iter = nodeCache.values().iterator(); iter.hasNext();) 
+    for (Iterator iter = nodeCache.values(); iter.hasNext();) 
     {
       NodeImpl node = (NodeImpl)iter.next();
       if (node.prevSibNum >= 0 &&
-          !nodeCache.containsKey(Integer.valueOf(node.prevSibNum)))
+          !nodeCache.contains(node.prevSibNum))
         assert false : "Should have loaded prev sib";
       if (node.nextSibNum >= 0 &&
-          !nodeCache.containsKey(Integer.valueOf(node.nextSibNum)))
+          !nodeCache.contains(node.nextSibNum))
         node.nextSibNum = -1;
       if (node instanceof ParentNodeImpl) {
         ParentNodeImpl pnode = (ParentNodeImpl)node;
         if (pnode.childNum >= 0 &&
-            !nodeCache.containsKey(Integer.valueOf(pnode.childNum)))
+            !nodeCache.contains(pnode.childNum))
           pnode.childNum = -1;
       }
     } // for iter
@@ -52,8 +52,7 @@ class TextImpl extends NodeImpl
   {
     if (textLen > 0) {
       byte[] bytes = new byte[textLen];
-      document.textFile.seek(textOffset);
-      document.textFile.read(bytes);
+      document.textFile.read(textOffset, bytes);
       PackedByteBuf buf = new PackedByteBuf(bytes);
       text = buf.readString();
     }
@@ -115,6 +115,9 @@ public abstract class TextConfig
   
   /** Interval for index warming. Default: 60 (seconds) */
   public int indexWarmingUpdateInterval = 60;
+
+  /** Memory limit for field data per index. Default: 0 (megabytes, no limit) */
+  public int indexWarmingFieldDataBudget = 0;
   
   /** All the configuration attributes in the form of name/value pairs */
   public AttribList attribs = new AttribList();
@@ -294,6 +297,10 @@ public abstract class TextConfig
       indexWarmingUpdateInterval = parseInt(tagAttr, strVal);
       return true;
     }
+    else if (tagAttr.equalsIgnoreCase("indexWarming.fieldDataBudget")) {
+      indexWarmingFieldDataBudget = parseInt(tagAttr, strVal);
+      return true;
+    }
 
     // Not recognized.
     return false;
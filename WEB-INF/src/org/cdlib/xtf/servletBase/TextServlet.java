@@ -138,6 +138,12 @@ public abstract class TextServlet extends HttpServlet
   /** Used for warming up indexes in the background */
   private static HashMap<String,IndexWarmer> indexWarmers = new HashMap();
 
+  /** 
+   * Thread-safe query processors, shared by all requests. Keyed by processor
+   * class name and XTF home directory.
+   */
+  private static HashMap<String,QueryProcessor> sharedProcessors = new HashMap();
+
   /**
    * During tokenization, the '*' wildcard has to be changed to a word
    * to keep it from being removed.
@@ -259,6 +265,11 @@ public abstract class TextServlet extends HttpServlet
         w.close();
       indexWarmers.clear();
     }
+    
+    // Drop the shared query processors (they refer to the warmers.)
+    synchronized (sharedProcessors) {
+      sharedProcessors.clear();
+    }
   }
 
   /**
@@ -933,6 +944,10 @@ public abstract class TextServlet extends HttpServlet
    * "org.cdlib.xtf.QueryProcessorClass" to see if there is a user-
    * supplied implementation. If not, a {@link DefaultQueryProcessor} is
    * created.
+   * 
+   * If the processor reports that it is thread-safe (as the
+   * {@link DefaultQueryProcessor} does), a single instance is created for
+   * each XTF home directory and shared by all subsequent requests.
    */
   public QueryProcessor createQueryProcessor() 
   {
@@ -945,20 +960,41 @@ public abstract class TextServlet extends HttpServlet
       // Try to create an object of the correct class.
       if (className != null)
         theClass = Class.forName(className);
+      
+      // If we already have a shared processor of this class, use it.
+      String xtfHome = Path.normalizePath(TextServlet.getCurServlet().getRealPath(""));
+      String sharedKey = theClass.getName() + "|" + xtfHome;
+      synchronized (sharedProcessors) {
+        QueryProcessor shared = sharedProcessors.get(sharedKey);
+        if (shared != null)
+          return shared;
+      }
+      
       QueryProcessor processor = (QueryProcessor)theClass.newInstance();
       
       // Enable background index warming
       IndexWarmer warmer = null;
       synchronized (indexWarmers) {
-        String xtfHome = Path.normalizePath(TextServlet.getCurServlet().getRealPath(""));
         warmer = indexWarmers.get(xtfHome);
         if (warmer == null) {
           warmer = new IndexWarmer(xtfHome, getConfig().indexWarmingUpdateInterval);
+          warmer.setFieldDataBudget(
+            getConfig().indexWarmingFieldDataBudget * 1024L * 1024L);
           indexWarmers.put(xtfHome, warmer);
         }
       }
       processor.setIndexWarmer(warmer);
       
+      // If it can be shared, record it for future requests. 
+      if (processor.isThreadSafe()) {
+        synchronized (sharedProcessors) {
+          QueryProcessor shared = sharedProcessors.get(sharedKey);
+          if (shared != null)
+            return shared;
+          sharedProcessors.put(sharedKey, processor);
+        }
+      }
+      
       // And we're done.
       return processor;
     }
@@ -0,0 +1,141 @@
+package org.cdlib.xtf.test;
+
+import java.io.StringReader;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.util.PriorityQueue;
+import org.cdlib.xtf.textEngine.facet.FacetSpec;
+import org.cdlib.xtf.textEngine.facet.GroupCounts;
+import org.cdlib.xtf.textEngine.facet.GroupData;
+import org.cdlib.xtf.textEngine.facet.SelectorParser;
+import org.cdlib.xtf.textEngine.facet.StaticGroupData;
+import org.cdlib.xtf.util.Trace;
+
+/**
+ * Measures faceted query throughput as the number of threads grows. All the
+ * threads share one facet spec (as they do when a query is re-used), and
+ * each repeatedly counts every document in the index and selects groups.
+ * Groups may be selected for document hits, but the hits themselves
+ * aren't gathered. Usage:<br><br>
+ *
+ * <code>FacetBench indexDir field [selectExpr [maxThreads [seconds]]]</code>
+ */
+public class FacetBench 
+{
+  public static void main(String[] args) 
+    throws Exception
+  {
+    if (args.length < 2) {
+      Trace.error("Usage: FacetBench indexDir field " +
+                  "[selectExpr [maxThreads [seconds]]]");
+      System.exit(1);
+    }
+
+    String indexDir = args[0];
+    String field = args[1];
+    String select = (args.length > 2) ? args[2] : "*";
+    int maxThreads = (args.length > 3) ? Integer.parseInt(args[3]) :
+                     Runtime.getRuntime().availableProcessors() * 2;
+    int seconds = (args.length > 4) ? Integer.parseInt(args[4]) : 5;
+
+    // Load the data and make a single spec for all the threads to share.
+    IndexReader reader = IndexReader.open(indexDir);
+    final GroupData data = StaticGroupData.getCachedData(reader, field);
+    final FacetSpec spec = new FacetSpec();
+    spec.field = field;
+    spec.groupSelector = new SelectorParser(new StringReader(select)).parse();
+
+    Trace.info("Field '" + field + "': " + data.nGroups() + " groups, " +
+               reader.maxDoc() + " docs; selector " + spec.groupSelector);
+
+    // Warm up, then run each thread count in turn.
+    runThreads(data, spec, reader.maxDoc(), 1, 1);
+    for (int nThreads = 1; nThreads <= maxThreads; nThreads *= 2) {
+      long nQueries = runThreads(data, spec, reader.maxDoc(), nThreads, 
+                                 seconds);
+      Trace.info(nThreads + " threads: " + 
+                 (nQueries / seconds) + " queries/sec");
+    }
+
+    reader.close();
+  } // main()
+
+  /**
+   * Run the given number of threads for a while, each counting facets
+   * over and over.
+   *
+   * @return  Total number of queries completed by all the threads.
+   */
+  private static long runThreads(final GroupData data, final FacetSpec spec,
+                                 final int maxDoc, int nThreads, int seconds)
+    throws InterruptedException
+  {
+    final AtomicLong nQueries = new AtomicLong();
+    final long endTime = System.currentTimeMillis() + seconds * 1000L;
+
+    Thread[] threads = new Thread[nThreads];
+    for (int i = 0; i < nThreads; i++) 
+    {
+      threads[i] = new Thread() {
+        public void run() {
+          while (System.currentTimeMillis() < endTime) {
+            countAll(data, spec, maxDoc);
+            nQueries.incrementAndGet();
+          }
+        }
+      };
+      threads[i].start();
+    }
+
+    for (int i = 0; i < nThreads; i++)
+      threads[i].join();
+    return nQueries.get();
+  } // runThreads()
+
+  /** Count every document in the index, and select the resulting groups. */
+  private static void countAll(GroupData data, FacetSpec spec, int maxDoc) 
+  {
+    GroupCounts counts = new GroupCounts(data, spec, hitQueueMaker);
+    BenchHit hit = new BenchHit();
+    for (hit.doc = 0; hit.doc < maxDoc; hit.doc++)
+      counts.addDoc(hit);
+    counts.getResult();
+  } // countAll()
+
+  /** Makes (always empty) queues of hits */
+  private static final GroupCounts.HitQueueMaker hitQueueMaker = 
+    new GroupCounts.HitQueueMaker() 
+  {
+    public PriorityQueue makeQueue(final int size) 
+    {
+      return new PriorityQueue() 
+      {
+        {
+          initialize(size);
+        }
+
+        protected boolean lessThan(Object a, Object b) {
+          return false;
+        }
+      };
+    }
+  };
+
+  /** A fake hit for each document, with score decreasing by doc ID */
+  private static class BenchHit implements GroupCounts.DocHitMaker 
+  {
+    int doc;
+
+    public int getDocNum() {
+      return doc;
+    }
+
+    public float getScore() {
+      return 1.0f / (doc + 1);
+    }
+
+    public boolean insertInto(PriorityQueue queue) {
+      return false;
+    }
+  } // class BenchHit
+} // class FacetBench
@@ -71,6 +71,7 @@ import org.cdlib.xtf.textEngine.XtfBigramQueryRewriter;
 import org.cdlib.xtf.textIndexer.TagFilter;
 import org.cdlib.xtf.textIndexer.TextIndexer;
 import org.cdlib.xtf.util.CircularQueue;
+import org.cdlib.xtf.util.ClockIntCache;
 import org.cdlib.xtf.util.DiskHashWriter;
 import org.cdlib.xtf.util.FastIntCache;
 import org.cdlib.xtf.util.FastCache;
@@ -134,6 +135,7 @@ public class RegressTest
     XtfBigramQueryRewriter.tester.test();
     TagFilter.tester.test();
     FastIntCache.tester.test();
+    ClockIntCache.tester.test();
     FastCache.tester.test();
     TagArray.tester.test();
     IntMultiMap.tester.test();
@@ -394,14 +396,19 @@ public class RegressTest
         // Now run the query to obtain hits.
         QueryResult result = processor.processRequest(request);
 
-        // Write the hits to a file.
-        if (request.displayStyle == null ||
-            request.displayStyle.indexOf("NullStyle") >= 0) 
-        {
-          writeHits(testFile, result);
+        // Write the hits to a file, then let go of the searcher.
+        try {
+          if (request.displayStyle == null ||
+              request.displayStyle.indexOf("NullStyle") >= 0) 
+          {
+            writeHits(testFile, result);
+          }
+          else
+            formatHits(testFile, result, request.displayStyle);
+        }
+        finally {
+          result.release();
         }
-        else
-          formatHits(testFile, result, request.displayStyle);
       }
     }
     catch (Exception e) {
@@ -46,6 +46,8 @@ import org.cdlib.xtf.util.CharMap;
  * word minus diacritics.
  *
  * @author Martin Haye
+ * @deprecated  {@link TermFoldingRewriter} now does this, along with the
+ *              other per-term mappings, in a single pass.
  */
 public class AccentFoldingRewriter extends XtfQueryRewriter 
 {
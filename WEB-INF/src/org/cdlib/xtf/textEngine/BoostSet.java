@@ -35,30 +35,42 @@ package org.cdlib.xtf.textEngine;
  * was made possible by a grant from the Andrew W. Mellon Foundation,
  * as part of the Melvyl Recommender Project.
  */
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.WeakHashMap;
+import java.util.BitSet;
+import java.util.List;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.index.TermEnum;
-import org.apache.lucene.index.TermPositions;
+import org.apache.lucene.util.Hash64;
+import org.apache.lucene.util.LongList;
+import org.cdlib.xtf.util.FloatList;
 import org.cdlib.xtf.util.Trace;
 
 /**
  * Holds a set of boost factors to apply to individual documents in the
- * document set.
+ * document set. The boost file is compiled to a binary form, keyed by a
+ * hash of each document key, which is memory-mapped on later loads; so
+ * correlating it with a new version of an index needs only a pass over
+ * the index's keys.
  *
  * @author Martin Haye
  */
-public class BoostSet 
+public class BoostSet implements FieldDataCache.Data
 {
-  /** Cached data. If the reader goes away, our cache will too. */
-  private static WeakHashMap cache = new WeakHashMap();
-
   /** Field to find document keys in */
   private String field;
 
@@ -68,41 +80,73 @@ public class BoostSet
   /** Set of boost values, one per document ID */
   private float[] boostByDoc;
 
+  /** Prefix for our keys in the {@link FieldDataCache} */
+  private static final String CACHE_PREFIX = "boost|";
+
   /** Marker for the default value */
   private static float DEFAULT_MARKER = -99.0f;
 
+  /** Marks the start of a compiled boost file */
+  private static final int FILE_MAGIC = 0x58425331; // "XBS1"
+
+  /** Size of the header at the start of a compiled boost file */
+  private static final int FILE_HEADER_SIZE = 24;
+
   /**
-   * Retrieves BoostSet for a given File from a given reader. Maintains a cache
-   * so that if the same File is requested again for this reader, we don't have
-   * to re-read the boost data.
+   * Retrieves BoostSet for a given File from a given reader. If the reader
+   * belongs to an {@link XtfSearcher}, the set is kept in its 
+   * {@link FieldDataCache} so that if the same File is requested again for
+   * this reader, we don't have to re-read the boost data.
    *
    * @param indexReader  Index to correlate the data to
    * @param inFile       Which file to read
    * @param field        Field used to key boost values
    * @return             Group data for the specified field
    */
-  public static BoostSet getCachedSet(IndexReader indexReader, File inFile,
-                                      String field)
+  public static BoostSet getCachedSet(final IndexReader indexReader, 
+                                      final File inFile,
+                                      final String field)
     throws IOException 
   {
-    // See if we have a cache for this reader.
-    HashMap readerCache = (HashMap)cache.get(indexReader);
-    if (readerCache == null) {
-      readerCache = new HashMap();
-      cache.put(indexReader, readerCache);
-    }
+    FieldDataCache cache = FieldDataCache.forReader(indexReader);
+    if (cache == null)
+      return new BoostSet(indexReader, inFile, field);
+    return cache.get(CACHE_PREFIX + inFile + "|" + field, 
+      new FieldDataCache.Loader<BoostSet>() {
+        public BoostSet load() throws IOException {
+          return new BoostSet(indexReader, inFile, field);
+        }
+      });
+  } // getCachedSet()
 
-    // Now see if we've already read data for this field.
-    BoostSet set = (BoostSet)readerCache.get(inFile);
-    if (set == null || !set.field.equals(field)) 
-    {
-      // Don't have cached data, so read and remember it.
-      set = new BoostSet(indexReader, inFile, field);
-      readerCache.put(inFile, set);
+  /**
+   * Get the boost sets that have been loaded for the given reader, each as
+   * a pair of file path and key field. Useful when warming a new version
+   * of an index.
+   */
+  public static List<String[]> cachedSets(IndexReader indexReader)
+  {
+    List<String[]> ret = new ArrayList<String[]>();
+    FieldDataCache cache = FieldDataCache.forReader(indexReader);
+    if (cache != null) {
+      for (String key : cache.keys(CACHE_PREFIX)) {
+        int sepPos = key.lastIndexOf('|');
+        ret.add(new String[] { key.substring(0, sepPos), 
+                               key.substring(sepPos + 1) });
+      }
     }
+    return ret;
+  } // cachedSets()
 
-    return set;
-  } // getCachedSet()
+  // inherit JavaDoc
+  public long memorySize() {
+    return boostByDoc.length * 4L;
+  }
+
+  // inherit JavaDoc
+  public long mappedSize() {
+    return 0;
+  }
 
   /** Get the boost factor associated with the given document, or the default
    *  boost value if not found.
@@ -122,9 +166,11 @@ public class BoostSet
 
   /** Do not construct directly; use
    *  {@link #getCachedSet(IndexReader, File, String)}
-   *  instead. Constructs a BoostSet by reading a file containing document
-   *  key -> boost factor mappings, and correlating it with the keys in the
-   *  given index reader.
+   *  instead. Constructs a BoostSet by correlating a file containing 
+   *  document key -> boost factor mappings with the keys in the given
+   *  index reader. The text file is first compiled to a binary form (see
+   *  {@link #compiledFile(File)}) if that hasn't already been done, so
+   *  that later loads needn't parse it.
    */
   private BoostSet(IndexReader indexReader, File inFile, String field)
     throws IOException 
@@ -133,6 +179,14 @@ public class BoostSet
 
     Trace.debug("Loading boost set '" + inFile + "'...");
 
+    // Map the compiled form of the file, compiling it if necessary.
+    File binFile = compiledFile(inFile);
+    Compiled compiled = Compiled.map(binFile, inFile);
+    if (compiled == null) {
+      compiled = compile(inFile);
+      save(compiled, inFile, binFile);
+    }
+
     // Figure out the max doc ID, make an array that big, and fill it with
     // a marker for the default value.
     //
@@ -140,63 +194,131 @@ public class BoostSet
     boostByDoc = new float[maxDoc + 1];
     Arrays.fill(boostByDoc, DEFAULT_MARKER);
 
-    // Iterate all the keys in the index.
-    DocIter docIter = null;
-    LineIter lineIter = null;
+    // Look up every document key in the index.
+    BitSet found = new BitSet(compiled.size());
+    TermDocs termDocs = indexReader.termDocs();
+    TermEnum termEnum = indexReader.terms(new Term(field, ""));
     try 
     {
-      docIter = new DocIter(indexReader, field);
-      lineIter = new LineIter(new BufferedReader(new FileReader(inFile)));
-
-      // Process all matches
-      while (!docIter.done() && !lineIter.done()) 
+      for (Term term = termEnum.term(); 
+           term != null && term.field().equals(field);
+           term = termEnum.next() ? termEnum.term() : null) 
       {
-        String docKey = docIter.key();
-        String lineKey = lineIter.key();
-        int diff = docKey.compareTo(lineKey);
-        if (diff < 0) 
-        {
-          //System.out.println( "Skipping doc " + docKey );
-          docIter.next();
-          continue;
-        }
-        else if (diff > 0) {
-          warn("Boost document key '" + lineKey + "' not found in index");
-          lineIter.next();
+        int pos = compiled.find(hashKey(term.text()));
+        if (pos < 0)
           continue;
+        termDocs.seek(termEnum);
+        if (termDocs.next()) {
+          boostByDoc[termDocs.doc()] = compiled.boost(pos);
+          found.set(pos);
         }
+      }
+    }
+    finally {
+      termDocs.close();
+      termEnum.close();
+    }
+
+    // Warn about any keys that weren't found.
+    int nMissing = compiled.size() - found.cardinality();
+    if (nMissing > 0)
+      warn(nMissing + " boost document key(s) in '" + inFile + "' not found in index");
+
+    Trace.debug("... done loading boost set");
+  } // constructor
+
+  /**
+   * Get the file that the compiled form of a boost file is kept in. It
+   * is rebuilt whenever the text file changes.
+   */
+  public static File compiledFile(File inFile) {
+    return new File(inFile.getPath() + ".bin");
+  }
 
-        // Found a match.
-        int docId = docIter.docId();
-        if (docId >= 0 && docId < boostByDoc.length)
-          boostByDoc[docId] = lineIter.boost();
+  /** Hash a document key the same way for the file and the index */
+  private static long hashKey(String key) {
+    return Hash64.hash(key) & Long.MAX_VALUE;
+  }
 
-        docIter.next();
-        lineIter.next();
+  /**
+   * Read a text boost file and compile it into memory: the hashed keys in
+   * ascending order, and the boost for each one.
+   */
+  private Compiled compile(File inFile)
+    throws IOException 
+  {
+    Trace.debug("Compiling boost set '" + inFile + "'...");
+
+    // Read in all the lines
+    LongList hashes = new LongList();
+    FloatList boosts = new FloatList();
+    LineIter lineIter = new LineIter(new BufferedReader(new FileReader(inFile)));
+    try {
+      for (; !lineIter.done(); lineIter.next()) {
+        hashes.add(hashKey(lineIter.key()));
+        boosts.add(lineIter.boost());
       }
+    }
+    finally {
+      lineIter.close();
+    }
 
-      // Warn about any leftover docs
-      while (!docIter.done()) 
+    // Sort them by hash.
+    int[] map = hashes.calcSortMap();
+    hashes.remap(map);
+    float[] sortedBoosts = new float[map.length];
+    for (int i = 0; i < map.length; i++)
+      sortedBoosts[i] = boosts.get(map[i]);
+
+    Compiled ret = new Compiled();
+    ret.hashes = LongBuffer.wrap(hashes.toArray());
+    ret.boosts = FloatBuffer.wrap(sortedBoosts);
+    return ret;
+  } // compile()
+
+  /**
+   * Save a compiled boost set so later loads can map it: a header recording
+   * the size and date of the text file, then the hashed keys, then the
+   * boosts. Writes to a temp file and renames it, so other threads (or 
+   * servers) never see a partial file. If the file can't be written (e.g. 
+   * the directory isn't writable), the set just won't be saved, and will 
+   * be compiled again on the next load.
+   */
+  private static void save(Compiled compiled, File inFile, File binFile) 
+  {
+    File tmpFile = null;
+    try 
+    {
+      tmpFile = File.createTempFile("boost", ".tmp", binFile.getParentFile());
+      DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(tmpFile)));
+      try 
       {
-        //System.out.println( "Skipping doc " + docIter.key() );
-        docIter.next();
+        out.writeInt(FILE_MAGIC);
+        out.writeLong(inFile.lastModified());
+        out.writeLong(inFile.length());
+        out.writeInt(compiled.size());
+        for (int i = 0; i < compiled.size(); i++)
+          out.writeLong(compiled.hashes.get(i));
+        for (int i = 0; i < compiled.size(); i++)
+          out.writeFloat(compiled.boosts.get(i));
       }
-
-      // Warn about any leftover lines
-      while (!lineIter.done()) {
-        warn("Boost document key '" + lineIter.key() + "' not found in index");
-        lineIter.next();
+      finally {
+        out.close();
       }
-
-      Trace.debug("... done loading boost set");
+      binFile.delete();
+      if (tmpFile.renameTo(binFile))
+        tmpFile = null;
+    }
+    catch (IOException e) {
+      Trace.debug("Unable to save compiled boost set '" + binFile + "': " + 
+                  e.toString());
     }
     finally {
-      if (docIter != null)
-        docIter.close();
-      if (lineIter != null)
-        lineIter.close();
+      if (tmpFile != null)
+        tmpFile.delete();
     }
-  } // constructor
+  } // save()
 
   /**
    * If less than 10 warnings have been emitted, we print this one out.
@@ -213,76 +335,83 @@ public class BoostSet
   } // warn()
 
   /**
-   * Iterates all the document keys in an index
+   * The hashed keys and boosts from a compiled boost file, mapped into
+   * memory.
    */
-  private class DocIter 
+  private static class Compiled 
   {
-    boolean done = false;
-    String docKey;
-    String field;
-    TermPositions termPositions;
-    TermEnum termEnum;
-
-    /** Construct from an index reader */
-    DocIter(IndexReader indexReader, String field)
+    LongBuffer hashes;
+    FloatBuffer boosts;
+
+    /**
+     * Map a compiled boost file.
+     *
+     * @param binFile   The compiled file
+     * @param inFile    The text file it was compiled from
+     * @return          The mapped data, or null if the compiled file 
+     *                  doesn't exist or is out of date.
+     */
+    static Compiled map(File binFile, File inFile)
       throws IOException 
     {
-      this.field = field;
-      termPositions = indexReader.termPositions();
-      termEnum = indexReader.terms(new Term(field, ""));
-      readDocKey();
-    }
-
-    /** Return true if there are no more documents to read */
-    boolean done() {
-      return done;
-    }
-
-    /** Gets the key of the current document */
-    String key() {
-      return docKey;
-    }
-
-    /** Gets the Lucene document ID of the current document */
-    int docId()
-      throws IOException 
-    {
-      termPositions.seek(termEnum);
-      if (termPositions.next())
-        return termPositions.doc();
-      assert false : "error reading term positions";
-      return -1;
-    }
-
-    /** Advances to the next document in the index */
-    void next()
-      throws IOException 
-    {
-      if (!termEnum.next())
-        done = true;
-      readDocKey();
-    }
+      if (!binFile.canRead())
+        return null;
+      RandomAccessFile raf = new RandomAccessFile(binFile, "r");
+      try 
+      {
+        FileChannel channel = raf.getChannel();
+        ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, 
+                                     channel.size());
+        if (buf.capacity() < FILE_HEADER_SIZE ||
+            buf.getInt(0) != FILE_MAGIC ||
+            buf.getLong(4) != inFile.lastModified() ||
+            buf.getLong(12) != inFile.length())
+          return null;
+        int count = buf.getInt(20);
+
+        Compiled ret = new Compiled();
+        ByteBuffer dup = buf.duplicate();
+        dup.position(FILE_HEADER_SIZE);
+        dup.limit(FILE_HEADER_SIZE + count * 8);
+        ret.hashes = dup.slice().asLongBuffer();
+        buf.position(FILE_HEADER_SIZE + count * 8);
+        buf.limit(FILE_HEADER_SIZE + count * 12);
+        ret.boosts = buf.slice().asFloatBuffer();
+        return ret;
+      }
+      finally {
+        raf.close();
+      }
+    } // map()
 
-    /** Clean up */
-    void close()
-      throws IOException 
-    {
-      termPositions.close();
-      termEnum.close();
+    /** Number of keys in the file */
+    int size() {
+      return hashes.capacity();
     }
 
-    /** Fetch the current document key; update done */
-    private void readDocKey() 
+    /** Find the position of a hashed key, or -1 if not present */
+    int find(long hash) 
     {
-      Term term = termEnum.term();
-      if (!term.field().equals(field)) {
-        done = true;
-        return;
+      int lo = 0;
+      int hi = hashes.capacity() - 1;
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        long midHash = hashes.get(mid);
+        if (midHash < hash)
+          lo = mid + 1;
+        else if (midHash > hash)
+          hi = mid - 1;
+        else
+          return mid;
       }
+      return -1;
+    } // find()
 
-      docKey = term.text();
+    /** Get the boost at a position returned by find() */
+    float boost(int pos) {
+      return boosts.get(pos);
     }
-  } // class DocIter
+  } // class Compiled
 
   /**
    * Iterates all the lines in a boost file
@@ -37,6 +37,8 @@ package org.cdlib.xtf.textEngine;
  */
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -44,35 +46,50 @@ import java.util.LinkedHashSet;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.apache.lucene.chunk.DocNumMap;
 import org.apache.lucene.chunk.SpanChunkedNotQuery;
-import org.apache.lucene.chunk.SparseStringComparator;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.FieldDoc;
 import org.apache.lucene.search.FieldSortedHitQueue;
-import org.apache.lucene.search.FlippableStringComparator;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.RecordingSearcher;
+import org.apache.lucene.search.SortComparatorSource;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.SpanHitCollector;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.Weight;
 import org.apache.lucene.search.FieldSpanSource;
+import org.apache.lucene.search.spans.FieldSpans;
 import org.apache.lucene.search.spans.SpanNotNearQuery;
 import org.apache.lucene.search.spans.SpanNotQuery;
 import org.apache.lucene.search.spans.SpanTermQuery;
 import org.apache.lucene.spelt.SpellReader;
 import org.apache.lucene.util.PriorityQueue;
+import org.cdlib.xtf.textEngine.facet.DescendantSelector;
 import org.cdlib.xtf.textEngine.facet.DynamicGroupData;
 import org.cdlib.xtf.textEngine.facet.FacetSpec;
+import org.cdlib.xtf.textEngine.facet.FacetTotals;
+import org.cdlib.xtf.textEngine.facet.FederatedGroupData;
 import org.cdlib.xtf.textEngine.facet.GroupCounts;
 import org.cdlib.xtf.textEngine.facet.GroupData;
+import org.cdlib.xtf.textEngine.facet.GroupSelector;
+import org.cdlib.xtf.textEngine.facet.MarkSelector;
+import org.cdlib.xtf.textEngine.facet.NumericGroupData;
 import org.cdlib.xtf.textEngine.facet.ResultFacet;
 import org.cdlib.xtf.textEngine.facet.ResultGroup;
+import org.cdlib.xtf.textEngine.facet.RootSelector;
 import org.cdlib.xtf.textEngine.facet.StaticGroupData;
 import org.cdlib.xtf.util.CharMap;
 import org.cdlib.xtf.util.Trace;
@@ -90,55 +107,16 @@ public class DefaultQueryProcessor extends QueryProcessor
   /** Map of all XtfSearchers, so we can re-use them */
   private static HashMap searchers = new HashMap();
 
-  /** Lucene reader from which to read index data */
-  private IndexReader indexReader;
+  /** Max number of ranges to split a search into */
+  private static final int maxSearchThreads = 
+    Runtime.getRuntime().availableProcessors();
 
-  /** Fetches spelling suggestions */
-  private SpellReader spellReader;
-
-  /** Keeps track of which chunks belong to which documents */
-  private DocNumMap docNumMap;
-
-  /** Max size of a chunk (in words) */
-  @SuppressWarnings("unused")
-  private int chunkSize;
-
-  /** Number of words a chunk shares with its successor */
-  private int chunkOverlap;
-
-  /** Stop-words to remove (e.g. "the", "a", "and", etc.) */
-  private Set stopSet;
-
-  /** Mapping of plural words to singular words */
-  private WordMap pluralMap;
-
-  /** Mapping of accented chars to chars without diacritics */
-  private CharMap accentMap;
-
-  /** Whether the index is "sparse" (i.e. more than 5 chunks per doc) */
-  private boolean isSparse;
-
-  /** Names of fields that are tokenized in this index */
-  private Set tokFields;
-
-  /** Total number of documents hit (not just those that scored high) */
-  private int nDocsHit;
-
-  /** Maximum document score (used to normalize scores) */
-  private float maxDocScore;
-
-  /** Document normalization factor (calculated from {@link #maxDocScore}) */
-  private float docScoreNorm;
+  /** Thread pool for parallel range searches (created on demand) */
+  private static ExecutorService searchPool;
 
   /** Used to warm up indexes prior to use */
   private IndexWarmer indexWarmer;
 
-  /** Comparator used for sorting strings in "sparse" indexes */
-  private static final SparseStringComparator sparseStringComparator = new SparseStringComparator();
-
-  /** Comparator used for sorting strings in "compact" indexes */
-  private static final FlippableStringComparator compactStringComparator = new FlippableStringComparator();
-  
   /** Comparator used to sort by total number of hits */
   private static final TotalHitsComparator totalHitsComparator = new TotalHitsComparator();
   
@@ -151,45 +129,87 @@ public class DefaultQueryProcessor extends QueryProcessor
    * This is main entry point. Takes a pre-parsed query request and handles
    * searching the index and forming the results.<br>
    *
-   * This method is synchronized because it uses two instance variables,
-   * so access by multiple threads would result in incorrect counting. For
-   * maximum efficiency, each thread should really use its own instance.
+   * All per-query data is kept in a {@link RequestState} rather than in
+   * instance variables, so a single processor may safely be used by many
+   * threads at once.
    *
    * @param req      The pre-parsed request to process
    * @return         Zero or more document hits
    */
-  public synchronized QueryResult processRequest(final QueryRequest req)
+  public QueryResult processRequest(final QueryRequest req)
     throws IOException 
   {
-    // Clear out our counters.
-    nDocsHit = 0;
-    maxDocScore = 0;
-
-    // Make an vector to store the hits (we'll make it into an array
-    // later, when we know how many we have.)
-    //
-    Vector hitVec = new Vector(10);
+    if (req.indexPaths != null && req.indexPaths.length > 1)
+      return federatedSearch(req);
+    return processRequest(req, new RequestState());
+  } // processRequest()
+
+  /** 
+   * Tells whether this processor can be shared between threads. Since all
+   * per-query data is kept in a {@link RequestState}, it can.
+   */
+  public boolean isThreadSafe() {
+    return true;
+  }
 
+  /**
+   * Does the work of processing a request, recording the counts and index
+   * data in the given state object.
+   *
+   * @param req      The pre-parsed request to process
+   * @param state    Fresh state to record counts and index data in
+   * @return         Zero or more document hits
+   */
+  private QueryResult processRequest(final QueryRequest req,
+                                     final RequestState state)
+    throws IOException 
+  {
     if (indexWarmer == null)
       throw new IOException("Fatal: must call setIndexWarmer() before DefaultQueryProcessor.processRequest()");
 
     // Get a reader, searcher, and document number map that will all be
-    // consistent with each other and up-to-date.
+    // consistent with each other and up-to-date. The searcher is pinned
+    // so it won't be closed under us if the index is flipped. If all goes
+    // well, the result takes over the pin since its hits are loaded lazily.
     //
-    XtfSearcher xtfSearcher = indexWarmer.getSearcher(req.indexPath);
-    synchronized (xtfSearcher) {
-      xtfSearcher.update();
-      indexReader = xtfSearcher.indexReader();
-      docNumMap = xtfSearcher.docNumMap();
-      chunkSize = xtfSearcher.chunkSize();
-      chunkOverlap = xtfSearcher.chunkOverlap();
-      stopSet = xtfSearcher.stopSet();
-      pluralMap = xtfSearcher.pluralMap();
-      accentMap = xtfSearcher.accentMap();
-      spellReader = xtfSearcher.spellReader();
-      isSparse = xtfSearcher.isSparse();
-      tokFields = xtfSearcher.tokenizedFields();
+    XtfSearcher xtfSearcher = indexWarmer.acquireSearcher(req.indexPath);
+    boolean pinned = false;
+    try {
+      state.load(xtfSearcher);
+      QueryResult result = search(req, state);
+      result.pin(xtfSearcher);
+      pinned = true;
+      return result;
+    }
+    finally {
+      if (!pinned)
+        xtfSearcher.decRef();
     }
+  } // processRequest()
+
+  /**
+   * Searches the index and forms the results, using the index data
+   * already loaded into the state.
+   *
+   * @param req      The pre-parsed request to process
+   * @param state    State containing index data, to record counts in
+   * @return         Zero or more document hits
+   */
+  private QueryResult search(final QueryRequest req, final RequestState state)
+    throws IOException 
+  {
+    // Make an vector to store the hits (we'll make it into an array
+    // later, when we know how many we have.)
+    //
+    Vector<DocHitImpl> hitVec = new Vector<DocHitImpl>(10);
+
+    // Local copies of the index data, for convenience.
+    final IndexReader indexReader = state.indexReader;
+    final DocNumMap docNumMap = state.docNumMap;
+    final Set stopSet = state.stopSet;
+    final WordMap pluralMap = state.pluralMap;
+    final CharMap accentMap = state.accentMap;
+    final Set tokFields = state.tokFields;
 
     // Apply a work limit to the query if we were requested to. If no
     // specific limit was set, use a limiter with an infinite limit 
@@ -214,7 +234,8 @@ public class DefaultQueryProcessor extends QueryProcessor
                                                      req.startDoc +
                                                        req.maxDocs,
                                                      req.sortMetaFields,
-                                                     isSparse);
+                                                     state.sortKeySource,
+                                                     state.hitPool);
 
     // Start making the result by filling in its context.
     QueryResult result = new QueryResult();
@@ -231,44 +252,36 @@ public class DefaultQueryProcessor extends QueryProcessor
       return result;
     }
 
-    // Perform standard tokenization tasks: change words to lowercase,
-    // remove apostrophes, etc.
+    // Rewrite the query for this index: fold terms, form bigrams, and fix
+    // up slop. The same query is often repeated, so remember the result
+    // for as long as this version of the index is in memory. Queries that
+    // modify themselves when Lucene rewrites them can't be shared between
+    // requests, so those aren't remembered.
     //
-    query = new StdTermRewriter(tokFields).rewriteQuery(query);
-    
-    // Normalize all Unicode encoding to normalized form C (NFC)
-    query = new UnicodeNormalizingRewriter(tokFields).rewriteQuery(query);
-
-    // If an accent map is present, remove diacritics.
-    if (accentMap != null)
-      query = new AccentFoldingRewriter(accentMap, tokFields).rewriteQuery(query);
-
-    // If a plural map is present, change plural words to non-plural.
-    if (pluralMap != null)
-      query = new PluralFoldingRewriter(pluralMap, tokFields).rewriteQuery(query);
-
-    // Rewrite the query for bigrams (if we have stop-words to deal with.)
-    if (stopSet != null)
-      query = new XtfBigramQueryRewriter(stopSet, chunkOverlap, tokFields).rewriteQuery(
-        query);
+    Query rewritten;
+    if (changesWhenRewritten(query))
+      rewritten = rewriteQuery(query, state);
+    else 
+    {
+      String rewriteKey = query.toString() + 
+                          "|spans=" + QueryResultCache.maxSpanRecording(query) +
+                          "|termLimits=" + QueryResultCache.termLimits(query);
+      rewritten = state.xtfSearcher.getRewrittenQuery(rewriteKey);
+      if (rewritten == null) {
+        rewritten = rewriteQuery(query, state);
+        if (rewritten != null)
+          state.xtfSearcher.putRewrittenQuery(rewriteKey, rewritten);
+      }
+    }
 
     // If there's nothing left (for instance if the query was all stop-words)
     // then there will be no results.
     //
-    if (query == null) {
+    if (rewritten == null) {
       result.docHits = new DocHit[0];
       return result;
     }
-
-    // Fix up all the "infinite" slop entries to be actually limited to
-    // the chunk overlap size. That way, we'll get consistent results and
-    // the user won't be able to tell where the chunk boundaries are. 
-    // Also, attach the docNumMap to every SpanDechunkingQuery.
-    //
-    final Query finalQuery = new SlopFixupRewriter(docNumMap,
-                                                   stopSet,
-                                                   pluralMap,
-                                                   accentMap).rewriteQuery(query);
+    final Query finalQuery = rewritten;
 
     // If debugging is enabled, print out the final rewritten and fixed
     // up query.
@@ -276,11 +289,21 @@ public class DefaultQueryProcessor extends QueryProcessor
     if (finalQuery != req.query)
       Trace.debug("Rewritten query: " + finalQuery.toString());
 
-    // While processing the query, we want to lazily generate DocHits,
-    // and only generate a DocHit once even if it's added to multiple
-    // groups.
+    // If the result has already been formed and cached (for the same 
+    // searcher), we're done.
     //
-    final DocHitMakerImpl docHitMaker = new DocHitMakerImpl();
+    String cacheKey = null;
+    if (req.resultCache != null && !req.explainScores) 
+    {
+      cacheKey = QueryResultCache.makeKey(req, finalQuery);
+      QueryResultCache.Entry ent = req.resultCache.find(cacheKey,
+                                                        state.xtfSearcher);
+      if (ent != null) {
+        state.nDocsHit = ent.result.totalDocs;
+        state.maxDocScore = ent.maxDocScore;
+        return ent.result;
+      }
+    }
 
     // If we're to apply a set of additional boost sets to the documents,
     // get the set now.
@@ -302,55 +325,49 @@ public class DefaultQueryProcessor extends QueryProcessor
     //
     final GroupCounts[] groupCounts = (req.facetSpecs == null) ? null
                                       : prepGroups(req,
+                                                   state,
                                                    boostSet,
                                                    searcher,
                                                    finalQuery);
 
-    // Now for the big show... go get the hits!
-    searcher.search(finalQuery, null,
-      new SpanHitCollector() 
-      {
-        public void collect(int doc, float score, FieldSpanSource spanSource) 
-        {
-          // Apply a boost (if there's a boost set)
-          score = applyBoost(doc, score, boostSet, req);
-
-          // Ignore deleted entries, and entries boosted down to zero.
-          if (score <= 0.0f)
-            return;
-
-          // Bump the count of documents hit, and update the max score.
-          nDocsHit++;
-          if (score > maxDocScore)
-            maxDocScore = score;
-
-          // Record the hit.
-          docHitMaker.reset(doc, score, spanSource);
-          if (req.maxDocs > 0)
-            docHitMaker.insertInto(docHitQueue);
-
-          // If grouping is enabled, add this document to the counts.
-          if (groupCounts != null) {
-            for (int i = 0; i < groupCounts.length; i++)
-              groupCounts[i].addDoc(docHitMaker);
-          }
-        } // collect()
-      });
+    // Now for the big show... go get the hits! Normally this is done on
+    // the request thread, but the request may ask to split the index
+    // into ranges and search them in parallel.
+    //
+    QueryHitCollector collector = new QueryHitCollector(req,
+                                                        boostSet,
+                                                        docHitQueue,
+                                                        groupCounts);
+    if (req.docKey != null)
+      searchOneDoc(req, state, finalQuery, searcher, collector);
+    else if (req.searchThreads > 1)
+      parallelSearch(req, state, finalQuery, searcher, collector);
+    else
+      searcher.search(finalQuery, null, collector);
+    state.nDocsHit = collector.nDocsHit;
+    state.maxDocScore = collector.maxDocScore;
 
     // Take the high-ranking hits and add them to the hit vector.
     // Note that they come out of the hit queue in backwards order.
     //
+    // If sorting by fields, record each hit's sort values so the hits can
+    // later be merged with those from other indexes.
+    //
     int nFound = docHitQueue.size();
     DocHitImpl[] hitArray = new DocHitImpl[nFound];
     for (int i = 0; i < nFound; i++) {
       int index = nFound - i - 1;
       hitArray[index] = (DocHitImpl)docHitQueue.pop();
+      if (docHitQueue instanceof HitQueue)
+        ((HitQueue)docHitQueue).fillSortValues(hitArray[index]);
+      else if (docHitQueue instanceof SortValueHitQueue)
+        ((SortValueHitQueue)docHitQueue).fillSortValues(hitArray[index]);
     }
 
     // Calculate the document score normalization factor.
-    docScoreNorm = 1.0f;
-    if (req.normalizeScores && maxDocScore > 0.0f)
-      docScoreNorm = 1.0f / maxDocScore;
+    state.docScoreNorm = 1.0f;
+    if (req.normalizeScores && state.maxDocScore > 0.0f)
+      state.docScoreNorm = 1.0f / state.maxDocScore;
 
     // We'll need a query weight if we're being asked to explain the
     // scores.
@@ -369,33 +386,45 @@ public class DefaultQueryProcessor extends QueryProcessor
                                                  req.maxContext,
                                                  req.termMode,
                                                  req.returnMetaFields);
+    snippetMaker.hitFieldCache = state.hitFieldCache;
     for (int i = req.startDoc; i < nFound; i++) 
     {
       if (req.explainScores) {
         hitArray[i].finishWithExplain(snippetMaker,
-                                      docScoreNorm,
+                                      state.docScoreNorm,
                                       weight,
                                       boostSet,
                                       req.boostSetParams);
       }
       else
-        hitArray[i].finish(snippetMaker, docScoreNorm);
+        hitArray[i].finish(snippetMaker, state.docScoreNorm);
       if (result.textTerms == null)
         result.textTerms = hitArray[i].textTerms();
       hitVec.add(hitArray[i]);
     }
 
+    // Read in the fields for all the hits on the page, in index order.
+    DocHitImpl.loadBatch(hitVec);
+
     // If grouping was enabled, group the hits and finish all of them.
     if (groupCounts != null) 
     {
       result.facets = new ResultFacet[groupCounts.length];
       for (int i = 0; i < groupCounts.length; i++) {
         result.facets[i] = groupCounts[i].getResult();
+        if (state.browseTerms != null) {
+          FacetTotals totals = groupCounts[i].formTotals();
+          if (totals != null) {
+            state.xtfSearcher.putFacetTotals(req.facetSpecs[i].field,
+                                             state.browseTerms, totals);
+          }
+        }
         finishGroup(result.facets[i].rootGroup,
                     snippetMaker,
                     req,
                     weight,
-                    boostSet);
+                    boostSet,
+                    state.docScoreNorm);
       } // for if
     }
 
@@ -405,18 +434,476 @@ public class DefaultQueryProcessor extends QueryProcessor
     assert req.maxDocs < 0 || hitVec.size() <= req.maxDocs;
 
     // Pack up the results into a tidy array.
-    result.totalDocs = nDocsHit;
+    result.totalDocs = state.nDocsHit;
     result.startDoc = req.startDoc;
     result.endDoc = req.startDoc + hitVec.size();
     result.docHits = (DocHit[])hitVec.toArray(new DocHit[hitVec.size()]);
 
     // Make spelling suggestions if applicable.
-    if (spellReader != null && req.spellcheckParams != null)
-      spellCheck(req, result, tokFields);
+    if (state.spellReader != null && req.spellcheckParams != null)
+      spellCheck(req, result, state);
+
+    // Cache the result if requested.
+    if (cacheKey != null) {
+      req.resultCache.add(req.indexPath, cacheKey, state.xtfSearcher, result,
+                          state.maxDocScore, req.maxContext);
+    }
 
     // All done.
     return result;
-  } // processReq()
+  } // search()
+
+  /**
+   * Rewrites a query against the given index: performs standard tokenization
+   * tasks, Unicode normalization, and accent and plural folding on each term
+   * (all in a single pass), then forms bigrams and fixes up slop.
+   *
+   * @param query   The query to rewrite
+   * @param state   Index data to rewrite against
+   * @return        The final query, or null if nothing is left (for instance
+   *                if the query was all stop-words.)
+   */
+  private Query rewriteQuery(Query query, RequestState state) 
+  {
+    // Change words to lowercase, remove apostrophes, normalize Unicode
+    // encoding to form C (NFC), remove diacritics, and change plural words
+    // to non-plural.
+    //
+    query = new TermFoldingRewriter(state.tokFields,
+                                    state.accentMap,
+                                    state.pluralMap).rewriteQuery(query);
+
+    // Rewrite the query for bigrams (if we have stop-words to deal with.)
+    if (state.stopSet != null)
+      query = new XtfBigramQueryRewriter(state.stopSet, state.chunkOverlap, 
+                                         state.tokFields).rewriteQuery(query);
+
+    if (query == null)
+      return null;
+
+    // Fix up all the "infinite" slop entries to be actually limited to
+    // the chunk overlap size. That way, we'll get consistent results and
+    // the user won't be able to tell where the chunk boundaries are. 
+    // Also, attach the docNumMap to every SpanDechunkingQuery.
+    //
+    return new SlopFixupRewriter(state.docNumMap,
+                                 state.stopSet,
+                                 state.pluralMap,
+                                 state.accentMap).rewriteQuery(query);
+  } // rewriteQuery()
+
+  /**
+   * Checks whether the query contains any part that modifies itself when
+   * Lucene rewrites it (currently only {@link MoreLikeThisQuery}), and so
+   * can't safely be shared by several requests.
+   */
+  private static boolean changesWhenRewritten(Query query) 
+  {
+    final boolean[] found = new boolean[1];
+    new XtfQueryTraverser() 
+    {
+      protected void traverse(MoreLikeThisQuery mlt) {
+        found[0] = true;
+      }
+    }.traverseQuery(query);
+    return found[0];
+  } // changesWhenRewritten()
+
+  /**
+   * Splits the index into ranges of documents, and searches them in 
+   * parallel, each with its own hit queue and group counts. The results 
+   * are then merged into the main collector, yielding exactly the same
+   * hits and counts as a serial search. Note that the work limit (if any)
+   * applies to each range separately.
+   *
+   * @param req        The request being processed
+   * @param state      State of the request
+   * @param query      Final rewritten query to search for
+   * @param searcher   Searcher to use on the request thread
+   * @param collector  Main collector to merge all the hits into
+   */
+  private void parallelSearch(final QueryRequest req, RequestState state,
+                              Query query, RecordingSearcher searcher,
+                              QueryHitCollector collector)
+    throws IOException 
+  {
+    final IndexReader indexReader = state.indexReader;
+
+    // Do the Lucene-level rewrite just once, here. Some queries (such as
+    // MoreLikeThisQuery) do real work and modify themselves while being
+    // rewritten, so the ranges mustn't each rewrite the same instance.
+    //
+    final Query rewritten = searcher.rewrite(query);
+    final int[] bounds = calcRangeBounds(indexReader.maxDoc(),
+                                         state.docNumMap,
+                                         Math.min(req.searchThreads,
+                                                  maxSearchThreads));
+
+    // Make a collector for each range after the first (which we'll do on
+    // this thread, directly into the main collector.)
+    //
+    int nRanges = bounds.length - 1;
+    QueryHitCollector[] rangeCollectors = new QueryHitCollector[nRanges];
+    rangeCollectors[0] = collector;
+    for (int i = 1; i < nRanges; i++) 
+    {
+      GroupCounts[] rangeCounts = null;
+      if (collector.groupCounts != null) {
+        rangeCounts = new GroupCounts[collector.groupCounts.length];
+        for (int j = 0; j < rangeCounts.length; j++)
+          rangeCounts[j] = collector.groupCounts[j].makeEmptyCopy();
+      }
+      rangeCollectors[i] = new QueryHitCollector(
+        req,
+        collector.boostSet,
+        createHitQueue(indexReader,
+                       req.startDoc + req.maxDocs,
+                       req.sortMetaFields,
+                       state.sortKeySource,
+                       state.hitPool),
+        rangeCounts);
+    }
+
+    // Hand all but the first range to the background threads. Each gets
+    // its own searcher (and work limit), since they keep state.
+    //
+    final int workLimit = (req.workLimit > 0) ? req.workLimit
+                          : Integer.MAX_VALUE;
+    Vector<Future> futures = new Vector<Future>();
+    try 
+    {
+      for (int i = 1; i < nRanges; i++) 
+      {
+        final int fromDoc = bounds[i];
+        final int toDoc = bounds[i + 1];
+        final QueryHitCollector rangeCollector = rangeCollectors[i];
+        futures.add(searchPool().submit(new Callable() 
+        {
+          public Object call() throws IOException 
+          {
+            RecordingSearcher rangeSearcher = new RecordingSearcher(
+              new XtfLimIndexReader(indexReader, workLimit));
+            rangeSearcher.search(rewritten, null, rangeCollector, fromDoc, 
+                                 toDoc);
+            rangeSearcher.close();
+            return null;
+          }
+        }));
+      }
+  
+      // Do the first range ourselves.
+      searcher.search(rewritten, null, collector, bounds[0], bounds[1]);
+  
+      // Wait for the others, and merge their results in.
+      for (int i = 1; i < nRanges; i++) {
+        waitFor(futures.get(i - 1));
+        collector.merge(rangeCollectors[i]);
+      }
+    }
+    finally {
+      // If anything went wrong, don't waste time on the remaining ranges.
+      for (Future f : futures)
+        f.cancel(true);
+    }
+  } // parallelSearch()
+
+  /**
+   * Searches only the chunks of the single document named by the request's
+   * {@link QueryRequest#docKey}, skipping the rest of the index entirely.
+   * Finds nothing if the document isn't in the index.
+   */
+  private void searchOneDoc(QueryRequest req, RequestState state,
+                            Query query, RecordingSearcher searcher,
+                            QueryHitCollector collector)
+    throws IOException 
+  {
+    // Find the document's info chunk. Its text chunks carry the same key,
+    // so check each against the doc num map.
+    //
+    int doc = -1;
+    TermDocs termDocs = state.indexReader.termDocs(
+      new Term("key", req.docKey));
+    try {
+      while (termDocs.next()) {
+        if (state.docNumMap.getFirstChunk(termDocs.doc()) >= 0) {
+          doc = termDocs.doc();
+          break;
+        }
+      }
+    }
+    finally {
+      termDocs.close();
+    }
+    if (doc < 0)
+      return;
+
+    // The info chunk comes just after the document's text chunks.
+    searcher.search(query, null, collector,
+                    state.docNumMap.getFirstChunk(doc), doc + 1);
+  } // searchOneDoc()
+
+  /**
+   * Searches several indexes in parallel as if they were one, merging the
+   * top-ranked hits from each and summing their facet counts. Scores from
+   * each index are normalized separately (if requested) before merging,
+   * since raw scores from different indexes aren't comparable. Spelling
+   * suggestions come only from the first index.
+   *
+   * @param req      The pre-parsed request to process
+   * @return         Merged document hits from all the indexes
+   */
+  private QueryResult federatedSearch(final QueryRequest req)
+    throws IOException 
+  {
+    // Make a request for each index. Each must supply enough hits to fill
+    // the requested page on its own, and all of its groups so they can be
+    // counted together. Only the first (done on this thread) may split up 
+    // its search, so the searches in the pool never wait on the pool.
+    //
+    int nIndexes = req.indexPaths.length;
+    QueryRequest[] subReqs = new QueryRequest[nIndexes];
+    for (int i = 0; i < nIndexes; i++) 
+    {
+      QueryRequest sub = (QueryRequest)req.clone();
+      sub.indexPath = req.indexPaths[i];
+      sub.indexPaths = null;
+      sub.startDoc = 0;
+      sub.maxDocs = (req.maxDocs < 0) ? req.maxDocs 
+                    : (req.startDoc + req.maxDocs);
+      if (req.facetSpecs != null) {
+        sub.facetSpecs = new FacetSpec[req.facetSpecs.length];
+        for (int j = 0; j < req.facetSpecs.length; j++)
+          sub.facetSpecs[j] = allGroupsSpec(req.facetSpecs[j]);
+      }
+      if (i > 0) {
+        sub.spellcheckParams = null;
+        sub.searchThreads = 1;
+      }
+      subReqs[i] = sub;
+    }
+
+    // Hand all but the first index to the background threads.
+    QueryResult[] subResults = new QueryResult[nIndexes];
+    Vector<Future<QueryResult>> futures = new Vector<Future<QueryResult>>();
+    boolean merged = false;
+    try 
+    {
+      for (int i = 1; i < nIndexes; i++) 
+      {
+        final QueryRequest sub = subReqs[i];
+        futures.add(searchPool().submit(new Callable<QueryResult>() 
+        {
+          public QueryResult call() throws IOException {
+            return processRequest(sub, new RequestState());
+          }
+        }));
+      }
+
+      // Do the first index ourselves, then gather the rest.
+      subResults[0] = processRequest(subReqs[0], new RequestState());
+      for (int i = 1; i < nIndexes; i++)
+        subResults[i] = waitFor(futures.get(i - 1));
+
+      QueryResult result = mergeResults(req, subResults);
+      merged = true;
+      return result;
+    }
+    finally 
+    {
+      // If anything went wrong, let the other searches finish and release 
+      // what they've pinned.
+      //
+      if (!merged) 
+      {
+        for (int i = 1; i < nIndexes; i++) {
+          if (subResults[i] == null && i - 1 < futures.size()) {
+            try {
+              subResults[i] = waitFor(futures.get(i - 1));
+            }
+            catch (Throwable t) {
+              // Already failing; the first error is the one to report.
+            }
+          }
+        }
+        for (int i = 0; i < nIndexes; i++) {
+          if (subResults[i] != null)
+            subResults[i].release();
+        }
+      }
+    }
+  } // federatedSearch()
+
+  /**
+   * Makes a facet spec that selects every group of the given one (but no
+   * documents), so the counts from several indexes can be merged before
+   * the real selection is made.
+   */
+  private static FacetSpec allGroupsSpec(FacetSpec spec)
+  {
+    FacetSpec all = new FacetSpec();
+    all.field = spec.field;
+    all.sortGroupsBy = "value";
+    all.includeEmptyGroups = spec.includeEmptyGroups;
+    all.sortDocsBy = spec.sortDocsBy;
+
+    GroupSelector descendants = new DescendantSelector();
+    descendants.setNext(new MarkSelector());
+    all.groupSelector = new RootSelector();
+    all.groupSelector.setNext(descendants);
+    return all;
+  } // allGroupsSpec()
+
+  /**
+   * Merges the results from searching several indexes into a single result,
+   * forming the requested page of hits and applying the original facet
+   * specs to the summed group counts. The merged result takes over the
+   * searchers pinned by the others.
+   *
+   * @param req         The original request
+   * @param subResults  Results from each index, in order
+   * @return            The merged result
+   */
+  private QueryResult mergeResults(QueryRequest req, QueryResult[] subResults)
+    throws IOException 
+  {
+    // The context, text terms, and suggestions come from the first index.
+    QueryResult result = new QueryResult();
+    result.context = subResults[0].context;
+    result.textTerms = subResults[0].textTerms;
+    result.suggestions = subResults[0].suggestions;
+    result.scoresNormalized = req.normalizeScores;
+
+    // Gather all the hits, and sort them into their final order.
+    Vector<FederatedHit> hits = new Vector<FederatedHit>();
+    for (int i = 0; i < subResults.length; i++) 
+    {
+      result.totalDocs += subResults[i].totalDocs;
+      for (DocHit hit : subResults[i].docHits)
+        hits.add(new FederatedHit(hit, i));
+    }
+    Collections.sort(hits, 
+      new FederatedHitComparator(parseSortFields(req.sortMetaFields, null)));
+
+    // Pick out the requested page.
+    int start = Math.min(req.startDoc, hits.size());
+    int end = (req.maxDocs < 0) ? hits.size()
+              : Math.min(hits.size(), req.startDoc + req.maxDocs);
+    result.docHits = new DocHit[end - start];
+    for (int i = start; i < end; i++)
+      result.docHits[i - start] = hits.get(i).hit;
+    result.startDoc = req.startDoc;
+    result.endDoc = req.startDoc + result.docHits.length;
+
+    // Merge the groups from each facet, and then make the real selection.
+    // Document hits within groups aren't supported across indexes.
+    //
+    if (req.facetSpecs != null) 
+    {
+      result.facets = new ResultFacet[req.facetSpecs.length];
+      for (int j = 0; j < req.facetSpecs.length; j++) 
+      {
+        ResultGroup[] roots = new ResultGroup[subResults.length];
+        for (int i = 0; i < subResults.length; i++) {
+          if (subResults[i].facets != null)
+            roots[i] = subResults[i].facets[j].rootGroup;
+        }
+        FacetSpec spec = req.facetSpecs[j];
+        GroupCounts counts = new GroupCounts(
+          new FederatedGroupData(spec.field, roots), spec, null);
+        result.facets[j] = counts.getResult();
+      }
+    }
+
+    // Keep all the indexes open until the merged result is released.
+    for (int i = 0; i < subResults.length; i++)
+      result.takePins(subResults[i]);
+
+    return result;
+  } // mergeResults()
+
+  /**
+   * Waits for a background search to finish, passing on any exception 
+   * it threw.
+   */
+  private static <T> T waitFor(Future<T> future)
+    throws IOException 
+  {
+    try {
+      return future.get();
+    }
+    catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    catch (ExecutionException e) 
+    {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException)cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException)cause;
+      if (cause instanceof Error)
+        throw (Error)cause;
+      throw new RuntimeException(cause);
+    }
+  } // waitFor()
+
+  /**
+   * Splits the chunks of an index into (roughly equal) ranges for parallel
+   * searching. Each range ends just after a document's docInfo chunk, so 
+   * that no document has chunks in two ranges.
+   *
+   * @param maxDoc     Total number of chunks in the index
+   * @param docNumMap  Map of chunks to documents
+   * @param nRanges    Desired number of ranges
+   * @return           Boundaries: range i is [bounds[i], bounds[i+1])
+   */
+  private static int[] calcRangeBounds(int maxDoc, DocNumMap docNumMap,
+                                       int nRanges)
+  {
+    int[] bounds = new int[nRanges + 1];
+    int n = 0;
+    bounds[n++] = 0;
+    for (int i = 1; i < nRanges; i++) 
+    {
+      // Find the document containing the chunk at the ideal split point,
+      // and split just after it.
+      //
+      int doc = docNumMap.getDocNum((int)(((long)maxDoc) * i / nRanges));
+      if (doc < 0)
+        break;
+      int bound = doc + 1;
+      if (bound > bounds[n - 1] && bound < maxDoc)
+        bounds[n++] = bound;
+    }
+    bounds[n++] = maxDoc;
+    
+    // Trim to the number of ranges actually made.
+    int[] ret = new int[n];
+    System.arraycopy(bounds, 0, ret, 0, n);
+    return ret;
+  } // calcRangeBounds()
+
+  /** 
+   * Get the thread pool used for parallel range searches, creating it if 
+   * necessary.
+   */
+  private static synchronized ExecutorService searchPool()
+  {
+    if (searchPool == null) 
+    {
+      searchPool = Executors.newFixedThreadPool(maxSearchThreads,
+        new ThreadFactory() 
+        {
+          private int threadNum = 0;
+          public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "XTF range search " + (++threadNum));
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    }
+    return searchPool;
+  } // searchPool()
 
   /**
    * Checks spelling of query terms, if spelling suggestion is enabled and
@@ -424,10 +911,11 @@ public class DefaultQueryProcessor extends QueryProcessor
    *
    * @param req   Original query request
    * @param res   Results of the query
-   * @param tokFields  Set of tokenized fields (in case no field list was
-   *                   specified in the query request.)
+   * @param state State of the query, including the set of tokenized
+   *              fields (in case no field list was specified in the
+   *              query request.)
    */
-  private void spellCheck(QueryRequest req, QueryResult res, Set tokFields)
+  private void spellCheck(QueryRequest req, QueryResult res, RequestState state)
     throws IOException 
   {
     // We can use a handy reference to the spellcheck params, and to the
@@ -451,13 +939,13 @@ public class DefaultQueryProcessor extends QueryProcessor
     // Check the cutoffs. If the documents scored well, or there were
     // a lot of them, then suggestions aren't needed.
     //
-    if (params.docScoreCutoff > 0 && maxDocScore > params.docScoreCutoff)
+    if (params.docScoreCutoff > 0 && state.maxDocScore > params.docScoreCutoff)
       return;
     if (params.totalDocsCutoff > 0 && totalDocs > params.totalDocsCutoff)
       return;
 
     // Gather the query terms, grouped by field set.
-    Set spellFieldSet = params.fields != null ? params.fields : tokFields;
+    Set spellFieldSet = params.fields != null ? params.fields : state.tokFields;
     LinkedHashMap fieldsMap = gatherKeywords(req.query, spellFieldSet);
 
     // Make suggestions for each field set.
@@ -472,7 +960,7 @@ public class DefaultQueryProcessor extends QueryProcessor
       String[] terms = (String[])termsSet.toArray(new String[termsSet.size()]);
 
       // Get some suggestions
-      String[] suggested = spellReader.suggestKeywords(terms);
+      String[] suggested = state.spellReader.suggestKeywords(terms);
 
       // If no suggestions, skip these fields.
       if (suggested == null)
@@ -506,7 +994,7 @@ public class DefaultQueryProcessor extends QueryProcessor
       return;
 
     // Make sure the suggestions result in better results.
-    if (!spellingImprovesResults(req, res, spellFieldSet, out))
+    if (!spellingImprovesResults(req, res, state, spellFieldSet, out))
       return;
 
     // Record the final suggestions in an array.
@@ -521,6 +1009,7 @@ public class DefaultQueryProcessor extends QueryProcessor
    *
    * @param origReq   Original query request
    * @param origRes   Results of the original query
+   * @param origState State of the original query
    * @param spellFieldSet  Set of fields to rewrite terms within
    * @param suggs     Map of terms to their suggested replacements
    * @return          true if the suggestions improve the results.
@@ -528,6 +1017,7 @@ public class DefaultQueryProcessor extends QueryProcessor
    */
   private boolean spellingImprovesResults(QueryRequest origReq,
                                           QueryResult origRes,
+                                          RequestState origState,
                                           Set spellFieldSet, LinkedHashMap suggs)
     throws IOException 
   {
@@ -537,13 +1027,14 @@ public class DefaultQueryProcessor extends QueryProcessor
     QueryRequest newReq = (QueryRequest)origReq.clone();
     newReq.spellcheckParams = null;
 
-    // Before re-querying, save the max doc score.
-    float origMaxDocScore = maxDocScore;
-
-    // Now apply the spelling suggestions to the original query.
+    // Now apply the spelling suggestions to the original query. Use a
+    // separate state so we can compare the max doc scores.
+    //
     newReq.query = new SpellSuggRewriter(suggs, spellFieldSet).rewriteQuery(
       newReq.query);
-    QueryResult newRes = this.processRequest(newReq);
+    RequestState newState = new RequestState();
+    QueryResult newRes = processRequest(newReq, newState);
+    newRes.release(); // we only need the counts
 
     // If the new query returns nothing and the old query also returned
     // nothing, it's a semi-failure. There's no use suggesting the new
@@ -563,7 +1054,7 @@ public class DefaultQueryProcessor extends QueryProcessor
     }
 
     // If the max doc score is lower, that's also a failure.
-    if (maxDocScore < origMaxDocScore) 
+    if (newState.maxDocScore < origState.maxDocScore) 
     {
       //System.out.print("Lower score: " + newReq.query.toString() + "... ");
       return false;
@@ -676,15 +1167,18 @@ public class DefaultQueryProcessor extends QueryProcessor
    * creating the proper hit queue for each one.
    *
    * @param req       query request containing group specs
+   * @param state     state of the query (for the index reader, etc.)
    * @param query     query to use to form dynamic groups
    * @param searcher  searcher for dynamic groups
    * @param boostSet  boost set for dynamic groups
    */
   private GroupCounts[] prepGroups(final QueryRequest req,
+                                   final RequestState state,
                                    final BoostSet boostSet,
                                    RecordingSearcher searcher, Query query)
     throws IOException 
   {
+    IndexReader indexReader = state.indexReader;
     GroupData[] groupData = new GroupData[req.facetSpecs.length];
     Vector dynamicGroupVec = new Vector();
 
@@ -693,9 +1187,11 @@ public class DefaultQueryProcessor extends QueryProcessor
     {
       FacetSpec spec = req.facetSpecs[i];
       if (spec.field.startsWith("java:")) {
-        groupData[i] = createDynamicGroup(indexReader, spec.field);
+        groupData[i] = createDynamicGroup(indexReader, state.tokFields, spec.field);
         dynamicGroupVec.add(groupData[i]);
       }
+      else if (spec.field.startsWith(NumericGroupData.FIELD_PREFIX))
+        groupData[i] = new NumericGroupData(indexReader, spec.field);
       else
         groupData[i] = StaticGroupData.getCachedData(indexReader, spec.field);
     }
@@ -728,29 +1224,97 @@ public class DefaultQueryProcessor extends QueryProcessor
         dynGroups[i].finish();
     } // if
 
+    // For browse queries, the counts are the same every time, so they can
+    // be shared (unless boosting makes the scores vary.) They're only
+    // useful if the counting will be deferred, and are formed from the
+    // deferred hits of the first such query rather than by searching
+    // separately.
+    //
+    Term[] browseTerms = (boostSet == null) 
+                         ? browseTerms(query, state.tokFields) : null;
+    state.browseTerms = browseTerms;
+
     // Now make a GroupCount object around each data object.
     GroupCounts[] groupCounts = new GroupCounts[req.facetSpecs.length];
     for (int i = 0; i < req.facetSpecs.length; i++) {
       FacetSpec spec = req.facetSpecs[i];
       HitQueueMakerImpl maker = new HitQueueMakerImpl(indexReader,
                                                       spec.sortDocsBy,
-                                                      isSparse);
+                                                      state.sortKeySource,
+                                                      state.hitPool);
       groupCounts[i] = new GroupCounts(groupData[i], spec, maker);
+      if (browseTerms != null && groupCounts[i].isDeferring()) {
+        groupCounts[i].setTotals(
+          state.xtfSearcher.findFacetTotals(spec.field, browseTerms));
+      }
     }
 
     // All done.
     return groupCounts;
   } // prepGroups()
 
+  /**
+   * Check if the query is a browse query: all documents, optionally limited
+   * to those having a single term in an untokenized field (typically a
+   * facet value.)
+   *
+   * @param query       The query to check
+   * @param tokFields   Set of tokenized fields in the index
+   * @return            The terms a document must have to match the query,
+   *                    or null if it isn't a browse query.
+   */
+  private static Term[] browseTerms(Query query, Set tokFields) 
+  {
+    if (isAllDocs(query))
+      return new Term[] { ((TermQuery)query).getTerm() };
+
+    if (!(query instanceof BooleanQuery))
+      return null;
+    BooleanClause[] clauses = ((BooleanQuery)query).getClauses();
+    if (clauses.length != 2 || !clauses[0].isRequired() || 
+        !clauses[1].isRequired())
+      return null;
+
+    for (int i = 0; i < 2; i++) 
+    {
+      if (!isAllDocs(clauses[i].getQuery()))
+        continue;
+      Query other = clauses[1 - i].getQuery();
+      Term filter;
+      if (other instanceof TermQuery)
+        filter = ((TermQuery)other).getTerm();
+      else if (other instanceof SpanTermQuery)
+        filter = ((SpanTermQuery)other).getTerm();
+      else
+        return null;
+      if (tokFields.contains(filter.field()))
+        return null;
+      return new Term[] { ((TermQuery)clauses[i].getQuery()).getTerm(), 
+                          filter };
+    }
+    return null;
+  } // browseTerms()
+
+  /** Check if the query selects all documents (see QueryRequestParser) */
+  private static boolean isAllDocs(Query query) 
+  {
+    if (!(query instanceof TermQuery))
+      return false;
+    Term term = ((TermQuery)query).getTerm();
+    return term.field().equals("docInfo") && term.text().equals("1");
+  } // isAllDocs()
+
   /**
    * Create a dynamic group based on a field specification.
    *
    * @param indexReader   Where to get the data from
+   * @param tokFields     Set of tokenized fields in the index
    * @param field         Special field name starting with "java:"
    * @return              Dynamic group data
    * @throws IOException
    */
-  private GroupData createDynamicGroup(IndexReader indexReader, String field)
+  private GroupData createDynamicGroup(IndexReader indexReader, Set tokFields,
+                                       String field)
     throws IOException 
   {
     // Parse out the class name and parameters
@@ -803,11 +1367,16 @@ public class DefaultQueryProcessor extends QueryProcessor
    * @param req           Determines whether to finish with 'explain' or not
    * @param weight        Used for score explanations
    * @param boostSet      Used for score explanations
+   * @param docScoreNorm  Document score normalization factor
    */
   private void finishGroup(ResultGroup group, SnippetMaker snippetMaker,
-                           QueryRequest req, Weight weight, BoostSet boostSet)
+                           QueryRequest req, Weight weight, BoostSet boostSet,
+                           float docScoreNorm)
     throws IOException 
   {
+    // Normalize the group's score the same as the documents.
+    group.maxDocScore *= docScoreNorm;
+
     // Finish DocHits for this group
     if (group.docHits != null) 
     {
@@ -829,7 +1398,8 @@ public class DefaultQueryProcessor extends QueryProcessor
     // Now finish all the descendants.
     if (group.subGroups != null) {
       for (int j = 0; j < group.subGroups.length; j++)
-        finishGroup(group.subGroups[j], snippetMaker, req, weight, boostSet);
+        finishGroup(group.subGroups[j], snippetMaker, req, weight, boostSet,
+                    docScoreNorm);
     }
   } // finishGroup()
 
@@ -849,7 +1419,7 @@ public class DefaultQueryProcessor extends QueryProcessor
    * If a boost set was specified, boost the given document's score according to the
    * set.
    */
-  private float applyBoost(int doc, float score, BoostSet boostSet,
+  private static float applyBoost(int doc, float score, BoostSet boostSet,
                            QueryRequest req) 
   {
     // If we're boosting, apply that factor.
@@ -865,19 +1435,24 @@ public class DefaultQueryProcessor extends QueryProcessor
   
   /**
    * Creates either a standard score-sorting hit queue, or a field-sorting
-   * hit queue, depending on whether the query is to be sorted.
+   * hit queue, depending on whether the query is to be sorted. Fields with
+   * precomputed sort keys (and score) are sorted by a {@link HitQueue};
+   * others (e.g. "totalHits") need a Lucene field-sorted queue.
    *
    * @param reader     will be used to read the field contents
    * @param inSize     size of the queue (typically startDoc + maxDocs). If
    *                   this number is >= 999999, an infinitely resizing
    *                   queue will be created.
    * @param sortFields space or comma delimited list of fields to sort by
-   * @param isSparse   if index is sparse (i.e. more than 5 chunks per doc)
+   * @param stringComparator  comparator source for meta-data fields
+   * @param pool       gives out the hits, so that each document only gets
+   *                   one even if several queues keep it
    * @return           an appropriate hit queue
    */
   private static PriorityQueue createHitQueue(IndexReader reader, int inSize,
                                               String sortFields,
-                                              boolean isSparse)
+                                              SortComparatorSource stringComparator,
+                                              HitQueue.HitPool pool)
     throws IOException 
   {
     // If a large size is requested, start with a small queue and expand
@@ -887,127 +1462,31 @@ public class DefaultQueryProcessor extends QueryProcessor
 
     // If no sort fields, do a simple score sort.
     PriorityQueue ret;
-    if (sortFields == null)
-      ret = new HitQueue(size);
-    else
+    SortField[] fields = parseSortFields(sortFields, stringComparator);
+    if (fields == null)
+      ret = new HitQueue(size, pool);
+    else 
     {
-      // Parse out the list of fields to sort by.
-      Vector fieldNames = new Vector();
-      StringTokenizer st = new StringTokenizer(sortFields, " \t\r\n,;");
-      while (st.hasMoreTokens())
-        fieldNames.add(st.nextToken());
-  
-      // If there were none, do a simple score sort.
-      if (fieldNames.size() == 0)
-        ret = new HitQueue(size);
-      else
+      // See if all the fields have sort keys (or don't need them).
+      SortKeys[] fieldKeys = new SortKeys[fields.length];
+      for (int i = 0; i < fields.length && fieldKeys != null; i++) 
       {
-        // Okay, make a SortField out of each one, in priority order from 
-        // highest to lowest. After all the fields, an implicit score sorter 
-        // is added so that documents which match in all other respects
-        // will come out ordered by score.
-        //
-        // Each name can be optionally prefixed with "-" to sort in reverse,
-        // or "+" to sort in normal order (but "+" is unnecessary, since
-        // normal order is the default.)
-        //
-        // There's also a more verbose and powerful way to affect sort order: 
-        // modifiers. Possible modifiers are ":ascending", ":descending", 
-        // ":emptyFirst", and ":emptyLast".
-        //
-        SortField[] fields = new SortField[fieldNames.size() + 2];
-        for (int i = 0; i < fieldNames.size(); i++) 
-        {
-          String name = (String)fieldNames.elementAt(i);
-          boolean ascending = false;
-          boolean descending = false;
-          boolean emptyFirst = false;
-          boolean emptyLast = false;
-          
-          // Check for the short-hand "-" and "+" prefixes
-          if (name.startsWith("-")) {
-            descending = true;
-            name = name.substring(1);
-          }
-          else if (name.startsWith("+")) {
-            ascending = true;
-            name = name.substring(1);
-          }
-
-          // Check for more verbose ":" modifiers after the field name
-          String[] parts = name.split(":");
-          name = parts[0];
-          for (int j=1; j<parts.length; j++) 
-          {
-            if (parts[j].equalsIgnoreCase("ascending"))
-              ascending = true;
-            else if (parts[j].equalsIgnoreCase("descending"))
-              descending = true;
-            else if (parts[j].equalsIgnoreCase("emptyFirst"))
-              emptyFirst = true;
-            else if (parts[j].equalsIgnoreCase("emptyLast"))
-              emptyLast = true;
-            else
-              throw new IOException("Unknown sort modifier: '" + parts[j] + "'");
-          }
-          
-          // Check for conflicting modifiers.
-          if ((ascending && descending) || (emptyFirst && emptyLast))
-            throw new IOException("Conflicting sort modifiers");
-          
-          // Interpret the modifiers.
-          boolean reverse;
-          if (ascending)
-            reverse = false;
-          else if (descending)
-            reverse = true;
-          else
-            reverse = false; // default
-          
-          boolean flipEmpty;
-          if (!reverse) {
-            if (emptyFirst)
-              flipEmpty = true;
-            else if (emptyLast)
-              flipEmpty = false;
-            else
-              flipEmpty = false; // default
-          }
-          else {
-            if (emptyFirst)
-              flipEmpty = false;
-            else if (emptyLast)
-              flipEmpty = true;
-            else
-              flipEmpty = true; // default
-          }
-    
-          String finalName = flipEmpty ? (name + ":flipEmpty") : name;
-          
-          // Though not strictly necessary, allow the user to specify "score" or
-          // "relevance" to sort by those. That way, automated programs can always give
-          // a "sortDocsBy" field.
-          //
-          if (name.equals("score") || name.equals("relevance")) {
-            if (reverse || flipEmpty)
-              throw new RuntimeException("Illegal modifier on sortDocsBy 'score'");
-            fields[i] = SortField.FIELD_SCORE;
-          }
-          else if (name.equals("totalHits"))
-            fields[i] = new SortField(finalName, totalHitsComparator, reverse);
-          else if (isSparse)
-            fields[i] = new SortField(finalName, sparseStringComparator, reverse);
-          else
-            fields[i] = new SortField(finalName, compactStringComparator, reverse);
+        SortField field = fields[i];
+        if (field.getType() == SortField.SCORE || 
+            field.getType() == SortField.DOC)
+          continue;
+        if (field.getFactory() instanceof XtfSearcher.SortKeySource) {
+          fieldKeys[i] = ((XtfSearcher.SortKeySource)field.getFactory()).
+                         keysFor(field.getField());
         }
-        
-        // Default tie-breakers: first, score. If score is equal, sort by doc ID.
-        fields[fieldNames.size()]   = SortField.FIELD_SCORE;
-        fields[fieldNames.size()+1] = SortField.FIELD_DOC;
-    
-        // And make the final hit queue.
-        ret = new FieldSortedHitQueue(reader, fields, size);
+        else
+          fieldKeys = null;
       }
+
+      if (fieldKeys != null)
+        ret = new HitQueue(size, fields, fieldKeys, pool);
+      else
+        ret = new SortValueHitQueue(reader, fields, size, pool);
     }
     
     // If a ton of hits is requested, make the queue into a resizing one.
@@ -1018,11 +1497,319 @@ public class DefaultQueryProcessor extends QueryProcessor
     return ret;
   } // createHitQueue()
 
+  /**
+   * Parses a list of fields to sort by, each optionally with modifiers.
+   *
+   * @param sortFields space or comma delimited list of fields to sort by
+   *                   (may be null)
+   * @param stringComparator  comparator source for meta-data fields (may
+   *                   be null if the fields won't be used to make 
+   *                   comparators.)
+   * @return           the fields, with score and document tie-breakers
+   *                   added, or null to sort by score only.
+   */
+  private static SortField[] parseSortFields(String sortFields,
+                                             SortComparatorSource stringComparator)
+    throws IOException 
+  {
+    if (sortFields == null)
+      return null;
+
+    // Parse out the list of fields to sort by.
+    Vector fieldNames = new Vector();
+    StringTokenizer st = new StringTokenizer(sortFields, " \t\r\n,;");
+    while (st.hasMoreTokens())
+      fieldNames.add(st.nextToken());
+
+    // If there were none, it's a simple score sort.
+    if (fieldNames.size() == 0)
+      return null;
+
+    // Okay, make a SortField out of each one, in priority order from 
+    // highest to lowest. After all the fields, an implicit score sorter 
+    // is added so that documents which match in all other respects
+    // will come out ordered by score.
+    //
+    // Each name can be optionally prefixed with "-" to sort in reverse,
+    // or "+" to sort in normal order (but "+" is unnecessary, since
+    // normal order is the default.)
+    //
+    // There's also a more verbose and powerful way to affect sort order: 
+    // modifiers. Possible modifiers are ":ascending", ":descending", 
+    // ":emptyFirst", and ":emptyLast".
+    //
+    SortField[] fields = new SortField[fieldNames.size() + 2];
+    for (int i = 0; i < fieldNames.size(); i++) 
+    {
+      String name = (String)fieldNames.elementAt(i);
+      boolean ascending = false;
+      boolean descending = false;
+      boolean emptyFirst = false;
+      boolean emptyLast = false;
+      
+      // Check for the short-hand "-" and "+" prefixes
+      if (name.startsWith("-")) {
+        descending = true;
+        name = name.substring(1);
+      }
+      else if (name.startsWith("+")) {
+        ascending = true;
+        name = name.substring(1);
+      }
+
+      // Check for more verbose ":" modifiers after the field name
+      String[] parts = name.split(":");
+      name = parts[0];
+      for (int j=1; j<parts.length; j++) 
+      {
+        if (parts[j].equalsIgnoreCase("ascending"))
+          ascending = true;
+        else if (parts[j].equalsIgnoreCase("descending"))
+          descending = true;
+        else if (parts[j].equalsIgnoreCase("emptyFirst"))
+          emptyFirst = true;
+        else if (parts[j].equalsIgnoreCase("emptyLast"))
+          emptyLast = true;
+        else
+          throw new IOException("Unknown sort modifier: '" + parts[j] + "'");
+      }
+      
+      // Check for conflicting modifiers.
+      if ((ascending && descending) || (emptyFirst && emptyLast))
+        throw new IOException("Conflicting sort modifiers");
+      
+      // Interpret the modifiers.
+      boolean reverse;
+      if (ascending)
+        reverse = false;
+      else if (descending)
+        reverse = true;
+      else
+        reverse = false; // default
+      
+      boolean flipEmpty;
+      if (!reverse) {
+        if (emptyFirst)
+          flipEmpty = true;
+        else if (emptyLast)
+          flipEmpty = false;
+        else
+          flipEmpty = false; // default
+      }
+      else {
+        if (emptyFirst)
+          flipEmpty = false;
+        else if (emptyLast)
+          flipEmpty = true;
+        else
+          flipEmpty = true; // default
+      }
+
+      String finalName = flipEmpty ? (name + ":flipEmpty") : name;
+      
+      // Though not strictly necessary, allow the user to specify "score" or
+      // "relevance" to sort by those. That way, automated programs can always give
+      // a "sortDocsBy" field.
+      //
+      if (name.equals("score") || name.equals("relevance")) {
+        if (reverse || flipEmpty)
+          throw new RuntimeException("Illegal modifier on sortDocsBy 'score'");
+        fields[i] = SortField.FIELD_SCORE;
+      }
+      else if (name.equals("totalHits"))
+        fields[i] = new SortField(finalName, totalHitsComparator, reverse);
+      else
+        fields[i] = new SortField(finalName, stringComparator, reverse);
+    }
+    
+    // Default tie-breakers: first, score. If score is equal, sort by doc ID.
+    fields[fieldNames.size()]   = SortField.FIELD_SCORE;
+    fields[fieldNames.size()+1] = SortField.FIELD_DOC;
+
+    return fields;
+  } // parseSortFields()
+
+  /**
+   * Keeps all the data for a single query request, so that many requests
+   * may be processed simultaneously by the same query processor.
+   */
+  private static class RequestState
+  {
+    /** Searcher the index data came from */
+    XtfSearcher xtfSearcher;
+
+    /** Lucene reader from which to read index data */
+    IndexReader indexReader;
+
+    /** Fetches spelling suggestions */
+    SpellReader spellReader;
+
+    /** Keeps track of which chunks belong to which documents */
+    DocNumMap docNumMap;
+
+    /** Cache of stored fields for document hits */
+    HitFieldCache hitFieldCache;
+
+    /** Number of words a chunk shares with its successor */
+    int chunkOverlap;
+
+    /** Stop-words to remove (e.g. "the", "a", "and", etc.) */
+    Set stopSet;
+
+    /** Mapping of plural words to singular words */
+    WordMap pluralMap;
+
+    /** Mapping of accented chars to chars without diacritics */
+    CharMap accentMap;
+
+    /** Whether the index is "sparse" (i.e. more than 5 chunks per doc) */
+    boolean isSparse;
+
+    /** Names of fields that are tokenized in this index */
+    Set tokFields;
+
+    /** Makes comparators for sorting on meta-data fields */
+    SortComparatorSource sortKeySource;
+
+    /** Gives out hits, so each document gets only one DocHitImpl */
+    HitQueue.HitPool hitPool = new HitQueue.HitPool();
+
+    /** Total number of documents hit (not just those that scored high) */
+    int nDocsHit;
+
+    /** Maximum document score (used to normalize scores) */
+    float maxDocScore;
+
+    /** Document normalization factor (calculated from {@link #maxDocScore}) */
+    float docScoreNorm;
+
+    /** Terms a hit must have if this is a browse query, else null */
+    Term[] browseTerms;
+
+    /** 
+     * Grab a consistent set of index data from the searcher. The caller
+     * is responsible for keeping it pinned while the data is in use.
+     */
+    void load(XtfSearcher xtfSearcher)
+    {
+      this.xtfSearcher = xtfSearcher;
+      indexReader = xtfSearcher.indexReader();
+      hitFieldCache = xtfSearcher.hitFieldCache();
+      docNumMap = xtfSearcher.docNumMap();
+      chunkOverlap = xtfSearcher.chunkOverlap();
+      stopSet = xtfSearcher.stopSet();
+      pluralMap = xtfSearcher.pluralMap();
+      accentMap = xtfSearcher.accentMap();
+      spellReader = xtfSearcher.spellReader();
+      isSparse = xtfSearcher.isSparse();
+      sortKeySource = xtfSearcher.sortKeySource();
+      tokFields = xtfSearcher.tokenizedFields();
+    }
+  } // class RequestState
+
+  /**
+   * Collects the hits for a query: counts them, keeps the high-ranking ones
+   * in a hit queue, and adds them to the group counts (if any).
+   */
+  private static class QueryHitCollector extends SpanHitCollector
+  {
+    QueryRequest req;
+    BoostSet boostSet;
+    PriorityQueue docHitQueue;
+    GroupCounts[] groupCounts;
+
+    /**
+     * Set if the hit queue holds bare document numbers and there are no
+     * facets, in which case hits that can't make it into the queue are 
+     * skipped early.
+     */
+    private HitQueue scoreQueue;
+
+    /** Total number of documents hit */
+    int nDocsHit;
+
+    /** Maximum document score */
+    float maxDocScore;
+
+    /**
+     * While processing the query, we want to lazily generate DocHits,
+     * and only generate a DocHit once even if it's added to multiple
+     * groups.
+     */
+    private DocHitMakerImpl docHitMaker = new DocHitMakerImpl();
+
+    QueryHitCollector(QueryRequest req, BoostSet boostSet, 
+                      PriorityQueue docHitQueue, GroupCounts[] groupCounts)
+    {
+      this.req = req;
+      this.boostSet = boostSet;
+      this.docHitQueue = docHitQueue;
+      this.groupCounts = groupCounts;
+      if (req.maxDocs > 0 && groupCounts == null && 
+          docHitQueue instanceof HitQueue)
+      {
+        scoreQueue = (HitQueue)docHitQueue;
+      }
+    }
+
+    public void collect(int doc, float score, FieldSpanSource spanSource) 
+    {
+      // Apply a boost (if there's a boost set)
+      score = applyBoost(doc, score, boostSet, req);
+
+      // Ignore deleted entries, and entries boosted down to zero.
+      if (score <= 0.0f)
+        return;
+
+      // Bump the count of documents hit, and update the max score.
+      nDocsHit++;
+      if (score > maxDocScore)
+        maxDocScore = score;
+
+      // If nothing but the queue cares about this hit, and it wouldn't 
+      // make it into the queue anyway, don't bother making a DocHit or 
+      // gathering its spans.
+      //
+      if (scoreQueue != null && !scoreQueue.isCompetitive(doc, score))
+        return;
+
+      // Record the hit.
+      docHitMaker.reset(doc, score, spanSource);
+      if (req.maxDocs > 0)
+        docHitMaker.insertInto(docHitQueue);
+
+      // If grouping is enabled, add this document to the counts.
+      if (groupCounts != null) {
+        for (int i = 0; i < groupCounts.length; i++)
+          groupCounts[i].addDoc(docHitMaker);
+      }
+    } // collect()
+
+    /**
+     * Merge in the hits and counts from another collector, which must have
+     * been used on a separate range of documents.
+     */
+    void merge(QueryHitCollector other)
+    {
+      nDocsHit += other.nDocsHit;
+      maxDocScore = Math.max(maxDocScore, other.maxDocScore);
+
+      while (other.docHitQueue.size() > 0)
+        docHitQueue.insert(other.docHitQueue.pop());
+
+      if (groupCounts != null) {
+        for (int i = 0; i < groupCounts.length; i++)
+          groupCounts[i].merge(other.groupCounts[i]);
+      }
+    } // merge()
+  } // class QueryHitCollector
+
   private static class DocHitMakerImpl implements GroupCounts.DocHitMaker 
   {
     private int doc;
     private float score;
     private FieldSpanSource spanSrc;
+    private FieldSpans spans;
     private DocHitImpl docHit;
 
     public final void reset(int doc, float score, FieldSpanSource spanSrc) 
@@ -1031,6 +1818,7 @@ public class DefaultQueryProcessor extends QueryProcessor
       this.score = score;
       this.spanSrc = spanSrc;
 
+      spans = null;
       docHit = null;
     }
 
@@ -1044,6 +1832,21 @@ public class DefaultQueryProcessor extends QueryProcessor
 
     public final boolean insertInto(PriorityQueue queue) 
     {
+      // Our own queues don't need a DocHit, just the spans, and those
+      // only if the hit is going to be kept.
+      //
+      if (queue instanceof HitQueue) 
+      {
+        HitQueue hitQueue = (HitQueue)queue;
+        if (!hitQueue.isCompetitive(doc, score))
+          return false;
+        if (spans == null && docHit != null)
+          spans = docHit.fieldSpans();
+        if (spans == null && spanSrc != null)
+          spans = spanSrc.getSpans(doc);
+        return hitQueue.insert(doc, score, spans);
+      }
+
       if (docHit == null)
         docHit = new DocHitImpl(doc, score);
 
@@ -1065,18 +1868,134 @@ public class DefaultQueryProcessor extends QueryProcessor
     }
   } // class DocHitMaker
 
+  /**
+   * A field-sorted hit queue that can record the sort values of a hit,
+   * for later comparison with hits from a different index.
+   */
+  private static class SortValueHitQueue extends FieldSortedHitQueue 
+  {
+    private HitQueue.HitPool pool;
+
+    SortValueHitQueue(IndexReader reader, SortField[] fields, int size,
+                      HitQueue.HitPool pool)
+      throws IOException 
+    {
+      super(reader, fields, size);
+      this.pool = pool;
+    }
+
+    /** Removes the least hit, sharing it with other queues if possible */
+    public Object pop() {
+      Object hit = super.pop();
+      if (hit == null || pool == null)
+        return hit;
+      return pool.share((DocHitImpl)hit);
+    }
+
+    /** Record the sort values for the given hit in its 'fields' array */
+    void fillSortValues(FieldDoc hit) 
+    {
+      Comparable[] values = new Comparable[comparators.length];
+      for (int i = 0; i < comparators.length; i++)
+        values[i] = comparators[i].sortValue(hit);
+      hit.fields = values;
+    }
+  } // class SortValueHitQueue
+
+  /** A hit from one of several indexes being searched together */
+  private static class FederatedHit 
+  {
+    DocHit hit;
+    int index;
+
+    FederatedHit(DocHit hit, int index) {
+      this.hit = hit;
+      this.index = index;
+    }
+  } // class FederatedHit
+
+  /**
+   * Orders hits from several indexes, either by score or by the sort values
+   * recorded in each hit. Empty values go at the end unless the field is
+   * marked ":flipEmpty", mirroring the comparators used within an index.
+   * Ties in score or sort values go to the earlier index.
+   */
+  private static class FederatedHitComparator 
+    implements Comparator<FederatedHit> 
+  {
+    private SortField[] fields;
+
+    /** @param fields  fields to sort by, or null to sort by score */
+    FederatedHitComparator(SortField[] fields) {
+      this.fields = fields;
+    }
+
+    public int compare(FederatedHit h1, FederatedHit h2) 
+    {
+      if (fields == null) {
+        int c = Float.compare(h2.hit.score, h1.hit.score);
+        return (c != 0) ? c : compareDocs(h1, h2);
+      }
+
+      for (int i = 0; i < fields.length; i++) 
+      {
+        SortField field = fields[i];
+        int c;
+        if (field.getType() == SortField.SCORE)
+          c = Float.compare(h2.hit.score, h1.hit.score);
+        else if (field.getType() == SortField.DOC)
+          c = compareDocs(h1, h2);
+        else 
+        {
+          c = compareValues(h1.hit.fields[i], h2.hit.fields[i],
+                            field.getField().endsWith(":flipEmpty"));
+          if (field.getReverse())
+            c = -c;
+        }
+        if (c != 0)
+          return c;
+      }
+      return 0;
+    } // compare()
+
+    private static int compareDocs(FederatedHit h1, FederatedHit h2) 
+    {
+      if (h1.index != h2.index)
+        return (h1.index < h2.index) ? -1 : 1;
+      if (h1.hit.doc != h2.hit.doc)
+        return (h1.hit.doc < h2.hit.doc) ? -1 : 1;
+      return 0;
+    }
+
+    private static int compareValues(Comparable v1, Comparable v2,
+                                     boolean flipEmpty)
+    {
+      boolean empty1 = (v1 == null || "".equals(v1));
+      boolean empty2 = (v2 == null || "".equals(v2));
+      if (empty1 || empty2) {
+        if (empty1 && empty2)
+          return 0;
+        return (empty1 != flipEmpty) ? 1 : -1;
+      }
+      return v1.compareTo(v2);
+    }
+  } // class FederatedHitComparator
+
   private static class HitQueueMakerImpl implements GroupCounts.HitQueueMaker 
   {
     private IndexReader reader;
     private String sortFields;
-    private boolean isSparse;
+    private SortComparatorSource stringComparator;
+    private HitQueue.HitPool pool;
 
     public HitQueueMakerImpl(IndexReader reader, String sortFields,
-                             boolean isSparse) 
+                             SortComparatorSource stringComparator,
+                             HitQueue.HitPool pool) 
     {
       this.reader = reader;
       this.sortFields = sortFields;
-      this.isSparse = isSparse;
+      this.stringComparator = stringComparator;
+      this.pool = pool;
     }
 
     public PriorityQueue makeQueue(int size) 
@@ -1085,7 +2004,8 @@ public class DefaultQueryProcessor extends QueryProcessor
         return DefaultQueryProcessor.createHitQueue(reader,
                                                     size,
                                                     sortFields,
-                                                    isSparse);
+                                                    stringComparator,
+                                                    pool);
       }
       catch (IOException e) {
         throw new RuntimeException(e);
@@ -30,6 +30,9 @@ package org.cdlib.xtf.textEngine;
  * POSSIBILITY OF SUCH DAMAGE.
  */
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Set;
 import org.apache.lucene.document.DateTools;
@@ -101,6 +104,19 @@ public class DocHitImpl extends DocHit
     this.fieldSpanSource = src;
   }
 
+  /**
+   * Sets the spans directly, for hits that were queued without a DocHitImpl
+   * and the spans gathered separately.
+   */
+  void setFieldSpans(FieldSpans spans) {
+    this.fieldSpans = spans;
+  }
+
+  /** Gets the spans, if they've been gathered. */
+  FieldSpans fieldSpans() {
+    return fieldSpans;
+  }
+
   /**
    * Called after all hits have been gathered to normalize the scores and
    * associate a snippetMaker for later use.
@@ -179,24 +195,70 @@ public class DocHitImpl extends DocHit
     }
   } // finishWithExplain()
 
+  /**
+   * Loads everything that would otherwise be loaded lazily: the fields,
+   * and the snippets with their text. Afterward the hit no longer needs the
+   * index, and won't change if used by several threads at once.
+   */
+  void loadAll() 
+  {
+    if (docKey == null)
+      load();
+    textTerms();
+    int nSnippets = nSnippets();
+    for (int i = 0; i < nSnippets; i++)
+      snippet(i, true);
+  } // loadAll()
+
+  /**
+   * Loads the fields of a batch of hits all at once, in document order so
+   * that the stored fields are read sequentially rather than jumping around.
+   *
+   * @param hits    Hits to load (order doesn't matter, and isn't changed.)
+   */
+  static void loadBatch(List<DocHitImpl> hits) 
+  {
+    ArrayList<DocHitImpl> toLoad = new ArrayList<DocHitImpl>(hits.size());
+    for (DocHitImpl hit : hits) {
+      if (hit.docKey == null)
+        toLoad.add(hit);
+    }
+
+    Collections.sort(toLoad, new Comparator<DocHitImpl>() {
+      public int compare(DocHitImpl h1, DocHitImpl h2) {
+        return h1.doc - h2.doc;
+      }
+    });
+
+    for (DocHitImpl hit : toLoad)
+      hit.load();
+  } // loadBatch()
+
   /**
    * Read in the document info chunk and record the path, date, etc. that
    * we find there.
    */
   private void load() 
   {
-    // Read in our fields
+    // The query request may have specified a limited set of fields to return.
+    Set<String> returnMetaFields = snippetMaker.returnMetaFields();
+
+    // Read in our fields, decoding only the ones we need.
     Document docContents;
     try {
       assert !snippetMaker.reader.isDeleted(doc);
-      docContents = snippetMaker.reader.document(doc);
+      if (snippetMaker.hitFieldCache != null) {
+        docContents = snippetMaker.hitFieldCache.load(snippetMaker.reader, 
+                                                      doc, returnMetaFields);
+      }
+      else {
+        docContents = HitFieldCache.loadFields(snippetMaker.reader, doc, 
+                                               returnMetaFields);
+      }
     }
     catch (IOException e) {
       throw new HitLoadException(e);
     }
-    
-    // The query request may have specified a limited set of fields to return.
-    Set returnMetaFields = snippetMaker.returnMetaFields();
 
     // Record the ones of interest.
     metaData = new AttribList();
@@ -0,0 +1,274 @@
+package org.cdlib.xtf.textEngine;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import org.apache.lucene.index.IndexReader;
+import org.cdlib.xtf.util.Trace;
+
+/**
+ * Holds the per-document field data (boost sets, numeric columns, facet
+ * groups, FRBR tags, etc.) loaded for one version of an index. Each 
+ * {@link XtfSearcher} owns one, and entries stay put until the searcher
+ * is closed, rather than coming and going with garbage collection.<br>
+ *
+ * The cache may be given a memory budget. When loading an entry takes the
+ * total over budget, the least recently used entries are released. Data
+ * recorded with {@link #put(String, Data)} (typically mapped from files 
+ * written by the indexer) is never released this way. Note that the budget
+ * is only checked as entries are loaded: growth of an entry after that 
+ * (such as the group doc sets StaticGroupData builds on first use) is
+ * counted at the next load, and data held outside the cache (such as the
+ * FacetTotals an XtfSearcher keeps) isn't counted at all.<br>
+ *
+ * Caches are registered by reader so that code holding only a reader can
+ * find them. The registry holds readers weakly, so a searcher that is 
+ * dropped without being closed doesn't keep its data forever.
+ */
+public class FieldDataCache 
+{
+  /** Data that can be held in the cache */
+  public interface Data 
+  {
+    /** 
+     * Approximate number of bytes held in memory, either on the Java heap
+     * or in direct buffers.
+     */
+    long memorySize();
+
+    /** Approximate number of bytes mapped from files */
+    long mappedSize();
+  } // interface Data
+
+  /** Builds a cache entry when it is first needed */
+  public interface Loader<T extends Data> 
+  {
+    T load() throws IOException;
+  } // interface Loader
+
+  /** The cache for each open reader (held weakly) */
+  private static Map<IndexReader, FieldDataCache> readerCaches = 
+    Collections.synchronizedMap(new WeakHashMap<IndexReader, FieldDataCache>());
+
+  /** 
+   * The reader our data comes from. Held weakly, since otherwise the
+   * registry entry would keep it alive.
+   */
+  private WeakReference<IndexReader> reader;
+
+  /** Max bytes of memory to hold, or zero for no limit */
+  private long budget;
+
+  /** All entries, in least-recently-used order */
+  private LinkedHashMap<String, Entry> entries = 
+    new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+  /**
+   * Construct a cache for data from the given reader, and register it so
+   * that {@link #forReader(IndexReader)} will find it. It remains registered
+   * until {@link #close()} is called, or the reader is garbage collected.
+   *
+   * @param reader  Reader the data will come from
+   * @param budget  Max bytes of memory to use, or zero for no limit
+   */
+  public FieldDataCache(IndexReader reader, long budget) 
+  {
+    this.reader = new WeakReference<IndexReader>(reader);
+    this.budget = budget;
+    readerCaches.put(reader, this);
+  } // constructor
+
+  /**
+   * Find the cache registered for the given reader.
+   *
+   * @return  The cache, or null if the reader doesn't belong to an open
+   *          {@link XtfSearcher}.
+   */
+  public static FieldDataCache forReader(IndexReader reader) {
+    return readerCaches.get(reader);
+  }
+
+  /**
+   * Get the data for a key, loading it if this is the first request. The
+   * key should be unique across all kinds of data, so by convention it is
+   * prefixed with the kind (e.g. "numeric|date").<br>
+   *
+   * Loading doesn't lock the whole cache; instead, if a bunch of threads
+   * come in wanting the same data, one loads it while the rest wait.
+   *
+   * @param key     Unique key for the data
+   * @param loader  Called to build the data if not cached
+   * @return        The cached or newly loaded data
+   */
+  public <T extends Data> T get(String key, Loader<T> loader)
+    throws IOException 
+  {
+    Entry ent;
+    synchronized (this) {
+      ent = entries.get(key);
+      if (ent == null) {
+        ent = new Entry(key, false);
+        entries.put(key, ent);
+      }
+    }
+
+    boolean loaded = false;
+    synchronized (ent) {
+      if (ent.data == null) {
+        ent.data = loader.load();
+        loaded = true;
+      }
+    }
+
+    if (loaded)
+      enforceBudget(ent);
+    return (T)ent.data;
+  } // get()
+
+  /**
+   * Record data for a key, replacing any previous entry. The data will be
+   * kept until the cache is closed, regardless of the budget.
+   */
+  public synchronized void put(String key, Data data) 
+  {
+    Entry ent = new Entry(key, true);
+    ent.data = data;
+    entries.put(key, ent);
+  } // put()
+
+  /**
+   * Get the keys (minus the given prefix) of all loaded entries that start
+   * with a prefix. Useful when warming a new version of an index.
+   */
+  public synchronized List<String> keys(String prefix)
+  {
+    List<String> ret = new ArrayList<String>();
+    for (Entry ent : entries.values()) {
+      if (ent.data != null && ent.key.startsWith(prefix))
+        ret.add(ent.key.substring(prefix.length()));
+    }
+    return ret;
+  } // keys()
+
+  /** Change the memory budget, releasing entries if necessary */
+  public void setBudget(long budget) {
+    synchronized (this) {
+      this.budget = budget;
+    }
+    enforceBudget(null);
+  }
+
+  /** Total bytes of memory held by all entries */
+  public synchronized long memorySize() 
+  {
+    long total = 0;
+    for (Entry ent : entries.values()) {
+      if (ent.data != null)
+        total += ent.data.memorySize();
+    }
+    return total;
+  } // memorySize()
+
+  /** Total bytes mapped from files by all entries */
+  public synchronized long mappedSize() 
+  {
+    long total = 0;
+    for (Entry ent : entries.values()) {
+      if (ent.data != null)
+        total += ent.data.mappedSize();
+    }
+    return total;
+  } // mappedSize()
+
+  /**
+   * Describe each entry and the memory it uses, one line per entry, 
+   * followed by the totals.
+   */
+  public synchronized String report() 
+  {
+    StringBuffer buf = new StringBuffer();
+    for (Entry ent : entries.values()) {
+      if (ent.data == null)
+        continue;
+      buf.append(String.format("%s: %s in memory, %s mapped%s\n",
+                               ent.key,
+                               formatSize(ent.data.memorySize()),
+                               formatSize(ent.data.mappedSize()),
+                               ent.pinned ? " (pinned)" : ""));
+    }
+    buf.append(String.format("Total: %s in memory, %s mapped",
+                             formatSize(memorySize()),
+                             formatSize(mappedSize())));
+    if (budget > 0)
+      buf.append(String.format(" (budget %s)", formatSize(budget)));
+    return buf.toString();
+  } // report()
+
+  /** Make a byte count readable */
+  static String formatSize(long bytes) 
+  {
+    if (bytes >= 10L * 1024 * 1024)
+      return (bytes / (1024 * 1024)) + " MB";
+    if (bytes >= 10L * 1024)
+      return (bytes / 1024) + " KB";
+    return bytes + " bytes";
+  } // formatSize()
+
+  /**
+   * If we're over budget, release the least recently used entries until
+   * we fit (or run out of entries that can be released.)
+   *
+   * @param keep  Entry that must not be released (e.g. one just loaded),
+   *              or null.
+   */
+  private synchronized void enforceBudget(Entry keep)
+  {
+    if (budget <= 0)
+      return;
+    long total = memorySize();
+    for (Iterator<Entry> iter = entries.values().iterator(); 
+         total > budget && iter.hasNext(); ) 
+    {
+      Entry ent = iter.next();
+      if (ent == keep || ent.pinned || ent.data == null)
+        continue;
+      long size = ent.data.memorySize();
+      Trace.warning(String.format(
+        "Field data over budget; releasing '%s' (%s)", 
+        ent.key, formatSize(size)));
+      iter.remove();
+      total -= size;
+    }
+  } // enforceBudget()
+
+  /**
+   * Release all the data and unregister the cache. Queries still using
+   * the data can continue to do so.
+   */
+  public synchronized void close() 
+  {
+    entries.clear();
+    IndexReader r = reader.get();
+    if (r != null)
+      readerCaches.remove(r);
+  } // close()
+
+  /** Keeps track of the data for one key */
+  private static class Entry 
+  {
+    final String key;
+    final boolean pinned;
+    volatile Data data;
+
+    Entry(String key, boolean pinned) {
+      this.key = key;
+      this.pinned = pinned;
+    }
+  } // class Entry
+} // class FieldDataCache
@@ -0,0 +1,119 @@
+package org.cdlib.xtf.textEngine;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.SetBasedFieldSelector;
+import org.apache.lucene.index.IndexReader;
+import org.cdlib.xtf.util.FastCache;
+
+/**
+ * Loads the stored fields of docInfo chunks for document hits, decoding
+ * only the fields that will actually be returned. Also keeps a small cache
+ * of recently loaded documents, so that repeat views of popular documents
+ * needn't go back to the stored fields file. Each cache is only good for
+ * a single version of the index, and is owned by its {@link XtfSearcher}.
+ */
+class HitFieldCache 
+{
+  /** Fields that every document hit needs, regardless of what's returned */
+  private static final Set<String> specialFields = new HashSet<String>(
+    Arrays.asList(new String[] { "key", "fileDate", "chunkCount", 
+                                 "recordNum", "subDocument" }));
+
+  /** Recently loaded documents, keyed by Lucene doc ID */
+  private FastCache<Integer, Entry> cache;
+
+  /**
+   * Construct a cache holding approximately the given number of documents.
+   */
+  HitFieldCache(int size) {
+    cache = new FastCache<Integer, Entry>(size);
+  }
+
+  /**
+   * Load the stored fields for a document, using a cached copy if one
+   * contains all the fields needed.
+   *
+   * @param reader  Reader to load from if necessary
+   * @param doc     Lucene ID of the docInfo chunk
+   * @param fields  Meta-data fields to load, or null for all fields
+   * @return        The document, containing at least the special fields
+   *                and those requested. Must not be modified.
+   */
+  Document load(IndexReader reader, int doc, Set<String> fields)
+    throws IOException 
+  {
+    Integer key = Integer.valueOf(doc);
+    Entry ent;
+    synchronized (cache) {
+      ent = cache.get(key);
+    }
+    if (ent != null && ent.covers(fields))
+      return ent.doc;
+
+    // Not found, or too few fields. Load it, including any fields that were
+    // previously cached so we don't lose ground.
+    //
+    Set<String> toLoad = null;
+    if (fields != null && (ent == null || ent.fields != null)) {
+      toLoad = new HashSet<String>(fields);
+      if (ent != null)
+        toLoad.addAll(ent.fields);
+    }
+    ent = new Entry(loadFields(reader, doc, toLoad), 
+                    toLoad == null ? null : withSpecial(toLoad));
+    synchronized (cache) {
+      cache.put(key, ent);
+    }
+    return ent.doc;
+  } // load()
+
+  /**
+   * Load the stored fields for a document, decoding only the special fields
+   * and those requested.
+   *
+   * @param reader  Reader to load from
+   * @param doc     Lucene ID of the docInfo chunk
+   * @param fields  Meta-data fields to load, or null for all fields
+   */
+  static Document loadFields(IndexReader reader, int doc, Set<String> fields)
+    throws IOException 
+  {
+    if (fields == null)
+      return reader.document(doc);
+    FieldSelector selector = new SetBasedFieldSelector(withSpecial(fields),
+                                                       Collections.EMPTY_SET);
+    return reader.document(doc, selector);
+  } // loadFields()
+
+  /** Add the special fields to a set of field names */
+  private static Set<String> withSpecial(Set<String> fields) {
+    Set<String> ret = new HashSet<String>(fields);
+    ret.addAll(specialFields);
+    return ret;
+  }
+
+  /** A loaded document along with the set of fields loaded */
+  private static class Entry 
+  {
+    Document doc;
+    Set<String> fields; // null means all fields
+
+    Entry(Document doc, Set<String> fields) {
+      this.doc = doc;
+      this.fields = fields;
+    }
+
+    /** Check whether this entry has all the given fields */
+    boolean covers(Set<String> wanted) {
+      if (fields == null)
+        return true;
+      return wanted != null && fields.containsAll(wanted);
+    }
+  } // class Entry
+} // class HitFieldCache
@@ -16,21 +16,420 @@ package org.cdlib.xtf.textEngine;
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
+import java.util.HashMap;
+import org.apache.lucene.search.FieldDoc;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.spans.FieldSpans;
 import org.apache.lucene.util.PriorityQueue;
 
+/**
+ * Queue of document hits sorted by score (and by document number to break
+ * ties), or by meta-data fields using precomputed {@link SortKeys}. Rather
+ * than holding a DocHitImpl for each entry, the documents, scores, spans,
+ * and sort keys are kept in parallel arrays. A DocHitImpl is only made
+ * when an entry is popped off the queue, i.e. when it has survived.
+ */
 class HitQueue extends PriorityQueue 
 {
-  HitQueue(int size) {
-    initialize(size);
+  private int[] docs;
+  private float[] scores;
+  private FieldSpans[] spans;
+  private int size = 0;
+  private int maxSize;
+  private boolean expandable = false;
+
+  /** Sort keys for each entry, nKeys per heap slot (null if none) */
+  private int[] ords;
+  private int nKeys = 0;
+
+  /** The field each key comes from */
+  private int[] keyFields;
+
+  /** Meaning of entries in {@link #order} other than key numbers */
+  private static final int BY_SCORE = -1;
+  private static final int BY_DOC = -2;
+
+  /**
+   * What to compare, in order: a key number (into {@link #ords}), 
+   * BY_SCORE (higher first), or BY_DOC (lower first, which settles it.)
+   */
+  private int[] order = { BY_SCORE, BY_DOC };
+
+  /** Sort fields, their keys (null for score or doc), and key settings */
+  private SortField[] fields;
+  private SortKeys[] fieldKeys;
+  private boolean[] flipEmpty;
+  private boolean[] reverse;
+
+  /** Document whose keys were last put in slot 0, or -1 */
+  private int preparedDoc = -1;
+
+  /** Where to get a DocHitImpl for each document popped (may be null) */
+  private HitPool pool;
+
+  /** Make a queue that sorts by score */
+  HitQueue(int size, HitPool pool) {
+    maxSize = size;
+    this.pool = pool;
+    allocate(size);
+  }
+
+  /**
+   * Make a queue that sorts by the given fields, each of which must be 
+   * either score, document, or a meta-data field with sort keys.
+   *
+   * @param size      Number of hits to keep
+   * @param fields    Fields to sort by, in priority order
+   * @param fieldKeys Keys for each meta-data field (null for the others)
+   * @param pool      Where to get DocHitImpls from (may be null)
+   */
+  HitQueue(int size, SortField[] fields, SortKeys[] fieldKeys, HitPool pool)
+  {
+    this.fields = fields;
+    this.fieldKeys = fieldKeys;
+    this.pool = pool;
+    flipEmpty = new boolean[fields.length];
+    reverse = new boolean[fields.length];
+    keyFields = new int[fields.length];
+
+    // Work out the order of comparisons. Keys are only needed up to the
+    // first document comparison, since that's never a tie.
+    //
+    int nOrder = 0;
+    int[] newOrder = new int[fields.length + 1];
+    for (int i = 0; i < fields.length; i++) 
+    {
+      if (fieldKeys[i] != null) {
+        flipEmpty[i] = fields[i].getField().endsWith(":flipEmpty");
+        reverse[i] = fields[i].getReverse();
+        keyFields[nKeys] = i;
+        newOrder[nOrder++] = nKeys++;
+      }
+      else if (fields[i].getType() == SortField.SCORE)
+        newOrder[nOrder++] = BY_SCORE;
+      else {
+        assert fields[i].getType() == SortField.DOC;
+        break;
+      }
+    }
+    newOrder[nOrder++] = BY_DOC;
+    order = new int[nOrder];
+    System.arraycopy(newOrder, 0, order, 0, nOrder);
+
+    maxSize = size;
+    allocate(size);
+  }
+
+  /** Allocate (or re-allocate) the heap arrays, keeping existing entries */
+  private void allocate(int newMaxSize) 
+  {
+    int[] newDocs = new int[newMaxSize + 1];
+    float[] newScores = new float[newMaxSize + 1];
+    FieldSpans[] newSpans = new FieldSpans[newMaxSize + 1];
+    int[] newOrds = (nKeys == 0) ? null : new int[(newMaxSize + 1) * nKeys];
+    if (docs != null) {
+      System.arraycopy(docs, 0, newDocs, 0, size + 1);
+      System.arraycopy(scores, 0, newScores, 0, size + 1);
+      System.arraycopy(spans, 0, newSpans, 0, size + 1);
+      if (ords != null)
+        System.arraycopy(ords, 0, newOrds, 0, (size + 1) * nKeys);
+    }
+    docs = newDocs;
+    scores = newScores;
+    spans = newSpans;
+    ords = newOrds;
+    maxSize = newMaxSize;
+  } // allocate()
+
+  public void setExpandable() {
+    expandable = true;
   }
 
-  protected final boolean lessThan(Object a, Object b) {
+  /** Compares two hits (ScoreDocs) in the same order as the entries */
+  protected final boolean lessThan(Object a, Object b) 
+  {
     ScoreDoc hitA = (ScoreDoc)a;
     ScoreDoc hitB = (ScoreDoc)b;
-    if (hitA.score == hitB.score)
-      return hitA.doc > hitB.doc;
-    else
-      return hitA.score < hitB.score;
+    for (int k = 0; k < order.length; k++) 
+    {
+      int key = order[k];
+      if (key >= 0) {
+        int oa = ord(key, hitA.doc);
+        int ob = ord(key, hitB.doc);
+        if (oa != ob)
+          return oa > ob;
+      }
+      else if (key == BY_SCORE) {
+        if (hitA.score != hitB.score)
+          return hitA.score < hitB.score;
+      }
+      else
+        return hitA.doc > hitB.doc;
+    }
+    return false;
+  } // lessThan()
+
+  /** Calculate the given sort key for a document */
+  private int ord(int key, int doc) 
+  {
+    int field = keyFields[key];
+    int ord = fieldKeys[field].sortOrd(doc, flipEmpty[field]);
+    return reverse[field] ? ~ord : ord;
+  } // ord()
+
+  /**
+   * Tells whether the entry in slot i sorts after the one in slot j (and
+   * thus would be dropped first.) Same order as {@link #lessThan}.
+   */
+  private boolean slotLessThan(int i, int j) 
+  {
+    for (int k = 0; k < order.length; k++) 
+    {
+      int key = order[k];
+      if (key >= 0) {
+        int oi = ords[i * nKeys + key];
+        int oj = ords[j * nKeys + key];
+        if (oi != oj)
+          return oi > oj;
+      }
+      else if (key == BY_SCORE) {
+        if (scores[i] != scores[j])
+          return scores[i] < scores[j];
+      }
+      else
+        return docs[i] > docs[j];
+    }
+    return false;
+  } // slotLessThan()
+
+  /**
+   * Put a hit into slot 0 (which is otherwise unused), so it can be 
+   * compared with the entries.
+   */
+  private void prepare(int doc, float score) 
+  {
+    docs[0] = doc;
+    scores[0] = score;
+    if (nKeys == 0 || doc == preparedDoc)
+      return;
+    for (int key = 0; key < nKeys; key++)
+      ords[key] = ord(key, doc);
+    preparedDoc = doc;
+  } // prepare()
+
+  /**
+   * Checks whether a hit with the given document and score would be kept
+   * by {@link #insert(int, float, FieldSpans)}, without having to make 
+   * anything for it.
+   */
+  final boolean isCompetitive(int doc, float score) 
+  {
+    if (expandable || size < maxSize)
+      return true;
+    if (size == 0)
+      return false;
+    prepare(doc, score);
+    return !slotLessThan(0, 1);
+  } // isCompetitive()
+
+  /**
+   * Add a hit to the queue, if it is competitive.
+   *
+   * @param doc     Document number of the hit
+   * @param score   Score of the hit
+   * @param spans   Spans for the hit (may be null)
+   * @return        true if added, false if not competitive.
+   */
+  final boolean insert(int doc, float score, FieldSpans spans) 
+  {
+    if (!isCompetitive(doc, score))
+      return false;
+    prepare(doc, score);
+
+    // If there's room (or we can make some), add at the bottom.
+    if (size < maxSize || expandable) 
+    {
+      if (size == maxSize)
+        allocate(Math.max(maxSize + 10, maxSize * 3 / 2));
+      size++;
+      copySlot(0, size);
+      this.spans[size] = spans;
+      upHeap();
+    }
+    
+    // Otherwise, replace the least hit.
+    else {
+      copySlot(0, 1);
+      this.spans[1] = spans;
+      downHeap();
+    }
+    return true;
+  } // insert()
+
+  /** Add a hit, which must be a DocHitImpl, if it is competitive. */
+  public boolean insert(Object element) {
+    DocHitImpl hit = (DocHitImpl)element;
+    return insert(hit.doc, hit.score, hit.fieldSpans());
   }
-}
+
+  public void put(Object element) {
+    if (!insert(element))
+      throw new ArrayIndexOutOfBoundsException("HitQueue full");
+  }
+
+  /** Returns the least hit, as a bare ScoreDoc. */
+  public Object top() {
+    if (size == 0)
+      return null;
+    return new ScoreDoc(docs[1], scores[1]);
+  }
+
+  /** Removes the least hit, and gets a DocHitImpl for it. */
+  public Object pop() 
+  {
+    if (size == 0)
+      return null;
+
+    DocHitImpl hit = (pool != null) ? pool.get(docs[1], scores[1])
+                     : new DocHitImpl(docs[1], scores[1]);
+    if (hit.fieldSpans() == null)
+      hit.setFieldSpans(spans[1]);
+
+    copySlot(size, 1);
+    spans[1] = spans[size];
+    spans[size] = null; // permit GC of spans
+    size--;
+    downHeap();
+    return hit;
+  } // pop()
+
+  /**
+   * Record the sort values for the given hit in its 'fields' array, for
+   * later comparison with hits from a different index. 
+   */
+  void fillSortValues(FieldDoc hit) 
+  {
+    if (fields == null)
+      return;
+    Comparable[] values = new Comparable[fields.length];
+    for (int i = 0; i < fields.length; i++) 
+    {
+      if (fieldKeys[i] != null)
+        values[i] = fieldKeys[i].value(hit.doc);
+      else if (fields[i].getType() == SortField.SCORE)
+        values[i] = new Float(hit.score);
+      else
+        values[i] = new Integer(hit.doc);
+    }
+    hit.fields = values;
+  } // fillSortValues()
+
+  public void adjustTop() {
+    downHeap();
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public void clear() {
+    for (int i = 0; i <= size; i++)
+      spans[i] = null;
+    size = 0;
+  }
+
+  private void upHeap() 
+  {
+    int i = size;
+    int j = i >>> 1;
+    while (j > 0 && slotLessThan(i, j)) {
+      swap(i, j);
+      i = j;
+      j = j >>> 1;
+    }
+  } // upHeap()
+
+  private void downHeap() 
+  {
+    int i = 1;
+    while (true) 
+    {
+      int j = i << 1; // find smaller child
+      if (j > size)
+        break;
+      int k = j + 1;
+      if (k <= size && slotLessThan(k, j))
+        j = k;
+      if (!slotLessThan(j, i))
+        break;
+      swap(i, j);
+      i = j;
+    }
+  } // downHeap()
+
+  /** Copy the document, score, and keys (but not spans) between slots */
+  private void copySlot(int from, int to) 
+  {
+    docs[to] = docs[from];
+    scores[to] = scores[from];
+    if (nKeys > 0)
+      System.arraycopy(ords, from * nKeys, ords, to * nKeys, nKeys);
+  } // copySlot()
+
+  private void swap(int i, int j) 
+  {
+    int doc = docs[i];
+    docs[i] = docs[j];
+    docs[j] = doc;
+
+    float score = scores[i];
+    scores[i] = scores[j];
+    scores[j] = score;
+
+    FieldSpans span = spans[i];
+    spans[i] = spans[j];
+    spans[j] = span;
+
+    for (int k = 0; k < nKeys; k++) {
+      int ord = ords[i * nKeys + k];
+      ords[i * nKeys + k] = ords[j * nKeys + k];
+      ords[j * nKeys + k] = ord;
+    }
+  } // swap()
+
+  /**
+   * Hands out a single DocHitImpl per document, so that a document kept by
+   * several queues (say, the main hits and a facet group or two) is only
+   * loaded and finished once.
+   */
+  static class HitPool 
+  {
+    private HashMap<Integer, DocHitImpl> hits = 
+      new HashMap<Integer, DocHitImpl>();
+
+    /** Get the hit for a document, making it if necessary */
+    synchronized DocHitImpl get(int doc, float score) 
+    {
+      DocHitImpl hit = hits.get(doc);
+      if (hit == null) {
+        hit = new DocHitImpl(doc, score);
+        hits.put(doc, hit);
+      }
+      return hit;
+    } // get()
+
+    /** 
+     * Get the hit already handed out for the given one's document, or if
+     * there is none, record this one as the hit for it.
+     */
+    synchronized DocHitImpl share(DocHitImpl hit) 
+    {
+      DocHitImpl prev = hits.get(hit.doc);
+      if (prev != null)
+        return prev;
+      hits.put(hit.doc, hit);
+      return hit;
+    } // share()
+  } // class HitPool
+} // class HitQueue
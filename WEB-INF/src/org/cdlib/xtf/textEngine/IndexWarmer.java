@@ -31,9 +31,13 @@ package org.cdlib.xtf.textEngine;
  */
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.apache.lucene.index.Term;
 import org.apache.lucene.store.Directory;
+import org.cdlib.xtf.textEngine.facet.FRBRData;
 import org.cdlib.xtf.util.Path;
 import org.cdlib.xtf.util.Trace;
 
@@ -47,9 +51,10 @@ import org.cdlib.xtf.util.Trace;
 public class IndexWarmer
 {
   private String xtfHome;
-  private HashMap<String, Entry> entries  = new HashMap();
+  private ConcurrentHashMap<String, Entry> entries  = new ConcurrentHashMap();
   private BgThread bgThread;
   private int updateInterval;
+  private volatile long fieldDataBudget = 0;
   
   /**
    * Construct the warmer and start up the background warming thread.
@@ -73,8 +78,25 @@ public class IndexWarmer
     }
   }
   
+  /**
+   * Set the max number of bytes of memory each index may use for field data
+   * (boost sets, numeric columns, facet and FRBR data.) Applies to indexes
+   * already open as well as those warmed later.
+   *
+   * @param budget  Max bytes, or zero for no limit
+   */
+  public void setFieldDataBudget(long budget)
+  {
+    fieldDataBudget = budget;
+    for (Entry ent : entries.values()) {
+      XtfSearcher searcher = ent.curSearcher;
+      if (searcher != null)
+        searcher.setFieldDataBudget(budget);
+    }
+  } // setFieldDataBudget()
+
   /** Shuts down the background thread, if it's running. */
-  public void close()
+  public synchronized void close()
   {
     if (bgThread != null)
     {
@@ -82,26 +104,73 @@ public class IndexWarmer
       bgThread.interrupt();
     }
     
-    // Close all open indexes.
+    // Close all open indexes. Clear out each searcher as we go, so that
+    // nobody tries to pin one we've already released.
+    //
     for (Entry e : entries.values()) 
     {
-      if (e.curSearcher != null) {
+      e.closed = true;
+      XtfSearcher searcher = e.curSearcher;
+      e.curSearcher = null;
+      if (searcher != null) {
         try {
-          e.curSearcher.close();
+          searcher.decRef();
         } catch (IOException e1) {
           // ignore close problems
         }
       }
       if (e.newSearcher != null) {
         try {
-          e.curSearcher.close();
+          e.newSearcher.close();
         } catch (IOException e1) {
           // ignore close problems
         }
+        e.newSearcher = null;
       }
     }
+    entries.clear();
   }
   
+  /**
+   * Get a searcher for the given index path, and pin it so it stays open
+   * until the caller is done and calls {@link XtfSearcher#decRef()}.<br>
+   *
+   * Normally no locks are taken: the current searcher of a warm index is
+   * published atomically when the index is flipped, and the old one is
+   * only closed after the last query using it has released it. Only if
+   * the index hasn't been opened yet do we fall back to
+   * {@link #getSearcher(String)}.
+   */
+  public XtfSearcher acquireSearcher(String indexPath)
+    throws IOException
+  {
+    // Fast path: the index is already warm.
+    if (Thread.currentThread() != bgThread)
+    {
+      Entry ent = entries.get(Path.resolveRelOrAbs(xtfHome, indexPath));
+      if (ent != null) 
+      {
+        // If the searcher is released just as we grab it, it has been 
+        // replaced by a new one; just try again.
+        //
+        while (true) {
+          XtfSearcher searcher = ent.curSearcher;
+          if (searcher == null || ent.closed)
+            break;
+          if (searcher.incRef())
+            return searcher;
+        }
+      }
+    }
+    
+    // Slow path: open the index in the foreground.
+    while (true) {
+      XtfSearcher searcher = getSearcher(indexPath);
+      if (searcher.incRef())
+        return searcher;
+    }
+  }
+
   /**
    * Get a searcher for the given index path. If there isn't one already,
    * we create one in the foreground (we don't return til it's ready).
@@ -149,6 +218,7 @@ public class IndexWarmer
       else {
         // Read the index and ancillary files (plural/accent map, spelling, etc.)
         ent.curSearcher = new XtfSearcher(indexPath, 0); // disable update check
+        ent.curSearcher.setFieldDataBudget(fieldDataBudget);
       }
             
       if (ent.curSearcher == null)
@@ -248,6 +318,7 @@ public class IndexWarmer
         
         File indexPath;
         Directory dir;
+        XtfSearcher oldSearcher;
 
         // For new-style (rotating) warming, we're going to start with the
         // pending directory. Later, after it's warm we'll rename it and flip.
@@ -265,7 +336,92 @@ public class IndexWarmer
         
         // Okay, load up the index along with ancillary files. Disable its update check.
         ent.newSearcher = new XtfSearcher(indexPath.toString(), dir, 0);
-        
+        ent.newSearcher.setFieldDataBudget(warmer.fieldDataBudget);
+
+        // Build sort keys for every field that was sorted on in the old
+        // version, so the first queries after the flip don't have to.
+        //
+        if (ent.curSearcher != null)
+        {
+          for (String field : ent.curSearcher.sortKeyFields()) {
+            try {
+              ent.newSearcher.sortKeys(field);
+            }
+            catch (Exception e) {
+              Trace.warning(String.format("Unable to build sort keys for field '%s': %s", field, e.toString()));
+            }
+          }
+        }
+
+        // Count each facet over all documents, for browse queries. This is
+        // done for the facet fields recorded by the indexer, plus any others
+        // that were browsed in the old version.
+        //
+        Set<String> facetFields = XtfSearcher.readFacetFields(indexPath.toString());
+        if (ent.curSearcher != null)
+          facetFields.addAll(ent.curSearcher.facetTotalsFields());
+        Term[] allDocsTerms = new Term[] { new Term("docInfo", "1") };
+        for (String field : facetFields) {
+          try {
+            ent.newSearcher.facetTotals(field, allDocsTerms);
+          }
+          catch (Exception e) {
+            Trace.warning(String.format("Unable to count facet totals for field '%s': %s", field, e.toString()));
+          }
+        }
+
+        // Correlate each boost set used in the old version with the new
+        // document IDs.
+        //
+        if (ent.curSearcher != null && ent.curSearcher.indexReader() != null)
+        {
+          for (String[] set : BoostSet.cachedSets(ent.curSearcher.indexReader())) {
+            try {
+              BoostSet.getCachedSet(ent.newSearcher.indexReader(), new File(set[0]), set[1]);
+            }
+            catch (Exception e) {
+              Trace.warning(String.format("Unable to load boost set '%s': %s", set[0], e.toString()));
+            }
+          }
+        }
+
+        // Load value columns for numeric fields that were range-queried in
+        // the old version. Those written by the indexer are already mapped.
+        //
+        if (ent.curSearcher != null && ent.curSearcher.indexReader() != null)
+        {
+          for (String field : NumericFieldData.cachedFields(ent.curSearcher.indexReader())) {
+            try {
+              NumericFieldData.getCachedData(ent.newSearcher.indexReader(), field);
+            }
+            catch (Exception e) {
+              Trace.warning(String.format("Unable to load numeric data for field '%s': %s", field, e.toString()));
+            }
+          }
+        }
+
+        // Cluster FRBR works for each set of fields that was grouped on in
+        // the old version.
+        //
+        if (ent.curSearcher != null && ent.curSearcher.indexReader() != null)
+        {
+          for (String[] fields : FRBRData.cachedFieldSets(ent.curSearcher.indexReader())) {
+            try {
+              FRBRData.getCachedTags(ent.newSearcher.indexReader(), fields).buildWorkIds();
+            }
+            catch (Exception e) {
+              Trace.warning(String.format("Unable to cluster FRBR works for fields %s: %s", Arrays.asList(fields), e.toString()));
+            }
+          }
+        }
+
+        // Report how much memory the field data is taking up.
+        FieldDataCache fieldData = ent.newSearcher.fieldData();
+        Trace.info(String.format("Field data: %s in memory, %s mapped",
+                                 FieldDataCache.formatSize(fieldData.memorySize()),
+                                 FieldDataCache.formatSize(fieldData.mappedSize())));
+        Trace.debug(fieldData.report());
+
         // Validate this new index. If it fails, don't flip.
         if (validateOk)
         {
@@ -303,13 +459,24 @@ public class IndexWarmer
           }
           
           // Finally record the flip in the entry, so that future requests will
-          // pick up the new Searcher.
+          // pick up the new Searcher. The old one will be closed when the
+          // last query using it releases it.
           //
+          oldSearcher = ent.curSearcher;
           ent.curSearcher = ent.newSearcher;
           ent.newSearcher = null;
           Trace.untab();
           Trace.info("Done.");
         }
+        
+        // Release our reference to the old searcher.
+        if (oldSearcher != null) {
+          try {
+            oldSearcher.decRef();
+          } catch (IOException e) {
+            Trace.warning(String.format("Error closing old searcher for index '%s': %s", ent.indexPath, e.toString()));
+          }
+        }
       } 
       catch (Throwable exc) 
       {
@@ -320,6 +487,16 @@ public class IndexWarmer
         ent.exceptionTime = System.currentTimeMillis();
         Trace.untab();
         Trace.error(String.format("Error warming index '%s': %s", ent.indexPath, exc.toString()));
+        
+        // Don't leave a half-warmed searcher (and its field data) open.
+        if (ent.newSearcher != null) {
+          try {
+            ent.newSearcher.close();
+          } catch (IOException e) {
+            // ignore close problems
+          }
+          ent.newSearcher = null;
+        }
       }
     }
     
@@ -335,9 +512,11 @@ public class IndexWarmer
     File sparePath;
     File newPath;
     
-    XtfSearcher curSearcher;
+    volatile XtfSearcher curSearcher;
     XtfSearcher newSearcher;
     
+    volatile boolean closed;
+    
     Throwable   exception;
     long        exceptionTime;
 
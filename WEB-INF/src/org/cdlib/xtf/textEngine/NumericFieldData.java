@@ -35,63 +35,143 @@ package org.cdlib.xtf.textEngine;
  * was made possible by a grant from the Andrew W. Mellon Foundation,
  * as part of the Melvyl Recommender Project.
  */
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.WeakHashMap;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.index.TermEnum;
-import org.apache.lucene.util.IntList;
-import org.apache.lucene.util.LongList;
 
 /**
  * Holds numeric data for a field from a Lucene index. Data is cached for a
- * given index reader, to speed access after the initial load.
+ * given index reader (see {@link FieldDataCache}), to speed access after
+ * the initial load.<br>
+ *
+ * The data is laid out in "slots". If most documents have a value, there
+ * is a slot for every document, so a document's slot is simply its ID.
+ * Otherwise (e.g. in a chunked index, where most documents are chunks
+ * with no value) there is a slot only for each document that has a value,
+ * plus a sorted list of their IDs.<br>
+ *
+ * If no document has more than one value, each slot holds the value (if
+ * any) directly. Otherwise, each slot has an offset into a list of values,
+ * which are kept in ascending order within the document. The last value
+ * for each document is stored complemented (and thus negative), so the 
+ * values can be walked without going back to the offsets.<br>
+ *
+ * The column lives outside the Java heap: either mapped from a file 
+ * written at indexing time, or (if there is no such file for this version
+ * of the index) built from the field's terms into a direct buffer.
  *
  * @author Martin Haye
  */
-public class NumericFieldData 
+public class NumericFieldData implements FieldDataCache.Data
 {
-  /** Cached data. If the reader goes away, our cache will too. */
-  private static WeakHashMap cache = new WeakHashMap();
+  /** Value recorded for documents that have no value for the field */
+  public static final long NO_VALUE = -1;
+
+  /** Prefix for our keys in the {@link FieldDataCache} */
+  private static final String CACHE_PREFIX = "numeric|";
+
+  /** Marks the start of a numeric data file; the last byte is the format */
+  private static final int FILE_MAGIC = 0x584e4433; // "XND3"
+
+  /** Size of the header at the start of a numeric data file */
+  private static final int FILE_HEADER_SIZE = 48;
+
+  /** Header flag marking data that only has slots for documents with values */
+  private static final int FILE_FLAG_SPARSE = 1;
+
+  /**
+   * Single-valued: the value for each slot, or NO_VALUE. 
+   * Multi-valued: the values for all documents, in order by document.
+   */
+  private LongBuffer values;
+
+  /** Multi-valued only: index of first value for each slot (plus one more) */
+  private IntBuffer offsets;
+
+  /** Sparse only: the document ID for each slot, in ascending order */
+  private IntBuffer docs;
+
+  /** One more than the largest document ID covered by the data */
+  private int maxDoc;
+
+  /** Number of documents that have a value */
+  private int nDocs;
 
-  /** Document IDs containing values for the field */
-  private IntList docs = new IntList();
+  /** Total number of values for all documents */
+  private int nValues;
 
-  /** Associated numeric value for each document */
-  private LongList values = new LongList();
+  /** Smallest and largest values, or NO_VALUE if there are none */
+  private long minValue = NO_VALUE;
+  private long maxValue = NO_VALUE;
+
+  /** Whether the values are mapped from a file */
+  private boolean isMapped;
 
   /**
-   * Retrieves tags for a given field from a given reader. Maintains a cache
-   * so that if the same fields are requested again for this reader, we don't have
-   * to re-read the tags.
+   * Retrieves data for a given field from a given reader. If the reader 
+   * belongs to an {@link XtfSearcher}, the data is kept in its 
+   * {@link FieldDataCache} so that if the same field is requested again for
+   * this reader, we don't have to re-read the terms.
    *
-   * @param reader  Where to read the tags from
+   * @param reader  Where to read the data from
    * @param field   Which field to read
-   * @return        FRBR tags for the specified field
+   * @return        Numeric data for the specified field
    */
-  public static NumericFieldData getCachedData(IndexReader reader, String field)
+  public static NumericFieldData getCachedData(final IndexReader reader, 
+                                               final String field)
     throws IOException 
   {
-    // See if we have a cache for this reader.
-    HashMap readerCache = (HashMap)cache.get(reader);
-    if (readerCache == null) {
-      readerCache = new HashMap();
-      cache.put(reader, readerCache);
-    }
+    FieldDataCache cache = FieldDataCache.forReader(reader);
+    if (cache == null)
+      return new NumericFieldData(reader, field);
+    return cache.get(CACHE_PREFIX + field, 
+      new FieldDataCache.Loader<NumericFieldData>() {
+        public NumericFieldData load() throws IOException {
+          return new NumericFieldData(reader, field);
+        }
+      });
+  } // getCachedData()
 
-    // Now see if we've already read data for this field.
-    NumericFieldData data = (NumericFieldData)readerCache.get(field);
-    if (data == null) 
-    {
-      // Don't have cached data, so read and remember it.
-      data = new NumericFieldData(reader, field);
-      readerCache.put(field, data);
-    }
+  /**
+   * Records data for a given field and reader (typically mapped from a
+   * file when the index is opened), so that {@link #getCachedData} will
+   * find it rather than reading the terms.
+   *
+   * @param cache   Cache for the reader the data goes with
+   * @param field   Field the data is for
+   * @param data    The data to record
+   */
+  public static void putCachedData(FieldDataCache cache, String field,
+                                   NumericFieldData data) 
+  {
+    cache.put(CACHE_PREFIX + field, data);
+  } // putCachedData()
 
-    return data;
-  } // getCachedTags()
+  /**
+   * Get a list of the fields that have data cached for the given reader.
+   * Useful when warming a new version of an index.
+   */
+  public static List<String> cachedFields(IndexReader reader)
+  {
+    FieldDataCache cache = FieldDataCache.forReader(reader);
+    if (cache == null)
+      return new ArrayList<String>();
+    return cache.keys(CACHE_PREFIX);
+  } // cachedFields()
 
   /** Parse the numeric characters of a string, ignoring all non-digits */
   public static long parseVal(String str) 
@@ -109,9 +189,119 @@ public class NumericFieldData
 
   /**
    * Load data from the given field of the reader, and parse the values as
-   * numbers.
+   * numbers. Makes two passes through the terms: the first counts the
+   * values for each document, and the second records them.
    */
-  private NumericFieldData(IndexReader reader, String field)
+  public NumericFieldData(IndexReader reader, String field)
+    throws IOException 
+  {
+    maxDoc = reader.maxDoc();
+    field = field.intern(); // so we can compare with term fields below
+
+    // First pass: count the values for each document, and find their
+    // extent.
+    //
+    final int[] counts = new int[maxDoc];
+    final long[] extent = { Long.MAX_VALUE, NO_VALUE };
+    forEachValue(reader, field, new ValueHandler() {
+      public void handle(int doc, long value) {
+        counts[doc]++;
+        extent[0] = Math.min(extent[0], value);
+        extent[1] = Math.max(extent[1], value);
+      }
+    });
+    if (extent[1] != NO_VALUE) {
+      minValue = extent[0];
+      maxValue = extent[1];
+    }
+
+    int maxCount = 0;
+    for (int doc = 0; doc < maxDoc; doc++) {
+      if (counts[doc] > 0)
+        ++nDocs;
+      nValues += counts[doc];
+      maxCount = Math.max(maxCount, counts[doc]);
+    }
+
+    // Only give every document a slot if at least half of them have a 
+    // value (and there aren't too many to address.)
+    //
+    boolean multiValued = maxCount > 1;
+    boolean sparse = nDocs * 2L < maxDoc || 
+                     (!multiValued && maxDoc > MAX_LONGS) ||
+                     (multiValued && maxDoc >= MAX_INTS);
+    int nSlots = sparse ? nDocs : maxDoc;
+    if (sparse)
+      docs = allocateInts(nSlots);
+    if (multiValued)
+      offsets = allocateInts(nSlots + 1L);
+
+    // Assign the slots, and convert the counts to cursors for recording 
+    // the values.
+    //
+    int slot = 0;
+    int pos = 0;
+    for (int doc = 0; doc < maxDoc; doc++) 
+    {
+      int count = counts[doc];
+      if (sparse && count == 0)
+        continue;
+      if (sparse)
+        docs.put(slot, doc);
+      if (multiValued)
+        offsets.put(slot, pos);
+      counts[doc] = multiValued ? pos : slot;
+      pos += count;
+      ++slot;
+    }
+    if (multiValued)
+      offsets.put(nSlots, pos);
+
+    // Second pass: record the values.
+    values = allocateLongs(multiValued ? nValues : nSlots);
+    if (!multiValued) {
+      for (int i = 0; i < nSlots; i++)
+        values.put(i, NO_VALUE);
+    }
+    forEachValue(reader, field, new ValueHandler() {
+      public void handle(int doc, long value) {
+        values.put(counts[doc]++, value);
+      }
+    });
+    if (!multiValued)
+      return;
+
+    // Sort the values within each document (there are only a few, so
+    // insertion sort is fine), and mark the last.
+    //
+    for (slot = 0; slot < nSlots; slot++) 
+    {
+      int start = offsets.get(slot);
+      int end = offsets.get(slot + 1);
+      if (start == end)
+        continue;
+      for (int i = start + 1; i < end; i++) {
+        long value = values.get(i);
+        int j;
+        for (j = i; j > start && values.get(j - 1) > value; j--)
+          values.put(j, values.get(j - 1));
+        values.put(j, value);
+      }
+      values.put(end - 1, ~values.get(end - 1));
+    }
+  } // constructor
+
+  /** Receives values from {@link #forEachValue} */
+  private interface ValueHandler {
+    void handle(int doc, long value);
+  }
+
+  /**
+   * Run through all the terms of a field, parsing each one as a number
+   * and passing it to the handler for every document containing it.
+   */
+  private static void forEachValue(IndexReader reader, String field,
+                                   ValueHandler handler)
     throws IOException 
   {
     TermDocs termDocs = reader.termDocs();
@@ -119,7 +309,6 @@ public class NumericFieldData
 
     try 
     {
-      // First, collect all the doc/value pairs.
       if (termEnum.term() == null)
         throw new IOException("no terms in field " + field);
 
@@ -142,61 +331,294 @@ public class NumericFieldData
         long value = parseVal(termText);
 
         termDocs.seek(termEnum);
-        while (termDocs.next()) {
-          int doc = termDocs.doc();
-          docs.add(doc);
-          values.add(value);
-        }
+        while (termDocs.next())
+          handler.handle(termDocs.doc(), value);
       } while (termEnum.next());
-
-      // Save space.
-      docs.compact();
-      values.compact();
-
-      // Now sort by document ID, and apply the same ordering to the values,
-      // to keep them in sync.
-      //
-      int[] map = docs.calcSortMap();
-      docs.remap(map);
-      values.remap(map);
-
-      // Check to be sure no documents have multiple values.
-      for (int i = 1; i < docs.size(); i++) 
-      {
-        if (docs.get(i - 1) == docs.get(i)) {
-          throw new IOException(
-            "A document contains more than one value in numeric field '" +
-            field + "': values " + values.get(i - 1) + " and " + values.get(i));
-        }
-      } // for
     } // try
     finally {
       termEnum.close();
       termDocs.close();
     }
-  } // constructor
+  } // forEachValue()
+
+  /** Largest number of ints or longs a single buffer can hold */
+  private static final int MAX_INTS = Integer.MAX_VALUE / 4;
+  private static final int MAX_LONGS = Integer.MAX_VALUE / 8;
+
+  /** Allocate a buffer of longs outside the Java heap */
+  private static LongBuffer allocateLongs(long count)
+    throws IOException 
+  {
+    if (count > MAX_LONGS)
+      throw new IOException("Too many numeric values (" + count + ")");
+    return ByteBuffer.allocateDirect((int)count * 8).
+           order(ByteOrder.nativeOrder()).asLongBuffer();
+  }
+
+  /** Allocate a buffer of ints outside the Java heap */
+  private static IntBuffer allocateInts(long count)
+    throws IOException 
+  {
+    if (count > MAX_INTS)
+      throw new IOException("Too many numeric data entries (" + count + ")");
+    return ByteBuffer.allocateDirect((int)count * 4).
+           order(ByteOrder.nativeOrder()).asIntBuffer();
+  }
+
+  /** Private constructor, used when mapping data from a file */
+  private NumericFieldData() {
+  }
+
+  /**
+   * Get the file that numeric data for the given field is stored in.
+   *
+   * @param indexPath   Directory containing the Lucene index
+   * @param field       Name of the numeric field
+   */
+  public static File dataFile(String indexPath, String field) {
+    return new File(new File(indexPath, "numericData"), field + ".dat");
+  }
+
+  /**
+   * Write out the data to a file, so that it can later be mapped by
+   * {@link #mapFile(File, long)}. The document IDs (if sparse) and offsets
+   * (if multi-valued) come first, each padded so the values will be 
+   * properly aligned for mapping.
+   *
+   * @param file          File to write to
+   * @param indexVersion  Version of the index the data was read from
+   */
+  public void writeFile(File file, long indexVersion)
+    throws IOException 
+  {
+    DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(file)));
+    try 
+    {
+      out.writeInt(FILE_MAGIC);
+      out.writeLong(indexVersion);
+      out.writeInt(nDocs);
+      out.writeInt(nValues);
+      out.writeInt(maxDoc);
+      out.writeLong(minValue);
+      out.writeLong(maxValue);
+      out.writeInt((docs != null) ? FILE_FLAG_SPARSE : 0);
+      out.writeInt(0);
+      writeInts(out, docs);
+      writeInts(out, offsets);
+      for (int i = 0; i < values.capacity(); i++)
+        out.writeLong(values.get(i));
+    }
+    finally {
+      out.close();
+    }
+  } // writeFile()
+
+  /** Write out a buffer of ints (if any), padded to an even number */
+  private static void writeInts(DataOutputStream out, IntBuffer ints)
+    throws IOException 
+  {
+    if (ints == null)
+      return;
+    for (int i = 0; i < ints.capacity(); i++)
+      out.writeInt(ints.get(i));
+    if ((ints.capacity() & 1) != 0)
+      out.writeInt(0);
+  } // writeInts()
+
+  /**
+   * Map numeric data from a file written by {@link #writeFile(File, long)}.
+   *
+   * @param file          File to read
+   * @param indexVersion  Version of the index the data must match
+   * @return              The data, or null if it was written for a 
+   *                      different version of the index, or in an older
+   *                      (or newer) format than this one.
+   */
+  public static NumericFieldData mapFile(File file, long indexVersion)
+    throws IOException 
+  {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try 
+    {
+      FileChannel channel = raf.getChannel();
+      ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, 
+                                   channel.size());
+      int magic = buf.getInt(0);
+      if ((magic & ~0xff) != (FILE_MAGIC & ~0xff))
+        throw new IOException("Not a numeric data file: " + file);
+      if (magic != FILE_MAGIC)
+        return null;
+      if (buf.getLong(4) != indexVersion)
+        return null;
+
+      NumericFieldData data = new NumericFieldData();
+      data.nDocs = buf.getInt(12);
+      data.nValues = buf.getInt(16);
+      data.maxDoc = buf.getInt(20);
+      data.minValue = buf.getLong(24);
+      data.maxValue = buf.getLong(32);
+      data.isMapped = true;
+      boolean sparse = (buf.getInt(40) & FILE_FLAG_SPARSE) != 0;
+
+      int pos = FILE_HEADER_SIZE;
+      int nSlots = sparse ? data.nDocs : data.maxDoc;
+      int nLongs = nSlots;
+      if (sparse) {
+        data.docs = sliceInts(buf, pos, nSlots);
+        pos += ((nSlots + 1) & ~1) * 4;
+      }
+      if (data.nValues > data.nDocs) {
+        data.offsets = sliceInts(buf, pos, nSlots + 1);
+        pos += ((nSlots + 2) & ~1) * 4;
+        nLongs = data.nValues;
+      }
+      buf.position(pos);
+      buf.limit(pos + nLongs * 8);
+      data.values = buf.slice().asLongBuffer();
+      return data;
+    }
+    finally {
+      raf.close();
+    }
+  } // mapFile()
+
+  /** Get a view of some ints within a mapped buffer */
+  private static IntBuffer sliceInts(ByteBuffer buf, int pos, int count) 
+  {
+    ByteBuffer dup = buf.duplicate();
+    dup.position(pos);
+    dup.limit(pos + count * 4);
+    return dup.slice().asIntBuffer();
+  }
+
+  /** Number of bytes taken up by the offsets and values */
+  private long byteSize() {
+    return values.capacity() * 8L + 
+           (offsets == null ? 0 : offsets.capacity() * 4L) +
+           (docs == null ? 0 : docs.capacity() * 4L);
+  }
 
+  // inherit JavaDoc
+  public long memorySize() {
+    return isMapped ? 0 : byteSize();
+  }
+
+  // inherit JavaDoc
+  public long mappedSize() {
+    return isMapped ? byteSize() : 0;
+  }
+
+  /** Tells how many documents have a value for the field */
   public final int size() {
-    return docs.size();
+    return nDocs;
+  }
+
+  /** One more than the largest document ID covered by the data */
+  public final int maxDoc() {
+    return maxDoc;
+  }
+
+  /** Get the smallest value of any document, or NO_VALUE if none */
+  public final long minValue() {
+    return minValue;
+  }
+
+  /** Get the largest value of any document, or NO_VALUE if none */
+  public final long maxValue() {
+    return maxValue;
+  }
+
+  /** Tells whether any document has more than one value */
+  public final boolean isMultiValued() {
+    return offsets != null;
   }
 
-  public final int doc(int index) {
-    return docs.get(index);
+  /** Tells how many slots there are */
+  public final int nSlots() {
+    return (docs != null) ? docs.capacity() : maxDoc;
   }
 
-  public final long value(int index) {
-    return values.get(index);
+  /** Get the document ID for a slot */
+  public final int slotDoc(int slot) {
+    return (docs != null) ? docs.get(slot) : slot;
   }
 
-  public final int findDocIndex(int docId) {
-    int idx = docs.binarySearch(docId);
-    if (idx >= 0)
-      return idx;
-    else
-      return -idx - 1; // from -ins - 1
+  /**
+   * Find the first slot for a document ID at or after the given one, or 
+   * nSlots() if there is none.
+   */
+  public final int findSlot(int docId) 
+  {
+    if (docs == null)
+      return Math.min(Math.max(docId, 0), maxDoc);
+    int lo = 0;
+    int hi = docs.capacity();
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (docs.get(mid) < docId)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    return lo;
+  } // findSlot()
+
+  /** Get the slot for a document, or -1 if it has no value */
+  private int slotOf(int docId) 
+  {
+    if (docs == null)
+      return docId;
+    int slot = findSlot(docId);
+    return (slot < docs.capacity() && docs.get(slot) == docId) ? slot : -1;
+  } // slotOf()
+
+  /**
+   * Get the value for the given document, or NO_VALUE if it has none. Only
+   * valid for single-valued data; otherwise use {@link #firstValue(int)}.
+   */
+  public final long value(int docId) {
+    int slot = slotOf(docId);
+    return (slot < 0) ? NO_VALUE : values.get(slot);
+  }
+
+  /**
+   * Get the value in the given slot, or NO_VALUE if it has none. Only
+   * valid for single-valued data.
+   */
+  public final long slotValue(int slot) {
+    return values.get(slot);
+  }
+
+  /**
+   * Get the position of the first value for the given document, or -1 if
+   * it has none. Values for a document are in ascending order.
+   */
+  public final int firstValue(int docId) {
+    int slot = slotOf(docId);
+    return (slot < 0) ? -1 : slotFirstValue(slot);
+  }
+
+  /** Get the position of the first value in a slot, or -1 if it has none */
+  public final int slotFirstValue(int slot) 
+  {
+    if (offsets == null)
+      return (values.get(slot) == NO_VALUE) ? -1 : slot;
+    int pos = offsets.get(slot);
+    return (pos == offsets.get(slot + 1)) ? -1 : pos;
+  } // slotFirstValue()
+
+  /**
+   * Get the position of the value following the given one for the same
+   * document, or -1 if there are no more.
+   */
+  public final int nextValue(int pos) {
+    return (offsets == null || values.get(pos) < 0) ? -1 : (pos + 1);
   }
 
-  public final int docPos(int docId) {
-    return docs.binarySearch(docId);
+  /** Get the value at a position returned by firstValue() or nextValue() */
+  public final long valueAt(int pos) {
+    long value = values.get(pos);
+    return (value < 0) ? ~value : value;
   }
 } // class NumericFieldData
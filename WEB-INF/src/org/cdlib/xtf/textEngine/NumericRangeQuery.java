@@ -34,7 +34,8 @@ import java.util.Set;
 
 /**
  * A query that implements efficient range searching on numeric data. Handles
- * positive numbers up to 63 bits.
+ * positive numbers up to 63 bits, and fields with more than one value per
+ * document.
  */
 public class NumericRangeQuery extends Query 
 {
@@ -141,8 +142,7 @@ public class NumericRangeQuery extends Query
       throws IOException 
     {
       NumericRangeScorer cs = (NumericRangeScorer)scorer(reader);
-      int docPos = cs.docPos(doc);
-      boolean inRange = docPos >= 0 ? cs.inRange(docPos) : false;
+      boolean inRange = cs.skipTo(doc) && cs.doc() == doc;
 
       Explanation result = new Explanation();
 
@@ -163,16 +163,24 @@ public class NumericRangeQuery extends Query
     }
   }
 
+  /**
+   * Scores documents by walking the slots of the field's value column (so
+   * that if only a few documents have values, only those are visited.) 
+   * Each check is a pair of comparisons against bounds normalized to be 
+   * inclusive, so slots with no value (which are negative) never match. If
+   * the field has multiple values per document, a document matches if any
+   * of its values is in range.
+   */
   private class NumericRangeScorer extends Scorer 
   {
     final NumericFieldData data;
+    final boolean multiValued;
     final float theScore;
-    final int dataSize;
-    final boolean checkLower;
+    final int nSlots;
     final long lowerNum;
-    final boolean checkUpper;
     final long upperNum;
-    int dataPos = -1;
+    int slot = -1;
+    int doc = -1;
 
     public NumericRangeScorer(Similarity similarity, IndexReader reader,
                               Weight w)
@@ -181,50 +189,61 @@ public class NumericRangeQuery extends Query
       super(similarity);
       theScore = w.getValue();
       data = NumericFieldData.getCachedData(reader, fieldName);
-      dataSize = data.size();
-      checkLower = (lowerVal != null);
-      this.lowerNum = checkLower ? NumericFieldData.parseVal(lowerVal) : -1;
-      checkUpper = (upperVal != null);
-      this.upperNum = checkUpper ? NumericFieldData.parseVal(upperVal) : -1;
+      multiValued = data.isMultiValued();
+
+      long lower = 0;
+      if (lowerVal != null) {
+        lower = NumericFieldData.parseVal(lowerVal);
+        if (!includeLower)
+          ++lower;
+      }
+      long upper = Long.MAX_VALUE;
+      if (upperVal != null) {
+        upper = NumericFieldData.parseVal(upperVal);
+        if (!includeUpper)
+          --upper;
+      }
+      lowerNum = lower;
+      upperNum = upper;
+
+      // An empty range can't match anything, so don't bother scanning.
+      nSlots = (lowerNum <= upperNum) ? data.nSlots() : 0;
     }
 
     public boolean next()
       throws IOException 
     {
-      while (true) {
-        ++dataPos;
-        if (dataPos >= dataSize)
-          break;
-        if (inRange(dataPos))
-          break;
+      while (++slot < nSlots) {
+        if (inRange(slot)) {
+          doc = data.slotDoc(slot);
+          return true;
+        }
       }
-      return dataPos < dataSize;
+      return false;
     }
 
-    public final boolean inRange(int dataPos) 
+    public final boolean inRange(int slot) 
     {
-      long value = data.value(dataPos);
-      if (checkLower) {
-        if (value < lowerNum)
-          return false;
-        if (value == lowerNum && !includeLower)
-          return false;
+      if (!multiValued) {
+        long value = data.slotValue(slot);
+        return value >= lowerNum & value <= upperNum;
       }
-      if (checkUpper) {
+
+      // Values are in ascending order, so we can stop once past the range.
+      for (int pos = data.slotFirstValue(slot); pos >= 0; 
+           pos = data.nextValue(pos)) 
+      {
+        long value = data.valueAt(pos);
         if (value > upperNum)
-          return false;
-        if (value == upperNum && !includeUpper)
-          return false;
+          break;
+        if (value >= lowerNum)
+          return true;
       }
-      return true;
-    }
-
-    public int docPos(int doc) {
-      return data.docPos(doc);
+      return false;
     }
 
     public int doc() {
-      return data.doc(dataPos);
+      return doc;
     }
 
     public float score()
@@ -236,7 +255,7 @@ public class NumericRangeQuery extends Query
     public boolean skipTo(int target)
       throws IOException 
     {
-      dataPos = Math.max(dataPos, data.findDocIndex(target) - 1);
+      slot = Math.max(slot, data.findSlot(target) - 1);
       return next();
     }
 
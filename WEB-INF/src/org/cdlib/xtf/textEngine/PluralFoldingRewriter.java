@@ -45,6 +45,8 @@ import org.cdlib.xtf.util.WordMap;
  * equivalents.
  *
  * @author Martin Haye
+ * @deprecated  {@link TermFoldingRewriter} now does this, along with the
+ *              other per-term mappings, in a single pass.
  */
 public class PluralFoldingRewriter extends XtfQueryRewriter 
 {
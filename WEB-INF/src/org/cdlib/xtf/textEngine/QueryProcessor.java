@@ -74,4 +74,13 @@ public abstract class QueryProcessor
    */
   public void setIndexWarmer(IndexWarmer warmer) {
   }
+
+  /**
+   * Optional method: tells whether a single instance of this processor
+   * may process many requests at the same time. If so, one instance may
+   * be shared by all the servlet's threads. Defaults to false.
+   */
+  public boolean isThreadSafe() {
+    return false;
+  }
 }
@@ -52,6 +52,12 @@ public class QueryRequest implements Cloneable
   /** Path to the Lucene index we want to search */
   public String indexPath;
 
+  /**
+   * Optional: paths to several Lucene indexes to search together as if they
+   * were one. If specified, the first is also recorded in {@link #indexPath}.
+   */
+  public String[] indexPaths;
+
   /** The Lucene query to perform */
   public Query query;
 
@@ -67,6 +73,12 @@ public class QueryRequest implements Cloneable
   /** Limit on the total amount of "work" */
   public int workLimit = 0;
 
+  /** 
+   * Number of threads to split the search across (each searching its own 
+   * range of documents), or 1 to search on the request thread only.
+   */
+  public int searchThreads = 1;
+
   /** Term marking mode */
   public int termMode = ContextMarker.MARK_SPAN_TERMS;
 
@@ -97,6 +109,16 @@ public class QueryRequest implements Cloneable
   /** Optional: list of metadata fields to return (defaults to all) */
   public String returnMetaFields = null;
 
+  /** Optional: cache to look up the result in, and add it to if not found */
+  public QueryResultCache resultCache = null;
+
+  /**
+   * Optional: key of a single document to restrict the search to. Much
+   * faster than adding the key to the query, since only the chunks of
+   * that document are scanned.
+   */
+  public String docKey = null;
+
   // Creates an exact copy of this query request.
   public Object clone() 
   {
@@ -109,6 +109,9 @@ public class QueryRequestParser
    */
   private static final int DEFAULT_MAX_SNIPPETS = 888888888;
 
+  /** Raw value of the 'indexPaths' attribute (if any) */
+  private String indexPathsAttrib;
+
   /**
    * Produce a Lucene query from the intermediate format that is normally
    * produced by the formatting stylesheet. Includes setting a default
@@ -971,15 +974,31 @@ public class QueryRequestParser
     else if (attrName.equals("maxDocs"))
       req.maxDocs = onceOnlyAttrib(req.maxDocs, el, attrName);
 
-    else if (attrName.equals("indexPath"))
+    else if (attrName.equals("indexPath")) 
+    {
+      if (specifiedGlobalAttrs.contains("indexPaths"))
+        error("'indexPath' and 'indexPaths' attributes cannot both be " +
+              "specified.");
       req.indexPath = onceOnlyAttrib(req.indexPath, el, attrName);
-
+    }
+    else if (attrName.equals("indexPaths")) 
+    {
+      if (specifiedGlobalAttrs.contains("indexPath"))
+        error("'indexPath' and 'indexPaths' attributes cannot both be " +
+              "specified.");
+      indexPathsAttrib = onceOnlyAttrib(indexPathsAttrib, el, attrName);
+      req.indexPaths = indexPathsAttrib.trim().split("\\s*[;|]\\s*");
+      req.indexPath = req.indexPaths[0];
+    }
     else if (attrName.equals("termLimit"))
       req.termLimit = onceOnlyAttrib(req.termLimit, el, attrName);
 
     else if (attrName.equals("workLimit"))
       req.workLimit = onceOnlyAttrib(req.workLimit, el, attrName);
 
+    else if (attrName.equals("searchThreads"))
+      req.searchThreads = onceOnlyAttrib(req.searchThreads, el, attrName);
+
     else if (attrName.equals("sortDocsBy") ||
              attrName.equals("sortMetaFields")) // old, for compatibility
       req.sortMetaFields = onceOnlyAttrib(req.sortMetaFields, el, attrName);
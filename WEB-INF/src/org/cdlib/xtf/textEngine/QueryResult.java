@@ -1,9 +1,11 @@
 package org.cdlib.xtf.textEngine;
 
+import java.io.IOException;
 import java.io.StringReader;
 import java.text.DecimalFormat;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.Vector;
 import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamSource;
 import org.apache.lucene.search.Explanation;
@@ -94,6 +96,51 @@ public class QueryResult
   /** Formatter for non-normalized scores */
   private DecimalFormat decFormat;
 
+  /** Searchers kept open so the hits can load their fields lazily */
+  private Vector<XtfSearcher> pinned;
+
+  /**
+   * Keeps the given searcher (which must already have had a reference
+   * added) open until {@link #release()} is called.
+   */
+  synchronized void pin(XtfSearcher searcher) 
+  {
+    if (pinned == null)
+      pinned = new Vector<XtfSearcher>(1);
+    pinned.add(searcher);
+  }
+
+  /** Takes over all the searchers pinned by another result. */
+  synchronized void takePins(QueryResult other) 
+  {
+    synchronized (other) {
+      if (other.pinned == null)
+        return;
+      if (pinned == null)
+        pinned = new Vector<XtfSearcher>(other.pinned.size());
+      pinned.addAll(other.pinned);
+      other.pinned = null;
+    }
+  }
+
+  /**
+   * Releases the index data held open so the document hits could be 
+   * loaded lazily. Call this once the hits have been formatted, after
+   * which any hits not yet loaded can no longer be. It must be called 
+   * exactly once for every result: otherwise the searchers' reference
+   * counts never drop, and their index readers are never closed.
+   */
+  public synchronized void release()
+    throws IOException 
+  {
+    if (pinned == null)
+      return;
+    Vector<XtfSearcher> toRelease = pinned;
+    pinned = null;
+    for (XtfSearcher searcher : toRelease)
+      searcher.decRef();
+  }
+
   /**
    * Makes an XML document out of the list of document hits, and returns a
    * Source object that represents it.
@@ -0,0 +1,378 @@
+package org.cdlib.xtf.textEngine;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanRangeQuery;
+import org.apache.lucene.search.spans.SpanWildcardQuery;
+import org.cdlib.xtf.cache.SimpleCache;
+import org.cdlib.xtf.textEngine.facet.FacetSpec;
+import org.cdlib.xtf.textEngine.facet.ResultGroup;
+import org.cdlib.xtf.util.Attrib;
+import org.cdlib.xtf.util.AttribList;
+import org.cdlib.xtf.util.Trace;
+
+/**
+ * Caches query results, so that identical queries (such as those behind
+ * popular browse pages) needn't be re-run. Each result is keyed by its 
+ * final rewritten query plus all the other request parameters that can
+ * affect it, and is tied to the searcher it was formed from; once the 
+ * index has been flipped to a new searcher, the result is discarded.
+ * 
+ * Before a result is cached, all its hits are fully loaded (meta-data,
+ * snippets, etc.) so that they can safely be shared by many requests, and
+ * no longer need the index. Results with too many hits aren't cached.
+ * The cache is also limited by the (estimated) number of bytes its results
+ * occupy; a result that would take more than a quarter of that space is
+ * passed over before its hits are loaded, and others are evicted least
+ * recently used first to make room.
+ * Searchers are only referenced weakly, so that a flipped-out searcher
+ * isn't kept in memory just because some of its results are still cached.
+ */
+public class QueryResultCache extends SimpleCache<String, QueryResultCache.Entry> 
+{
+  /** Max # of hits (including those in facet groups) for a cached result */
+  private int maxHits;
+
+  /** Max total (estimated) size in bytes of all cached results */
+  private long maxBytes;
+
+  /** Approximate bytes taken by a hit apart from its text */
+  private static final int HIT_OVERHEAD = 200;
+
+  /** Approximate bytes taken by a snippet or meta-field apart from text */
+  private static final int PART_OVERHEAD = 64;
+
+  /** Approximate # of characters of markup surrounding snippet context */
+  private static final int SNIPPET_MARKUP = 100;
+
+  /** Number of lookups that found a result */
+  private long nHits;
+
+  /** Number of lookups that didn't */
+  private long nMisses;
+
+  /** The searcher that results were most recently added for, per index */
+  private HashMap<String, WeakReference<XtfSearcher>> lastSearchers = 
+    new HashMap<String, WeakReference<XtfSearcher>>();
+
+  /**
+   * Constructor - sets up the parameters of the cache.
+   *
+   * @param maxEntries    Maximum # of results. Beyond this, the least 
+   *                      recently used ones will be removed.
+   * @param maxTime       Time (in seconds) a result can stay in the cache
+   *                      without being used. Zero means no limit.
+   * @param maxHits       Results with more hits than this (including those
+   *                      within facet groups) will not be cached.
+   * @param maxBytes      Max total (estimated) size of the cached results.
+   *                      Beyond this, the least recently used ones will be 
+   *                      removed.
+   */
+  public QueryResultCache(int maxEntries, int maxTime, int maxHits,
+                          long maxBytes) 
+  {
+    super(maxEntries, maxTime);
+    this.maxHits = maxHits;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Forms the key for a request, based on its final rewritten query and
+   * all the other parameters that affect the result.
+   *
+   * @param req    The request being processed
+   * @param query  Final rewritten query for the request
+   * @return       Key to look up the result by
+   */
+  static String makeKey(QueryRequest req, Query query) 
+  {
+    StringBuffer buf = new StringBuffer(200);
+    buf.append(req.indexPath);
+    buf.append("|query=").append(query.toString());
+    buf.append("|snippets=").append(maxSpanRecording(query));
+    buf.append("|termLimits=").append(termLimits(query));
+    buf.append("|workLimit=").append(req.workLimit);
+    buf.append("|sort=").append(req.sortMetaFields);
+    buf.append("|start=").append(req.startDoc);
+    buf.append("|max=").append(req.maxDocs);
+    buf.append("|context=").append(req.maxContext);
+    buf.append("|termMode=").append(req.termMode);
+    buf.append("|return=").append(req.returnMetaFields);
+    buf.append("|norm=").append(req.normalizeScores);
+    if (req.docKey != null)
+      buf.append("|doc=").append(req.docKey);
+    if (req.boostSetParams != null) {
+      BoostSetParams p = req.boostSetParams;
+      buf.append("|boost=").append(p.path).append(",").append(p.field);
+      buf.append(",").append(p.exponent).append(",").append(p.defaultBoost);
+    }
+    if (req.facetSpecs != null) {
+      for (FacetSpec spec : req.facetSpecs) {
+        buf.append("|facet=").append(spec.field);
+        buf.append(",").append(spec.groupSelector);
+        buf.append(",").append(spec.sortGroupsBy);
+        buf.append(",").append(spec.includeEmptyGroups);
+        buf.append(",").append(spec.sortDocsBy);
+      }
+    }
+    if (req.spellcheckParams != null) {
+      SpellcheckParams p = req.spellcheckParams;
+      buf.append("|spell=").append(p.fields);
+      buf.append(",").append(p.docScoreCutoff);
+      buf.append(",").append(p.totalDocsCutoff);
+    }
+    return buf.toString();
+  } // makeKey()
+
+  /**
+   * Determines the largest number of spans recorded by any part of the
+   * query, since this affects the number of snippets but isn't part of
+   * the query's string form.
+   */
+  static int maxSpanRecording(Query query) 
+  {
+    final int[] max = new int[1];
+    new XtfQueryTraverser() 
+    {
+      public void traverseQuery(Query q) {
+        if (q instanceof SpanQuery)
+          max[0] = Math.max(max[0], ((SpanQuery)q).getSpanRecording());
+        super.traverseQuery(q);
+      }
+    }.traverseQuery(query);
+    return max[0];
+  } // maxSpanRecording()
+
+  /**
+   * Lists the term limits of all the wildcard and range queries within the
+   * query, since they decide whether it fails but aren't part of the
+   * query's string form.
+   */
+  static String termLimits(Query query) 
+  {
+    final StringBuffer buf = new StringBuffer();
+    new XtfQueryTraverser() 
+    {
+      protected void traverse(SpanWildcardQuery q) {
+        buf.append(q.getTermLimit()).append(',');
+      }
+
+      protected void traverse(SpanRangeQuery q) {
+        buf.append(q.getTermLimit()).append(',');
+      }
+    }.traverseQuery(query);
+    return buf.toString();
+  } // termLimits()
+
+  /**
+   * Looks up a result. If found, a copy of it is returned so that the
+   * caller is free to modify or release it.
+   *
+   * @param key       Key formed by {@link #makeKey(QueryRequest, Query)}
+   * @param searcher  Searcher the result must have been formed from
+   * @return          The cached entry, or null if none
+   */
+  synchronized Entry find(String key, XtfSearcher searcher) 
+  {
+    Entry ent = get(key);
+    if (ent != null && ent.searcher.get() != searcher) {
+      remove(key);
+      ent = null;
+    }
+    if (ent == null) {
+      ++nMisses;
+      return null;
+    }
+    ++nHits;
+    return new Entry(copyResult(ent.result), searcher, ent.maxDocScore);
+  } // find()
+
+  /**
+   * Adds a result to the cache, unless it has too many hits or would be
+   * too big. The hits are loaded first, so it's best not to call this 
+   * while holding the lock on the cache.
+   *
+   * @param indexPath     Path of the index that was searched
+   * @param key           Key formed by {@link #makeKey(QueryRequest, Query)}
+   * @param searcher      Searcher the result was formed from
+   * @param result        The result to cache
+   * @param maxDocScore   Maximum (raw) document score for the query
+   * @param maxContext    Max # of characters of context per snippet
+   */
+  void add(String indexPath, String key, XtfSearcher searcher, 
+           QueryResult result, float maxDocScore, int maxContext)
+  {
+    // Gather all the hits, and make sure there aren't too many.
+    ArrayList<DocHit> hits = new ArrayList<DocHit>();
+    for (DocHit hit : result.docHits)
+      hits.add(hit);
+    if (result.facets != null) {
+      for (int i = 0; i < result.facets.length; i++)
+        gatherHits(result.facets[i].rootGroup, hits);
+    }
+    if (hits.size() > maxHits)
+      return;
+
+    // Loading the snippet text can take a lot of space (think of a search
+    // within a large document), so estimate it beforehand and pass over
+    // results that would crowd out too many others.
+    //
+    long maxResultBytes = maxBytes / 4;
+    long estSize = 0;
+    for (DocHit hit : hits) {
+      estSize += HIT_OVERHEAD + ((long)hit.nSnippets() * 
+                 (PART_OVERHEAD + (maxContext + SNIPPET_MARKUP) * 2));
+      if (estSize > maxResultBytes)
+        return;
+    }
+
+    // Load everything the hits will need, so they no longer depend on the
+    // index and won't change when used by several threads.
+    //
+    for (DocHit hit : hits)
+      ((DocHitImpl)hit).loadAll();
+    long size = sizeOf(hits);
+    if (size > maxResultBytes)
+      return;
+
+    // If the index has been flipped since the last time, clear out
+    // results for the old one.
+    //
+    synchronized (this) 
+    {
+      WeakReference<XtfSearcher> last = lastSearchers.get(indexPath);
+      if (last == null || last.get() != searcher) {
+        removeStale(indexPath, searcher);
+        lastSearchers.put(indexPath, new WeakReference<XtfSearcher>(searcher));
+      }
+      Entry ent = new Entry(copyResult(result), searcher, maxDocScore);
+      ent.indexPath = indexPath;
+      ent.size = size;
+      set(key, ent);
+
+      // Make room by evicting the least recently used results.
+      long total = byteSize();
+      while (total > maxBytes) {
+        String oldKey = oldestKey();
+        if (oldKey == null || oldKey.equals(key))
+          break;
+        total -= peek(oldKey).size;
+        remove(oldKey);
+      }
+    }
+  } // add()
+
+  /** Estimates the bytes taken by a set of fully loaded hits */
+  private static long sizeOf(ArrayList<DocHit> hits) 
+  {
+    long size = 0;
+    for (DocHit hit : hits) 
+    {
+      size += HIT_OVERHEAD;
+      AttribList metaData = hit.metaData();
+      if (metaData != null) {
+        for (Iterator iter = metaData.iterator(); iter.hasNext();) {
+          Attrib att = (Attrib)iter.next();
+          size += PART_OVERHEAD + (att.key.length() * 2);
+          if (att.value != null)
+            size += att.value.length() * 2;
+        }
+      }
+      int nSnippets = hit.nSnippets();
+      for (int i = 0; i < nSnippets; i++) {
+        Snippet snippet = hit.snippet(i, false);
+        size += PART_OVERHEAD;
+        if (snippet.text != null)
+          size += snippet.text.length() * 2;
+      }
+    }
+    return size;
+  } // sizeOf()
+
+  /** Add all the hits within a group and its descendants to the list */
+  private static void gatherHits(ResultGroup group, ArrayList<DocHit> hits) 
+  {
+    if (group.docHits != null) {
+      for (DocHit hit : group.docHits)
+        hits.add(hit);
+    }
+    if (group.subGroups != null) {
+      for (ResultGroup kid : group.subGroups)
+        gatherHits(kid, hits);
+    }
+  } // gatherHits()
+
+  /** 
+   * Removes all results for the given index that were formed by a
+   * different searcher (and are thus out of date.)
+   */
+  private synchronized void removeStale(String indexPath, XtfSearcher searcher) 
+  {
+    for (String key : keys()) {
+      Entry ent = peek(key);
+      if (ent.searcher.get() != searcher && ent.indexPath.equals(indexPath))
+        remove(key);
+    }
+  } // removeStale()
+
+  /** Makes a copy of a result, sharing the hits but not the pins */
+  private static QueryResult copyResult(QueryResult src) 
+  {
+    QueryResult dst = new QueryResult();
+    dst.context = src.context;
+    dst.textTerms = src.textTerms;
+    dst.totalDocs = src.totalDocs;
+    dst.startDoc = src.startDoc;
+    dst.endDoc = src.endDoc;
+    dst.scoresNormalized = src.scoresNormalized;
+    dst.docHits = src.docHits;
+    dst.facets = src.facets;
+    dst.suggestions = src.suggestions;
+    return dst;
+  } // copyResult()
+
+  /** Get the number of lookups that found a result */
+  public synchronized long nHits() {
+    return nHits;
+  }
+
+  /** Get the number of lookups that didn't find a result */
+  public synchronized long nMisses() {
+    return nMisses;
+  }
+
+  /** Get the estimated total size (in bytes) of all the cached results */
+  public synchronized long byteSize() 
+  {
+    long total = 0;
+    for (String key : keys())
+      total += peek(key).size;
+    return total;
+  } // byteSize()
+
+  /** Prints out useful debugging info */
+  protected void logAction(String action, String key, Entry value) {
+    Trace.debug("QueryResultCache: " + action + " (" + nHits + " hits, " +
+                nMisses + " misses). Key=" + key);
+  }
+
+  /** A cached result, along with what it depends on */
+  static class Entry 
+  {
+    String indexPath;
+    QueryResult result;
+    WeakReference<XtfSearcher> searcher;
+    float maxDocScore;
+    long size;
+
+    Entry(QueryResult result, XtfSearcher searcher, float maxDocScore) {
+      this.result = result;
+      this.searcher = new WeakReference<XtfSearcher>(searcher);
+      this.maxDocScore = maxDocScore;
+    }
+  } // class Entry
+} // class QueryResultCache
@@ -106,6 +106,9 @@ public class SnippetMaker
   /** List of metadata fields to return in the doc hits, or null for all */
   private Set<String> returnMetaFields;
 
+  /** Cache of docInfo fields for the index (optional) */
+  HitFieldCache hitFieldCache;
+
   // Precompiled patterns for quickly matching common chars special to XML
   private static final Pattern ampPattern = Pattern.compile("&");
   private static final Pattern ltPattern = Pattern.compile("<");
@@ -0,0 +1,177 @@
+package org.cdlib.xtf.textEngine;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.ScoreDocComparator;
+import org.apache.lucene.search.SortField;
+
+/**
+ * Holds a precomputed sort key for every document in an index, for a single
+ * meta-data field. A document's key is the ordinal of its term within the
+ * field (starting at 1), or zero if it has no term. Keys are built once per
+ * version of the index (see {@link XtfSearcher#sortKeys(String)}) and then
+ * shared by all queries that sort on that field.
+ *
+ * For "sparse" indexes (many chunks per document) an array per chunk would
+ * waste a lot of memory, so instead keys are stored only for the documents
+ * that have them, in document order, and found by binary search.
+ */
+class SortKeys 
+{
+  /** Key per document (compact), or per entry in {@link #docIds} (sparse) */
+  private int[] keys;
+
+  /** For sparse indexes, the documents having keys, in ascending order */
+  private int[] docIds;
+
+  /** Term text for each key. Entry zero is for docs with no term. */
+  private String[] values;
+
+  /** Private: use {@link #build(IndexReader, String, boolean)} */
+  private SortKeys() {
+  }
+
+  /**
+   * Build the sort keys for a field.
+   *
+   * @param reader    Reader to get the terms from
+   * @param field     Name of the field to sort by
+   * @param isSparse  true to store keys only for the docs that have them
+   */
+  static SortKeys build(IndexReader reader, String field, boolean isSparse)
+    throws IOException 
+  {
+    SortKeys ret = new SortKeys();
+    field = field.intern();
+
+    // Iterators for documents and terms.
+    TermDocs termDocs = reader.termDocs();
+    TermEnum termEnum = reader.terms(new Term(field, ""));
+
+    // For compact indexes, record keys directly. For sparse ones, pack the
+    // doc ID and key into a long so they can be sorted by doc ID later.
+    //
+    int[] keys = isSparse ? null : new int[reader.maxDoc()];
+    long[] pairs = isSparse ? new long[500] : null;
+    int nPairs = 0;
+    ArrayList<String> values = new ArrayList<String>();
+    values.add("");
+
+    try 
+    {
+      for (Term term = termEnum.term(); term != null && term.field() == field;
+           term = termEnum.next() ? termEnum.term() : null) 
+      {
+        int key = values.size();
+        values.add(term.text());
+
+        termDocs.seek(termEnum);
+        while (termDocs.next()) 
+        {
+          int doc = termDocs.doc();
+          if (keys != null)
+            keys[doc] = key;
+          else {
+            if (nPairs == pairs.length) {
+              long[] newPairs = new long[pairs.length * 2];
+              System.arraycopy(pairs, 0, newPairs, 0, nPairs);
+              pairs = newPairs;
+            }
+            pairs[nPairs++] = (((long)doc) << 32) | key;
+          }
+        }
+      }
+    }
+    finally {
+      termDocs.close();
+      termEnum.close();
+    }
+
+    ret.values = values.toArray(new String[values.size()]);
+
+    // Sparse keys need to be in document order for binary searching. Ensure 
+    // that there is only one term in this field per document.
+    //
+    if (keys == null) 
+    {
+      Arrays.sort(pairs, 0, nPairs);
+      ret.docIds = new int[nPairs];
+      keys = new int[nPairs];
+      for (int i = 0; i < nPairs; i++) 
+      {
+        ret.docIds[i] = (int)(pairs[i] >>> 32);
+        keys[i] = (int)pairs[i];
+        if (i > 0 && ret.docIds[i] == ret.docIds[i - 1]) {
+          throw new RuntimeException(
+            "A document has more than one term ('" + ret.values[keys[i]] + 
+            "', '" + ret.values[keys[i - 1]] + "') in field " + field);
+        }
+      }
+    }
+    ret.keys = keys;
+    return ret;
+  } // build()
+
+  /** Get the key for a document: its term ordinal, or zero if none. */
+  final int key(int doc) 
+  {
+    if (docIds == null)
+      return keys[doc];
+    int index = Arrays.binarySearch(docIds, doc);
+    return (index >= 0) ? keys[index] : 0;
+  } // key()
+
+  /** Get the term a document will be sorted by, or "" if none. */
+  final String value(int doc) {
+    return values[key(doc)];
+  }
+
+  /**
+   * Get the key for a document, adjusted so that comparing the results
+   * (as plain ints) puts the documents in sort order.
+   *
+   * @param flipEmpty   false to put docs with no term last, true to put
+   *                    them first.
+   */
+  final int sortOrd(int doc, boolean flipEmpty) 
+  {
+    // Empty docs have key zero, which already sorts first. To sort them 
+    // last instead, subtract one and compare unsigned (by flipping the sign
+    // bit), which moves zero to the very end without disturbing the rest.
+    //
+    int key = key(doc);
+    return flipEmpty ? key : ((key - 1) ^ Integer.MIN_VALUE);
+  } // sortOrd()
+
+  /**
+   * Make a comparator that sorts documents by these keys.
+   *
+   * @param flipEmpty   false to put docs with no term last, true to put
+   *                    them first.
+   */
+  ScoreDocComparator comparator(final boolean flipEmpty) 
+  {
+    return new ScoreDocComparator() 
+    {
+      public int compare(ScoreDoc d1, ScoreDoc d2) {
+        int k1 = sortOrd(d1.doc, flipEmpty);
+        int k2 = sortOrd(d2.doc, flipEmpty);
+        return (k1 < k2) ? -1 : ((k1 > k2) ? 1 : 0);
+      }
+
+      public Comparable sortValue(ScoreDoc d) {
+        return value(d.doc);
+      }
+
+      public int sortType() {
+        return SortField.CUSTOM;
+      }
+    };
+  } // comparator()
+} // class SortKeys
@@ -46,6 +46,8 @@ import org.apache.lucene.search.spans.SpanWildcardQuery;
  * etc.
  *
  * @author Martin Haye
+ * @deprecated  {@link TermFoldingRewriter} now does this, along with the
+ *              other per-term mappings, in a single pass.
  */
 public class StdTermRewriter extends XtfQueryRewriter 
 {
@@ -0,0 +1,155 @@
+package org.cdlib.xtf.textEngine;
+
+import java.util.Set;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.search.spans.SpanWildcardQuery;
+import org.cdlib.xtf.util.CharMap;
+import org.cdlib.xtf.util.FastCache;
+import org.cdlib.xtf.util.Normalizer;
+import org.cdlib.xtf.util.WordMap;
+
+/**
+ * Performs, in a single pass over the query, all the per-term mappings that
+ * used to be done by {@link StdTermRewriter}, {@link UnicodeNormalizingRewriter},
+ * {@link AccentFoldingRewriter}, and {@link PluralFoldingRewriter} in turn.
+ * Each term in a tokenized field is lowercased (etc.), normalized to NFC,
+ * stripped of diacritics, and finally mapped from plural to singular,
+ * exactly as if the four rewriters had been run one after the other.
+ */
+public class TermFoldingRewriter extends XtfQueryRewriter 
+{
+  /** How many recent normalizations to maintain */
+  private static final int CACHE_SIZE = 5000;
+
+  /** 
+   * Normalizations performed to-date. Rewriters only live for one request,
+   * so this is shared by all of them (and must be synchronized.)
+   */
+  private static FastCache<String, String> normCache = 
+    new FastCache<String, String>(CACHE_SIZE);
+
+  private Set tokenizedFields;
+  private CharMap accentMap;
+  private WordMap pluralMap;
+  private StdTermFilter filter = new StdTermFilter();
+
+  /**
+   * Construct a rewriter that will operate on the given tokenized fields.
+   *
+   * @param tokFields  Set of fields that are tokenized in the index
+   * @param accentMap  Map of accented chars, or null for none
+   * @param pluralMap  Map of plural words, or null for none
+   */
+  public TermFoldingRewriter(Set tokFields, CharMap accentMap, 
+                             WordMap pluralMap) 
+  {
+    this.tokenizedFields = tokFields;
+    this.accentMap = accentMap;
+    this.pluralMap = pluralMap;
+  }
+
+  /**
+   * Rewrite a term query. This is only called for artificial queries
+   * introduced by XTF system itself, and therefore we don't map here.
+   */
+  protected Query rewrite(TermQuery q) {
+    return q;
+  }
+
+  /**
+   * Rewrite a span term query.
+   *
+   * @param q  The query to rewrite
+   * @return   Rewritten version, or 'q' unchanged if no changed needed.
+   */
+  protected Query rewrite(SpanTermQuery q) 
+  {
+    Term t = q.getTerm();
+    String mapped = mapTerm(t, true);
+    if (mapped == null)
+      return q;
+
+    Term newTerm = new Term(t.field(), mapped);
+    return copyBoost(q, new SpanTermQuery(newTerm, q.getTermLength()));
+  }
+
+  /**
+   * Rewrite a wildcard term query. Plural mapping isn't applied, since it
+   * makes no sense for a partial word.
+   *
+   * @param q  The query to rewrite
+   * @return   Rewritten version, or 'q' unchanged if no changed needed.
+   */
+  protected Query rewrite(SpanWildcardQuery q) 
+  {
+    assert q instanceof XtfSpanWildcardQuery;
+
+    Term t = q.getTerm();
+    String mapped = mapTerm(t, false);
+    if (mapped == null)
+      return q;
+
+    Term newTerm = new Term(t.field(), mapped);
+    return copyBoost(q, new XtfSpanWildcardQuery(newTerm, q.getTermLimit()));
+  }
+
+  /**
+   * Apply all the mappings to the given term and return the result.
+   *
+   * @param t           term to map
+   * @param foldPlural  true to apply the plural map (if any)
+   * @return            different term, or null if not different. Also null
+   *                    if the field isn't tokenized.
+   */
+  private String mapTerm(Term t, boolean foldPlural) 
+  {
+    // If the field isn't tokenized, leave the term unmodified.
+    if (!tokenizedFields.contains(t.field()))
+      return null;
+
+    // Standard tokenization: lowercase, remove apostrophes, etc.
+    String text = filter.filter(t.text());
+
+    // Normalize Unicode encoding to form C (NFC)
+    text = normalize(text);
+
+    // Remove diacritics
+    if (accentMap != null) {
+      String mapped = accentMap.mapWord(text);
+      if (mapped != null)
+        text = mapped;
+    }
+
+    // Change plural words to singular
+    if (foldPlural && pluralMap != null) {
+      String mapped = pluralMap.lookup(text);
+      if (mapped != null)
+        text = mapped;
+    }
+
+    if (text.equals(t.text()))
+      return null;
+    return text;
+  } // mapTerm()
+
+  /**
+   * Normalize the text to Unicode form C (NFC). Only does the (sometimes
+   * lengthy) normalization step if we haven't already looked up this token.
+   */
+  private static String normalize(String text) 
+  {
+    synchronized (normCache) {
+      String normalized = normCache.get(text);
+      if (normalized != null)
+        return normalized;
+    }
+    String normalized = Normalizer.normalize(text);
+    synchronized (normCache) {
+      normCache.put(text, normalized);
+    }
+    return normalized;
+  } // normalize()
+} // class TermFoldingRewriter
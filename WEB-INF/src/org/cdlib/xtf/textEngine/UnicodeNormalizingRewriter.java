@@ -49,6 +49,8 @@ import org.cdlib.xtf.util.Normalizer;
  * their main letter rather than as separate combining marks.
  *
  * @author Martin Haye
+ * @deprecated  {@link TermFoldingRewriter} now does this, along with the
+ *              other per-term mappings, in a single pass.
  */
 public class UnicodeNormalizingRewriter extends XtfQueryRewriter 
 {
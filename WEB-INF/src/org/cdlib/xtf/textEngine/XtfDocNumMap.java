@@ -56,17 +56,11 @@ public class XtfDocNumMap implements DocNumMap
   /** Total number of docInfo chunks found */
   private int nDocs;
 
-  /** Array of indexes, one for each docInfo chunk */
-  private int[] docNums = null; /* null until load() called */
-
-  /** Caches result of previous scan, used for speed */
-  private int prevNum = -1;
-
-  /** Used in binary searching */
-  private int low = -1;
-
-  /** Used in binary searching */
-  private int high = -1;
+  /** 
+   * Array of indexes, one for each docInfo chunk. Null until load() is 
+   * called, and never changed after that, so lookups need no locking.
+   */
+  private volatile int[] docNums = null;
 
   /**
    * Make a map for the given reader. This reads in all the docInfo chunks
@@ -92,8 +86,7 @@ public class XtfDocNumMap implements DocNumMap
       // that big.
       //
       Term term = new Term("docInfo", "1");
-      nDocs = reader.docFreq(term);
-      docNums = new int[nDocs];
+      int[] nums = new int[reader.docFreq(term)];
 
       // Get a list of all the "header" chunks for documents in this
       // index (i.e., documents with a "docInfo" field.)
@@ -103,8 +96,11 @@ public class XtfDocNumMap implements DocNumMap
       // Record each document number.
       int i = 0;
       while (docHeaders.next())
-        docNums[i++] = docHeaders.doc();
+        nums[i++] = docHeaders.doc();
       nDocs = i; // Account for possibly deleted docs
+      
+      // Publish the finished array.
+      docNums = nums;
     }
     catch (IOException e) {
       throw new RuntimeException(e);
@@ -138,10 +134,10 @@ public class XtfDocNumMap implements DocNumMap
    * @param chunkNumber Chunk number to translate
    * @return Document index, or -1 if no match.
    */
-  public final synchronized int getDocNum(int chunkNumber) 
+  public final int getDocNum(int chunkNumber) 
   {
     // Do a binary search for the chunk
-    scan(chunkNumber);
+    int high = scan(chunkNumber) + 1;
 
     // Return the upper end, since the document info is written after
     // all of its chunks.
@@ -155,10 +151,10 @@ public class XtfDocNumMap implements DocNumMap
    * Given a document number, this method returns the number of its first
    * chunk.
    */
-  public final synchronized int getFirstChunk(int docNum) 
+  public final int getFirstChunk(int docNum) 
   {
     // Scan for the document
-    scan(docNum);
+    int low = scan(docNum);
 
     // If not found, get out.
     if (low < 0 || docNums[low] != docNum)
@@ -179,31 +175,26 @@ public class XtfDocNumMap implements DocNumMap
   }
 
   /**
-   * Perform a binary search looking for the given number. On exit, the
-   * 'low' and 'high' member variables will be indexes into the array that
-   * bracket the value.
+   * Perform a binary search looking for the given number. The index
+   * returned, and that index plus one, bracket the value.
    *
    * @param num   The number to look for.
+   * @return      Index of the last entry less than or equal to the number,
+   *              or -1 if all entries are greater.
    */
-  private void scan(int num) 
+  private int scan(int num) 
   {
-    // Early-out
-    if (num == prevNum)
-      return;
-
     // Make sure we load the data the first time. We do this lazily because
     // some indexes are only used for crossQuery, which doesn't really use
     // the info in a DocNumMap.
     //
-    load();
+    if (docNums == null)
+      load();
+    int[] docNums = this.docNums;
 
     // Perform a simple binary search.
     int high = nDocs;
-
-    // Perform a simple binary search.
     int low = -1;
-
-    // Perform a simple binary search.
     int probe;
     while (high - low > 1) {
       probe = (high + low) / 2;
@@ -216,8 +207,6 @@ public class XtfDocNumMap implements DocNumMap
     // At this point, low and high bracket the value searched for.
     assert low == -1 || docNums[low] <= num;
     assert high == nDocs || docNums[high] > num;
-
-    this.low = low;
-    this.high = high;
+    return low;
   } // scan()
 } // class DocNumMap
@@ -35,8 +35,11 @@ import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPInputStream;
 import org.apache.lucene.bigram.BigramQueryRewriter;
 import org.apache.lucene.chunk.DocNumMap;
@@ -46,17 +49,29 @@ import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermEnum;
 import org.apache.lucene.search.Hits;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDocComparator;
+import org.apache.lucene.search.SortComparatorSource;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.spelt.SpellReader;
 import org.apache.lucene.store.Directory;
+import org.cdlib.xtf.textEngine.facet.FacetTotals;
+import org.cdlib.xtf.textEngine.facet.StaticGroupData;
 import org.cdlib.xtf.textIndexer.TextIndexer;
 import org.cdlib.xtf.util.CharMap;
+import org.cdlib.xtf.util.FastCache;
 import org.cdlib.xtf.util.Path;
+import org.cdlib.xtf.util.Trace;
 import org.cdlib.xtf.util.WordMap;
 
 /**
  * Used to keep a set of searcher, reader, and doc-num-map that are consistent
- * with each other and also up-to-date.
+ * with each other and also up-to-date.<br>
+ *
+ * Searchers with an update period of zero never change after construction,
+ * and can be shared between threads as a snapshot of the index. Such
+ * sharing is managed with {@link #incRef()} and {@link #decRef()}: the
+ * searcher is closed when the last reference is released.
  *
  * @author Martin Haye
  */
@@ -113,6 +128,46 @@ public class XtfSearcher
   /** Whether this index is "sparse" (i.e. more than 5 chunks per doc) */
   private boolean isSparse;
 
+  /** Number of references outstanding; starts at one for the creator */
+  private AtomicInteger refCount = new AtomicInteger(1);
+
+  /** Boost sets, numeric columns, facet and FRBR data for this version */
+  private FieldDataCache fieldData;
+
+  /** Max bytes of memory for field data, or zero for no limit */
+  private long fieldDataBudget = 0;
+
+  /** Recently loaded docInfo fields for document hits */
+  private HitFieldCache hitFieldCache;
+
+  /** How many docInfo chunks to keep in the hit field cache */
+  private static final int HIT_FIELD_CACHE_SIZE = 1000;
+
+  /** Sort keys for each field sorted on so far, good for this version */
+  private ConcurrentHashMap<String, SortKeys> sortKeys = 
+    new ConcurrentHashMap<String, SortKeys>();
+
+  /** Makes comparators for sorting on meta-data fields */
+  private SortComparatorSource sortKeySource = new SortKeySource();
+
+  /** Facet totals over all documents, for each facet field */
+  private ConcurrentHashMap<String, FacetTotals> allDocsTotals = 
+    new ConcurrentHashMap<String, FacetTotals>();
+
+  /** How many sets of facet totals for filtered browse queries to keep */
+  private static final int FILTERED_TOTALS_CACHE_SIZE = 200;
+
+  /** Recent facet totals for browse queries limited by another term */
+  private FastCache<String, FacetTotals> filteredTotals = 
+    new FastCache(FILTERED_TOTALS_CACHE_SIZE);
+
+  /** How many recently rewritten queries to remember */
+  private static final int REWRITE_CACHE_SIZE = 500;
+
+  /** Recently rewritten queries, good only for the index version in memory */
+  private FastCache<String, Query> rewriteCache = 
+    new FastCache(REWRITE_CACHE_SIZE);
+
   /**
    * Construct a searcher set on the given directory.
    *
@@ -185,6 +240,7 @@ public class XtfSearcher
     // Okay, better re-open to get the fresh data.
     close();
     indexReader = IndexReader.open(directory);
+    fieldData = new FieldDataCache(indexReader, fieldDataBudget);
 
     // Fetch the index information chunk.
     Hits match = new IndexSearcher(indexReader).search(
@@ -213,6 +269,9 @@ public class XtfSearcher
     // Construct a map from doc # to chunk #'s (and vice-versa)
     docNumMap = new XtfDocNumMap(indexReader, chunkSize, chunkOverlap);
 
+    // Start with a fresh cache of document hit fields.
+    hitFieldCache = new HitFieldCache(HIT_FIELD_CACHE_SIZE);
+
     // Get the stop-word set.
     String stopWords = doc.get("stopWords");
     stopSet = null;
@@ -266,6 +325,10 @@ public class XtfSearcher
     // Determine which fields are tokenized.
     tokenizedFields = readTokenizedFields(indexPath, indexReader);
 
+    // Pick up pre-built facet and numeric data, if any.
+    mapFacetData();
+    mapNumericData();
+
     // Remember the version that's now in memory.
     curVersion = newVersion;
   } // update()
@@ -314,6 +377,107 @@ public class XtfSearcher
     // All done.
     return tokenizedFields;
   }
+
+  /**
+   * Read in the list of fields that were marked as facets when the index
+   * was built.
+   */
+  public static LinkedHashSet<String> readFacetFields(String indexPath)
+    throws IOException
+  {
+    return readFieldsFile(indexPath, "facetFields.txt");
+  }
+
+  /**
+   * Read in the list of fields that were marked as numeric when the index
+   * was built.
+   */
+  public static LinkedHashSet<String> readNumericFields(String indexPath)
+    throws IOException
+  {
+    return readFieldsFile(indexPath, "numericFields.txt");
+  }
+
+  /**
+   * Read a list of field names, one per line, written by the indexer. If
+   * the file doesn't exist, the list will be empty.
+   */
+  private static LinkedHashSet<String> readFieldsFile(String indexPath,
+                                                      String fileName)
+    throws IOException
+  {
+    LinkedHashSet<String> fields = new LinkedHashSet<String>();
+    File fieldsFile = new File(
+      Path.normalizePath(indexPath + "/" + fileName));
+    if (fieldsFile.canRead()) {
+      BufferedReader reader = new BufferedReader(new FileReader(fieldsFile));
+      String line;
+      while ((line = reader.readLine()) != null)
+        fields.add(line);
+      reader.close();
+    }
+    return fields;
+  }
+
+  /**
+   * Map in any facet data files that were written for this version of the
+   * index, so that facet queries needn't read through all the terms.
+   */
+  private void mapFacetData()
+    throws IOException
+  {
+    for (String field : readFacetFields(indexPath)) 
+    {
+      File file = StaticGroupData.dataFile(indexPath, field);
+      if (!file.canRead())
+        continue;
+
+      // A damaged file shouldn't stop the index from opening; if it can't
+      // be mapped, the data will be built from the terms instead.
+      //
+      try {
+        StaticGroupData data = 
+          StaticGroupData.mapFile(file, field, indexReader.getVersion());
+        if (data != null)
+          StaticGroupData.putCachedData(fieldData, field, data);
+      }
+      catch (Exception e) {
+        Trace.warning(String.format(
+          "Unable to map facet data file '%s' (will rebuild from terms): %s",
+          file, e.toString()));
+      }
+    }
+  } // mapFacetData()
+
+  /**
+   * Map in the value columns written for numeric fields in this version of
+   * the index, so that range queries needn't read through all the terms.
+   */
+  private void mapNumericData()
+    throws IOException
+  {
+    for (String field : readNumericFields(indexPath)) 
+    {
+      File file = NumericFieldData.dataFile(indexPath, field);
+      if (!file.canRead())
+        continue;
+
+      // As with facet data, a damaged file just means building from the
+      // terms.
+      //
+      try {
+        NumericFieldData data = 
+          NumericFieldData.mapFile(file, indexReader.getVersion());
+        if (data != null)
+          NumericFieldData.putCachedData(fieldData, field, data);
+      }
+      catch (Exception e) {
+        Trace.warning(String.format(
+          "Unable to map numeric data file '%s' (will rebuild from terms): %s",
+          file, e.toString()));
+      }
+    }
+  } // mapNumericData()
   
   /**
    * Get the list of all tokenized fields.
@@ -378,6 +542,151 @@ public class XtfSearcher
     return accentMap;
   }
 
+  /**
+   * Get the cache of field data (boost sets, numeric columns, facet and
+   * FRBR data) for this version of the index.
+   */
+  public FieldDataCache fieldData() {
+    return fieldData;
+  }
+
+  /**
+   * Set the max number of bytes of memory to use for field data. When
+   * loading more would go over, the least recently used data is released.
+   *
+   * @param budget  Max bytes, or zero for no limit
+   */
+  public void setFieldDataBudget(long budget) 
+  {
+    fieldDataBudget = budget;
+    FieldDataCache cache = fieldData;
+    if (cache != null)
+      cache.setBudget(budget);
+  } // setFieldDataBudget()
+
+  /**
+   * Get the cache of stored fields for document hits, good for this version
+   * of the index.
+   */
+  HitFieldCache hitFieldCache() {
+    return hitFieldCache;
+  }
+
+  /**
+   * Get the sort keys for the given field, building them if this is the
+   * first time the field has been sorted on in this version of the index.
+   */
+  SortKeys sortKeys(String field)
+    throws IOException 
+  {
+    SortKeys keys = sortKeys.get(field);
+    if (keys == null) 
+    {
+      synchronized (sortKeys) {
+        keys = sortKeys.get(field);
+        if (keys == null) {
+          keys = SortKeys.build(indexReader, field, isSparse);
+          sortKeys.put(field, keys);
+        }
+      }
+    }
+    return keys;
+  } // sortKeys()
+
+  /**
+   * Get facet counts for the given field, over all the documents that have
+   * every one of the given terms, counting them if they haven't been
+   * already. Counting scans the terms directly, so queries should instead
+   * use {@link #findFacetTotals(String, Term[])} and record totals formed 
+   * from their own hits.
+   *
+   * @param field   Facet field to count
+   * @param terms   Terms the counted documents must have
+   */
+  public FacetTotals facetTotals(String field, Term[] terms)
+    throws IOException 
+  {
+    FacetTotals totals = findFacetTotals(field, terms);
+    if (totals == null) {
+      totals = new FacetTotals(
+        StaticGroupData.getCachedData(indexReader, field), indexReader, terms);
+      putFacetTotals(field, terms, totals);
+    }
+    return totals;
+  } // facetTotals()
+
+  /**
+   * Look up facet counts for the given field, over all the documents that
+   * have every one of the given terms.
+   *
+   * @param field   Facet field that was counted
+   * @param terms   Terms the counted documents must have
+   * @return        The counts, or null if they aren't known.
+   */
+  public FacetTotals findFacetTotals(String field, Term[] terms) 
+  {
+    // The all-documents case
+    if (terms.length == 1)
+      return allDocsTotals.get(field);
+
+    // Filtered browse queries
+    synchronized (filteredTotals) {
+      return filteredTotals.get(filteredTotalsKey(field, terms));
+    }
+  } // findFacetTotals()
+
+  /**
+   * Record facet counts for the given field, over all the documents that
+   * have every one of the given terms. A single term should select all 
+   * documents; the counts for it are kept for the life of this version of
+   * the index. Counts for more terms (e.g. all documents plus a facet 
+   * value) are kept only for recently used terms.
+   *
+   * @param field   Facet field that was counted
+   * @param terms   Terms the counted documents must have
+   * @param totals  The counts
+   */
+  public void putFacetTotals(String field, Term[] terms, FacetTotals totals) 
+  {
+    if (terms.length == 1) {
+      allDocsTotals.putIfAbsent(field, totals);
+      return;
+    }
+    String key = filteredTotalsKey(field, terms);
+    synchronized (filteredTotals) {
+      if (!filteredTotals.contains(key))
+        filteredTotals.put(key, totals);
+    }
+  } // putFacetTotals()
+
+  /** Form the key for totals of a filtered browse query */
+  private static String filteredTotalsKey(String field, Term[] terms) 
+  {
+    StringBuffer buf = new StringBuffer(field);
+    for (int i = 0; i < terms.length; i++)
+      buf.append('|').append(terms[i].toString());
+    return buf.toString();
+  } // filteredTotalsKey()
+
+  /** Get the names of all fields that all-documents totals are kept for */
+  Set<String> facetTotalsFields() {
+    return new HashSet<String>(allDocsTotals.keySet());
+  }
+
+  /** Get the names of all fields that sort keys have been built for */
+  Set<String> sortKeyFields() {
+    return new HashSet<String>(sortKeys.keySet());
+  }
+
+  /**
+   * Get a source of comparators for sorting on meta-data fields, based on
+   * sort keys shared by all queries on this version of the index. Field 
+   * names may have ":flipEmpty" appended to put empty docs first.
+   */
+  SortComparatorSource sortKeySource() {
+    return sortKeySource;
+  }
+
   public SpellReader spellReader() {
     return spellReader;
   }
@@ -389,6 +698,65 @@ public class XtfSearcher
     return isSparse;
   }
 
+  /**
+   * Look up a query previously rewritten against this version of the index.
+   *
+   * @param key   Key formed from the original query
+   * @return      The fully rewritten query, or null if not found.
+   */
+  public Query getRewrittenQuery(String key)
+  {
+    synchronized (rewriteCache) {
+      return rewriteCache.get(key);
+    }
+  } // getRewrittenQuery()
+
+  /**
+   * Remember a query rewritten against this version of the index, so that
+   * later requests for the same query needn't rewrite it again. The query
+   * must not be modified after it is added.
+   *
+   * @param key       Key formed from the original query
+   * @param rewritten The fully rewritten query
+   */
+  public void putRewrittenQuery(String key, Query rewritten)
+  {
+    synchronized (rewriteCache) {
+      rewriteCache.put(key, rewritten);
+    }
+  } // putRewrittenQuery()
+
+  /**
+   * Add a reference to this searcher, pinning it open until a matching
+   * call to {@link #decRef()}. Takes no locks.
+   *
+   * @return  true if the reference was added, false if the searcher has
+   *          already been released by everyone (and thus closed.)
+   */
+  public boolean incRef()
+  {
+    while (true) {
+      int count = refCount.get();
+      if (count <= 0)
+        return false;
+      if (refCount.compareAndSet(count, count + 1))
+        return true;
+    }
+  } // incRef()
+
+  /**
+   * Release a reference to this searcher. When the last reference has
+   * been released, the searcher is closed.
+   */
+  public void decRef()
+    throws IOException 
+  {
+    int count = refCount.decrementAndGet();
+    assert count >= 0 : "XtfSearcher released too many times";
+    if (count == 0)
+      close();
+  } // decRef()
+
   /**
    * Close down the searcher and all its dependencies.
    */
@@ -396,6 +764,25 @@ public class XtfSearcher
     throws IOException 
   {
     docNumMap = null;
+    hitFieldCache = null;
+
+    // Sort keys and facet totals are only good for the old version.
+    sortKeys.clear();
+    allDocsTotals.clear();
+    synchronized (filteredTotals) {
+      filteredTotals.clear();
+    }
+
+    // Field data is only good for the old version too.
+    if (fieldData != null) {
+      fieldData.close();
+      fieldData = null;
+    }
+
+    // Rewritten queries refer to the old doc num map, so toss them.
+    synchronized (rewriteCache) {
+      rewriteCache.clear();
+    }
 
     if (indexReader != null) {
       indexReader.close();
@@ -409,4 +796,22 @@ public class XtfSearcher
 
     curVersion = -99;
   } // close()
+
+  /** Makes comparators based on the sort keys of this searcher */
+  class SortKeySource implements SortComparatorSource 
+  {
+    public ScoreDocComparator newComparator(IndexReader reader, 
+                                            String fieldName)
+      throws IOException 
+    {
+      return keysFor(fieldName).comparator(fieldName.endsWith(":flipEmpty"));
+    }
+
+    /** Get the sort keys for a field name (which may end in ":flipEmpty") */
+    SortKeys keysFor(String fieldName)
+      throws IOException 
+    {
+      return sortKeys(fieldName.replace(":flipEmpty", ""));
+    }
+  } // class SortKeySource
 } // class XtfSearcher
@@ -37,12 +37,13 @@ package org.cdlib.xtf.textEngine.facet;
  */
 import java.io.IOException;
 import java.text.DecimalFormat;
-import java.util.HashMap;
-import java.util.WeakHashMap;
+import java.util.ArrayList;
+import java.util.List;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermEnum;
 import org.apache.lucene.index.TermPositions;
+import org.cdlib.xtf.textEngine.FieldDataCache;
 import org.cdlib.xtf.util.IntMultiMap;
 import org.cdlib.xtf.util.TagArray;
 import org.cdlib.xtf.util.Trace;
@@ -53,10 +54,11 @@ import org.cdlib.xtf.util.Trace;
  *
  * @author Martin Haye
  */
-public class FRBRData 
+public class FRBRData implements FieldDataCache.Data
 {
-  /** Cached data. If the reader goes away, our cache will too. */
-  private static WeakHashMap cache = new WeakHashMap();
+  /** Prefix for our keys in the {@link FieldDataCache} */
+  private static final String CACHE_PREFIX = "frbr|";
+
   public static final int FIRST_TYPE = 1;
   public static final int TYPE_TITLE = 1;
   public static final int TYPE_AUTHOR = 2;
@@ -67,42 +69,63 @@ public class FRBRData
   public final IntMultiMap docTags;
   public final IntMultiMap tagDocs;
 
+  /** One more than the largest document ID in the index */
+  private final int maxDoc;
+
+  /** Work cluster for each document, or null if not built yet */
+  private volatile int[] workIds;
+
+  /** Whether a thread has been started to build the work clusters */
+  private boolean buildingWorkIds = false;
+
+  /** Held while building the work clusters */
+  private final Object workIdsLock = new Object();
+
   /**
-   * Retrieves tags for a given set of fields from a given reader. Maintains a cache
-   * so that if the same fields are requested again for this reader, we don't have
-   * to re-read the tags.
+   * Retrieves tags for a given set of fields from a given reader. If the
+   * reader belongs to an XtfSearcher, the tags are kept in its 
+   * {@link FieldDataCache} so that if the same fields are requested again 
+   * for this reader, we don't have to re-read the tags.
    *
    * @param reader  Where to read the tags from
    * @param fields  Which fields to read
    * @return        FRBR tags for the specified fields
    */
-  public static FRBRData getCachedTags(IndexReader reader, String[] fields)
+  public static FRBRData getCachedTags(final IndexReader reader, 
+                                       final String[] fields)
     throws IOException 
   {
-    // See if we have a cache for this reader.
-    HashMap readerCache = (HashMap)cache.get(reader);
-    if (readerCache == null) {
-      readerCache = new HashMap();
-      cache.put(reader, readerCache);
-    }
+    FieldDataCache cache = FieldDataCache.forReader(reader);
+    if (cache == null)
+      return new FRBRData(reader, fields);
 
-    StringBuffer buf = new StringBuffer();
+    StringBuffer buf = new StringBuffer(CACHE_PREFIX);
     for (int i = 0; i < fields.length; i++)
       buf.append(fields[i] + "|");
-    String allFields = buf.toString();
+    String key = buf.toString();
 
-    // Now see if we've already read data for this set of fields.
-    FRBRData tags = (FRBRData)readerCache.get(allFields);
-    if (tags == null) 
-    {
-      // Don't have cached data, so read and remember it.
-      tags = new FRBRData(reader, fields);
-      readerCache.put(allFields, tags);
-    }
-
-    return tags;
+    return cache.get(key, new FieldDataCache.Loader<FRBRData>() {
+      public FRBRData load() throws IOException {
+        return new FRBRData(reader, fields);
+      }
+    });
   } // getCachedTags()
 
+  /**
+   * Get the sets of fields that FRBR data has been read for from the given
+   * reader, in the form accepted by {@link #getCachedTags}.
+   */
+  public static List<String[]> cachedFieldSets(IndexReader reader)
+  {
+    ArrayList<String[]> sets = new ArrayList<String[]>();
+    FieldDataCache cache = FieldDataCache.forReader(reader);
+    if (cache != null) {
+      for (String key : cache.keys(CACHE_PREFIX))
+        sets.add(key.split("\\|"));
+    }
+    return sets;
+  } // cachedFieldSets()
+
   /**
    * Read tags for a given set of fields from the given reader. Do not construct
    * directly, but rather use {@link #getCachedTags(IndexReader, String[])}.
@@ -129,7 +152,7 @@ public class FRBRData
     assert tt == TYPE_ID;
 
     // Next, allocate the mapping from document to tag.
-    int maxDoc = reader.maxDoc();
+    maxDoc = reader.maxDoc();
     docTags = new IntMultiMap(maxDoc);
 
     // Read in each field.
@@ -172,6 +195,75 @@ public class FRBRData
     Trace.untab();
   } // constructor
 
+  // inherit JavaDoc
+  public long memorySize() 
+  {
+    int[] ids = workIds;
+    return tags.byteSize() + docTags.byteSize() + tagDocs.byteSize() +
+           (ids == null ? 0 : ids.length * 4L);
+  } // memorySize()
+
+  // inherit JavaDoc
+  public long mappedSize() {
+    return 0;
+  }
+
+  /**
+   * Get the work cluster for each document: documents with the same (non-
+   * negative) ID are judged to be the same work; -1 means the document has
+   * no FRBR data. Returns null if the clusters haven't been built yet.
+   */
+  public int[] workIds() {
+    return workIds;
+  }
+
+  /**
+   * Cluster all the documents into works, if not already done. This takes
+   * about as long as FRBR grouping on a query that matches everything.
+   */
+  public void buildWorkIds() 
+  {
+    synchronized (workIdsLock) 
+    {
+      if (workIds != null)
+        return;
+
+      long startTime = System.currentTimeMillis();
+      Trace.debug("Clustering FRBR works...");
+      workIds = FRBRGroupData.clusterWorks(this, maxDoc);
+      Trace.debug(
+        "Done clustering FRBR works. Time: " +
+        DecimalFormat.getInstance().format(
+          (System.currentTimeMillis() - startTime) / 1000.0f) + " sec");
+    }
+  } // buildWorkIds()
+
+  /**
+   * Start a background thread to cluster the documents into works, unless
+   * they're already built or being built.
+   */
+  public void buildWorkIdsInBackground() 
+  {
+    synchronized (this) {
+      if (workIds != null || buildingWorkIds)
+        return;
+      buildingWorkIds = true;
+    }
+
+    Thread thread = new Thread("FRBRWorkClusterer") {
+      public void run() {
+        try {
+          buildWorkIds();
+        }
+        catch (Throwable t) {
+          Trace.warning("Error clustering FRBR works: " + t.toString());
+        }
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+  } // buildWorkIdsInBackground()
+
   /**
    * Read all the term->document mappings from a given field, and add them to
    * the tag array, and docTags mapping.
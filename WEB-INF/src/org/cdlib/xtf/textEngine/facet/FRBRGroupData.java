@@ -37,6 +37,7 @@ package org.cdlib.xtf.textEngine.facet;
  */
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Set;
 import java.util.StringTokenizer;
 import org.apache.lucene.index.IndexReader;
@@ -159,19 +160,20 @@ public class FRBRGroupData extends DynamicGroupData
     docs.compact();
     docScores.compact();
 
-    // Figure out a group for each document.
-    docGroups = new IntList(maxDoc + 1);
-    docGroups.fill(-1);
-    for (int i = 0; i < docs.size(); i++) 
-    {
-      int doc = docs.get(i);
-
-      // Skip docs that already have a group assigned.
-      if (docGroups.get(doc) >= 0)
-        continue;
-
-      // Go looking...
-      findGroup(doc);
+    // Figure out a group for each document. If the works have been 
+    // clustered for the whole index, the groups are simply those works
+    // restricted to the hits: the works were formed by the same matcher,
+    // so they're valid groupings for any subset. (This can differ slightly
+    // from matching up the hits alone, since the greedy matcher can pair
+    // documents differently within a subset.) Until the clusters are
+    // ready, match the documents up now.
+    //
+    int[] workIds = data.workIds();
+    if (workIds != null)
+      assignWorkGroups(workIds);
+    else {
+      data.buildWorkIdsInBackground();
+      assignMatchedGroups();
     }
 
     Trace.debug(nGroups + " groups. Inverting map...");
@@ -201,6 +203,84 @@ public class FRBRGroupData extends DynamicGroupData
     Trace.untab();
   } // finish()
 
+  /**
+   * Assign a group to each document by pairwise matching against the other
+   * documents in the set.
+   */
+  private void assignMatchedGroups() 
+  {
+    docGroups = new IntList(maxDoc + 1);
+    docGroups.fill(-1);
+    for (int i = 0; i < docs.size(); i++) 
+    {
+      int doc = docs.get(i);
+
+      // Skip docs that already have a group assigned.
+      if (docGroups.get(doc) >= 0)
+        continue;
+
+      // Go looking...
+      findGroup(doc);
+    }
+  } // assignMatchedGroups()
+
+  /**
+   * Assign a group to each document based on pre-computed work clusters.
+   * Groups are numbered in order of each work's first document, just as
+   * they would be by matching.
+   *
+   * @param workIds   Work cluster for each document in the index, or -1
+   *                  for documents that are in no cluster.
+   */
+  private void assignWorkGroups(int[] workIds) 
+  {
+    docGroups = new IntList(maxDoc + 1);
+    docGroups.fill(-1);
+    int[] workGroups = new int[workIds.length];
+    Arrays.fill(workGroups, -1);
+    for (int i = 0; i < docs.size(); i++) 
+    {
+      int doc = docs.get(i);
+      int work = (doc < workIds.length) ? workIds[doc] : -1;
+      if (work < 0)
+        docGroups.set(doc, nGroups++);
+      else {
+        if (workGroups[work] < 0)
+          workGroups[work] = nGroups++;
+        docGroups.set(doc, workGroups[work]);
+      }
+    }
+  } // assignWorkGroups()
+
+  /**
+   * Cluster every document in the index that has FRBR data into works, by
+   * matching them all up just as the documents from a query would be.
+   *
+   * @param data    FRBR data for the index
+   * @param maxDoc  One more than the largest document ID in the index
+   * @return        Work ID for each document, or -1 if it has no FRBR data.
+   */
+  static int[] clusterWorks(FRBRData data, int maxDoc) 
+  {
+    FRBRGroupData all = new FRBRGroupData();
+    all.data = data;
+    for (int doc = 0; doc < maxDoc; doc++) {
+      if (data.docTags.firstPos(doc) >= 0)
+        all.collect(doc, 1.0f);
+    }
+    all.docs.compact();
+    all.assignMatchedGroups();
+
+    // Works are numbered from zero (there's no root group here).
+    int[] workIds = new int[maxDoc];
+    Arrays.fill(workIds, -1);
+    for (int i = 0; i < all.docs.size(); i++) {
+      int doc = all.docs.get(i);
+      workIds[doc] = all.docGroups.get(doc) - 1;
+    }
+    return workIds;
+  } // clusterWorks()
+
   /**
    * Figure out a group to put the document in. If it matches other documents,
    * the group will contain all of them; otherwise, it'll be a singleton.
@@ -0,0 +1,117 @@
+package org.cdlib.xtf.textEngine.facet;
+
+import java.io.IOException;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+
+/**
+ * Pre-computed group counts for one facet field, over the set of documents
+ * that contain all of a list of terms. Browse queries (all documents, or
+ * all documents with a single facet value) are common and always give the
+ * same counts for a given version of the index, so they needn't be
+ * recounted each time. The sorted order of the groups is remembered too,
+ * as it's worked out for each kind of sort. Totals are normally formed from
+ * the counts of a browse query's own hits (see 
+ * {@link GroupCounts#formTotals()}), so that forming them costs no extra
+ * search.
+ */
+public class FacetTotals 
+{
+  /** Number of documents in the set that was counted */
+  private int nDocs;
+
+  /** Count of documents in each group */
+  private int[] counts;
+
+  /** Sorted first child of each group, for each kind of sort */
+  private int[][] sortedChild = new int[4][];
+
+  /** Sorted next sibling of each group, for each kind of sort */
+  private int[][] sortedSibling = new int[4][];
+
+  /**
+   * Record counts already made for a set of documents.
+   *
+   * @param nDocs   Number of documents that were counted
+   * @param counts  Count for each group (not copied, so mustn't be modified
+   *                afterward)
+   */
+  FacetTotals(int nDocs, int[] counts) {
+    this.nDocs = nDocs;
+    this.counts = counts;
+  }
+
+  /**
+   * Count the documents, in each group of the data, that contain all of the
+   * given terms. This scans the terms directly, so it's best used when
+   * there's no query to piggyback on, e.g. when warming up a new index.
+   *
+   * @param data    Group data for the facet field
+   * @param reader  Reader to find the documents in
+   * @param terms   Terms that each document must have (at least one)
+   */
+  public FacetTotals(StaticGroupData data, IndexReader reader, Term[] terms)
+    throws IOException 
+  {
+    // Form a bitset of the documents that have all the terms.
+    long[] bits = null;
+    TermDocs termDocs = reader.termDocs();
+    try 
+    {
+      for (int i = 0; i < terms.length; i++) 
+      {
+        long[] termBits = new long[(reader.maxDoc() + 63) >>> 6];
+        termDocs.seek(terms[i]);
+        while (termDocs.next()) {
+          int doc = termDocs.doc();
+          termBits[doc >>> 6] |= (1L << doc);
+        }
+        if (bits != null) {
+          for (int w = 0; w < bits.length; w++)
+            termBits[w] &= bits[w];
+        }
+        bits = termBits;
+      }
+    }
+    finally {
+      termDocs.close();
+    }
+
+    for (int w = 0; w < bits.length; w++)
+      nDocs += Long.bitCount(bits[w]);
+
+    // And count them up.
+    counts = new int[data.nGroups()];
+    data.docSets().count(bits, counts);
+  } // constructor
+
+  /** Get the number of documents that were counted */
+  public final int nDocs() {
+    return nDocs;
+  }
+
+  /** Get the number of documents in the given group */
+  final int count(int group) {
+    return counts[group];
+  }
+
+  /**
+   * Get the sorted child and sibling links for the given kind of sort, or
+   * null if they haven't been recorded yet.
+   */
+  synchronized int[][] getSorted(int sortKind) {
+    if (sortedChild[sortKind] == null)
+      return null;
+    return new int[][] { sortedChild[sortKind], sortedSibling[sortKind] };
+  }
+
+  /**
+   * Record sorted child and sibling links for the given kind of sort. The
+   * arrays must not be modified afterward.
+   */
+  synchronized void putSorted(int sortKind, int[] child, int[] sibling) {
+    sortedChild[sortKind] = child;
+    sortedSibling[sortKind] = sibling;
+  }
+} // class FacetTotals
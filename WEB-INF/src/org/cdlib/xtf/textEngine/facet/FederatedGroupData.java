@@ -0,0 +1,190 @@
+package org.cdlib.xtf.textEngine.facet;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Vector;
+
+/**
+ * Group data formed by merging the facet results from several indexes, so
+ * that a facet spanning all of them can be selected and sorted as if the
+ * indexes were one. Groups with the same value (and the same ancestors) are
+ * combined, their document counts summed, and the maximum score retained.
+ * Since the counts are already known, the data is dynamic; it has no links
+ * from documents to groups.
+ */
+public class FederatedGroupData extends GroupData 
+{
+  /** The field the facet was formed from */
+  private String field;
+
+  /** All the groups, with the root at zero */
+  private Vector<Group> groups = new Vector<Group>();
+
+  /**
+   * Merge the given result groups from several indexes.
+   *
+   * @param field   Name of the facet field
+   * @param roots   Root group of the facet from each index (entries may
+   *                be null if an index had no such facet.)
+   */
+  public FederatedGroupData(String field, ResultGroup[] roots) 
+  {
+    this.field = field;
+    ArrayList<ResultGroup> rootList = new ArrayList<ResultGroup>();
+    for (ResultGroup root : roots) {
+      if (root != null)
+        rootList.add(root);
+    }
+    mergeGroups(addGroup("", -1), rootList);
+  } // constructor
+
+  /** Make a new group and return its ID */
+  private int addGroup(String name, int parent) 
+  {
+    Group group = new Group();
+    group.name = name;
+    group.parent = parent;
+    groups.add(group);
+    return groups.size() - 1;
+  } // addGroup()
+
+  /**
+   * Fill in a merged group from its counterparts in each index, and
+   * recursively merge all their sub-groups.
+   *
+   * @param groupId   ID of the merged group to fill in
+   * @param toMerge   Counterparts from each index containing the group
+   */
+  private void mergeGroups(int groupId, ArrayList<ResultGroup> toMerge) 
+  {
+    // Sum the counts and keep the max score. Also gather the sub-groups
+    // by value, so those having the same value are merged together.
+    //
+    Group group = groups.get(groupId);
+    TreeMap<String, ArrayList<ResultGroup>> kidMap = 
+      new TreeMap<String, ArrayList<ResultGroup>>();
+    for (ResultGroup rg : toMerge) 
+    {
+      group.nDocHits += rg.totalDocs;
+      group.score = Math.max(group.score, rg.maxDocScore);
+      if (rg.subGroups == null)
+        continue;
+      for (ResultGroup kid : rg.subGroups) {
+        ArrayList<ResultGroup> list = kidMap.get(kid.value);
+        if (list == null) {
+          list = new ArrayList<ResultGroup>(toMerge.size());
+          kidMap.put(kid.value, list);
+        }
+        list.add(kid);
+      }
+    }
+
+    // Now make the merged sub-groups, in name order.
+    int prev = -1;
+    for (Map.Entry<String, ArrayList<ResultGroup>> ent : kidMap.entrySet()) 
+    {
+      int kidId = addGroup(ent.getKey(), groupId);
+      if (prev < 0)
+        group.child = kidId;
+      else
+        groups.get(prev).sibling = kidId;
+      prev = kidId;
+      mergeGroups(kidId, ent.getValue());
+    }
+  } // mergeGroups()
+
+  /** There are no links from documents to groups */
+  public final int firstLink(int docId) {
+    return -1;
+  }
+
+  /** There are no links from documents to groups */
+  public final int nextLink(int linkId) {
+    return -1;
+  }
+
+  /** There are no links, so no link leads to a group */
+  public final int linkGroup(int linkId) {
+    return -1;
+  }
+
+  /** Get the name of the grouping field */
+  public final String field() {
+    return field;
+  }
+
+  /** Get the total number of groups */
+  public final int nGroups() {
+    return groups.size();
+  }
+
+  /** Get the name of a group given its number */
+  public final String name(int groupId) {
+    return groups.get(groupId).name;
+  }
+
+  /** Get the parent of the given group, or -1 if group is the root */
+  public final int parent(int groupId) {
+    return groups.get(groupId).parent;
+  }
+
+  /** Get the number of children a group has */
+  public final int nChildren(int groupId) {
+    int nChildren = 0;
+    for (int kid = child(groupId); kid >= 0; kid = sibling(kid))
+      nChildren++;
+    return nChildren;
+  }
+
+  /** Get the first child of the given group, or -1 if it has no children */
+  public final int child(int groupId) {
+    return groups.get(groupId).child;
+  }
+
+  /** Get the sibling of the given group, or -1 if no more */
+  public final int sibling(int groupId) {
+    return groups.get(groupId).sibling;
+  }
+
+  /** Compare two groups for sort order */
+  public final int compare(int group1, int group2) {
+    return name(group1).compareTo(name(group2));
+  }
+
+  /** Locate a group by name and return its index, or -1 if not found */
+  public final int findGroup(String name) 
+  {
+    for (int i = 0; i < groups.size(); i++) {
+      if (name.equals(groups.get(i).name))
+        return i;
+    }
+    return -1;
+  }
+
+  /** The counts and scores are known */
+  public boolean isDynamic() {
+    return true;
+  }
+
+  /** Get the maximum document score of a group */
+  public float score(int groupId) {
+    return groups.get(groupId).score;
+  }
+
+  /** Get the count of docs in a group */
+  public int nDocHits(int groupId) {
+    return groups.get(groupId).nDocHits;
+  }
+
+  /** Keeps track of a single merged group */
+  private static class Group 
+  {
+    String name;
+    int parent;
+    int child = -1;
+    int sibling = -1;
+    int nDocHits;
+    float score;
+  } // class Group
+} // class FederatedGroupData
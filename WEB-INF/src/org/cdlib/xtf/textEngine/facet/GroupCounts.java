@@ -30,6 +30,7 @@ package org.cdlib.xtf.textEngine.facet;
  * POSSIBILITY OF SUCH DAMAGE.
  */
 import java.util.Arrays;
+import org.apache.lucene.util.IntList;
 import org.apache.lucene.util.PriorityQueue;
 import org.cdlib.xtf.textEngine.DocHit;
 import org.cdlib.xtf.textEngine.DocHitImpl;
@@ -44,6 +45,7 @@ public class GroupCounts
 {
   private GroupData data;
   private FacetSpec spec;
+  private GroupSelector selector;
   private HitQueueMaker hitQueueMaker;
   private boolean prepMode = false;
   private int[] count;
@@ -56,6 +58,14 @@ public class GroupCounts
   private int[] sortedChild;
   private int[] sortedSibling;
   private int curMark = 1000;
+  private boolean deferring = false;
+  private IntList deferredDocs;
+  private long[] deferredBits;
+  private int nDeferred = 0;
+  private float deferredScore;
+  private FacetTotals totals;
+  private boolean usingTotals = false;
+  private boolean countedAllDeferred = false;
   private static final int SORT_BY_VALUE = 0;
   private static final int SORT_BY_REVERSE_VALUE = 1;
   private static final int SORT_BY_TOTAL_DOCS = 2;
@@ -70,6 +80,11 @@ public class GroupCounts
     this.spec = spec;
     this.hitQueueMaker = hitQueueMaker;
 
+    // Make our own cursor on the selector, so that other queries can use
+    // the same spec at the same time.
+    //
+    selector = spec.groupSelector.cursor(this);
+
     // Allocate our arrays of counts and such
     if (!data.isDynamic()) {
       count = new int[data.nGroups()];
@@ -90,8 +105,72 @@ public class GroupCounts
     // For static data, make a conservative selection.
     else
       conservativePrep();
+
+    // If no documents need to be gathered, hits with identical scores can 
+    // be counted later, all at once. That way when a query matches much of 
+    // the collection, we can count by intersecting bitsets rather than
+    // following the links for each hit.
+    //
+    if (data instanceof StaticGroupData && !gatheringDocs()) {
+      deferring = true;
+      deferredDocs = new IntList();
+    }
   } // constructor
 
+  /** Check whether any group has been marked to receive documents */
+  private boolean gatheringDocs() 
+  {
+    for (int group = 0; group < maxDocs.length; group++) {
+      if (maxDocs[group] > 0)
+        return true;
+    }
+    return false;
+  } // gatheringDocs()
+
+  /** 
+   * Construct a new object with all counts at zero, but otherwise the same
+   * as this one (same data, facet spec, and hit queue maker.)
+   */
+  public GroupCounts makeEmptyCopy() {
+    GroupCounts copy = new GroupCounts(data, spec, hitQueueMaker);
+    copy.totals = totals;
+    return copy;
+  }
+
+  /**
+   * Supply pre-computed totals for the documents the query should match.
+   * If the hits turn out to agree with them (all with the same score, and
+   * the same number of them), the totals are used instead of counting.
+   */
+  public void setTotals(FacetTotals totals) {
+    this.totals = totals;
+  }
+
+  /**
+   * Form totals from the counts, if all the hits were deferred and counted
+   * together at the end (as for a browse query whose hits all have the same
+   * score), so that later queries matching the same documents can use them
+   * via {@link #setTotals(FacetTotals)}. Must be called after 
+   * {@link #getResult()}.
+   *
+   * @return  New totals, or null if the counts can't be used as such (or
+   *          if they already came from totals.)
+   */
+  public FacetTotals formTotals() 
+  {
+    if (!countedAllDeferred || usingTotals || nDeferred == 0)
+      return null;
+    return new FacetTotals(nDeferred, (int[])count.clone());
+  } // formTotals()
+
+  /**
+   * Check whether hits are being deferred, and thus whether totals passed
+   * to {@link #setTotals(FacetTotals)} could be used at all.
+   */
+  public boolean isDeferring() {
+    return deferring;
+  }
+
   /** Gather data about which groups to gather DocHits for. */
   private void conservativePrep() 
   {
@@ -102,23 +181,14 @@ public class GroupCounts
     {
       prepMode = true;
 
-      // Tell the selector to talk to us.
-      GroupSelector sel = spec.groupSelector;
-      synchronized (sel) 
-      {
-        // Tell the selector to talk to us.
-        sel.setCounts(this);
+      // Tell the selector to be conservative in choosing which groups
+      // to select.
+      //
+      selector.reset(true);
 
-        //
-        // Tell the selector to be conservative in choosing which groups
-        // to select.
-        //
-        sel.reset(true);
-
-        // Now ask it to select everything (start it out with the root)
-        sel.process(0);
-        sel.flush();
-      }
+      // Now ask it to select everything (start it out with the root)
+      selector.process(0);
+      selector.flush();
     }
     finally {
       // Exit prep mode, no matter what.
@@ -222,6 +292,112 @@ public class GroupCounts
 
   /** Add a document hit to the counts */
   public void addDoc(DocHitMaker docHitMaker) 
+  {
+    int doc = docHitMaker.getDocNum();
+    float docScore = docHitMaker.getScore();
+
+    // As long as all the scores are the same, just record the hit.
+    if (deferring) 
+    {
+      if (nDeferred == 0)
+        deferredScore = docScore;
+      if (docScore == deferredScore) {
+        deferDoc(doc);
+        return;
+      }
+      countDeferred();
+    }
+
+    countDoc(doc, docScore, docHitMaker);
+  } // addDoc()
+
+  /**
+   * Record a hit to be counted later. Hits are kept in a list, until
+   * there are enough of them that a bitset would be smaller.
+   */
+  private void deferDoc(int doc) 
+  {
+    ++nDeferred;
+    if (deferredBits != null) {
+      if ((doc >>> 6) < deferredBits.length)
+        deferredBits[doc >>> 6] |= (1L << doc);
+      return;
+    }
+
+    deferredDocs.add(doc);
+
+    int docLimit = ((StaticGroupData)data).docLimit();
+    if ((long)deferredDocs.size() * 32 > docLimit) 
+    {
+      deferredBits = new long[(docLimit + 63) >>> 6];
+      for (int i = 0; i < deferredDocs.size(); i++) {
+        int d = deferredDocs.get(i);
+        if (d < docLimit)
+          deferredBits[d >>> 6] |= (1L << d);
+      }
+      deferredDocs = null;
+    }
+  } // deferDoc()
+
+  /**
+   * Count all the deferred hits, and stop deferring. When there are many
+   * of them, this is done by intersection with the documents in each
+   * group; otherwise, by following the links for each hit.
+   */
+  private void countDeferred() 
+  {
+    if (!deferring)
+      return;
+    deferring = false;
+
+    // If the hits match the pre-computed totals, we needn't count at all.
+    if (totals != null && nDeferred > 0 && nDeferred == totals.nDocs()) 
+    {
+      for (int group = 0; group < count.length; group++) {
+        if (totals.count(group) > 0) {
+          count[group] = totals.count(group);
+          score[group] = deferredScore;
+        }
+      }
+      usingTotals = true;
+    }
+    else if (deferredBits != null) 
+    {
+      GroupDocSets docSets = ((StaticGroupData)data).docSets();
+      if (docSets.preferIntersection(nDeferred)) 
+      {
+        int[] setCounts = new int[count.length];
+        docSets.count(deferredBits, setCounts);
+        for (int group = 0; group < count.length; group++) {
+          if (setCounts[group] > 0) {
+            count[group] += setCounts[group];
+            score[group] = Math.max(score[group], deferredScore);
+          }
+        }
+      }
+      else 
+      {
+        for (int w = 0; w < deferredBits.length; w++) {
+          for (long word = deferredBits[w]; word != 0; word &= word - 1)
+            countDoc((w << 6) + Long.numberOfTrailingZeros(word),
+                     deferredScore, null);
+        }
+      }
+    }
+    else {
+      for (int i = 0; i < deferredDocs.size(); i++)
+        countDoc(deferredDocs.get(i), deferredScore, null);
+    }
+
+    deferredDocs = null;
+    deferredBits = null;
+  } // countDeferred()
+
+  /**
+   * Count a single hit, following the links to each group it's in. If
+   * docHitMaker is null, no groups may be gathering documents.
+   */
+  private void countDoc(int doc, float docScore, DocHitMaker docHitMaker) 
   {
     int link;
     int group;
@@ -230,8 +406,6 @@ public class GroupCounts
     curMark++;
 
     // Process each group this document is in.
-    int doc = docHitMaker.getDocNum();
-    float docScore = docHitMaker.getScore();
     for (link = data.firstLink(doc); link >= 0; link = data.nextLink(link)) 
     {
       // Bump the count for the group and each ancestor (up to the root)
@@ -265,7 +439,62 @@ public class GroupCounts
         docHitMaker.insertInto(hitQueue[group]);
       } // for group
     } // for link
-  } // addDoc()
+  } // countDoc()
+
+  /**
+   * Add in the counts and hits from another set of counts made with the
+   * same group data and facet spec, for instance one gathered on a
+   * separate range of documents. Each document must have been added to
+   * only one of the two.
+   */
+  public void merge(GroupCounts other)
+  {
+    assert other.data == data && other.spec == spec;
+
+    // If both are still holding back hits with the same score, simply
+    // combine the hits.
+    //
+    if (deferring && other.deferring &&
+        (nDeferred == 0 || other.nDeferred == 0 || 
+         deferredScore == other.deferredScore))
+    {
+      if (nDeferred == 0)
+        deferredScore = other.deferredScore;
+      if (other.deferredBits != null) {
+        for (int w = 0; w < other.deferredBits.length; w++) {
+          for (long word = other.deferredBits[w]; word != 0; word &= word - 1)
+            deferDoc((w << 6) + Long.numberOfTrailingZeros(word));
+        }
+      }
+      else {
+        for (int i = 0; i < other.deferredDocs.size(); i++)
+          deferDoc(other.deferredDocs.get(i));
+      }
+      return;
+    }
+
+    countDeferred();
+    other.countDeferred();
+    for (int group = 0; group < data.nGroups(); group++)
+    {
+      // Sum the counts, and keep the max score.
+      if (!data.isDynamic()) {
+        count[group] += other.count[group];
+        score[group] = Math.max(score[group], other.score[group]);
+      }
+
+      // Move over any hits the other one gathered.
+      PriorityQueue otherQueue = other.hitQueue[group];
+      if (otherQueue == null || otherQueue.size() == 0)
+        continue;
+      if (hitQueue[group] == null) {
+        hitQueue[group] = hitQueueMaker.makeQueue(
+          startDoc[group] + maxDocs[group]);
+      }
+      while (otherQueue.size() > 0)
+        hitQueue[group].insert(otherQueue.pop());
+    } // for group
+  } // merge()
 
   /**
    * Retrieve the result facet with its groupings.
@@ -280,8 +509,12 @@ public class GroupCounts
     // For static facets, we don't know until this point what the counts and
     // such are, so we couldn't make the final selection.
     //
-    if (!data.isDynamic())
+    if (!data.isDynamic()) {
+      if (deferring)
+        countedAllDeferred = true;
+      countDeferred();
       sortAndSelect();
+    }
 
     // Recursively build the result set.
     resultFacet.rootGroup = buildResultGroup(0);
@@ -307,13 +540,9 @@ public class GroupCounts
     sortGroups();
 
     // Now select the proper groups.
-    GroupSelector sel = spec.groupSelector;
-    synchronized (sel) {
-      sel.setCounts(this);
-      sel.reset(false); // not conservative, since all is sorted now.
-      sel.process(0);
-      sel.flush();
-    }
+    selector.reset(false); // not conservative, since all is sorted now.
+    selector.process(0);
+    selector.flush();
   }
 
   public ResultGroup buildResultGroup(int parent) 
@@ -327,6 +556,7 @@ public class GroupCounts
 
     // Record the total number of doc hits for the parent group
     result.totalDocs = nDocHits(parent);
+    result.maxDocScore = score(parent);
 
     // Count the child groups
     int nSelected = 0;
@@ -387,6 +617,19 @@ public class GroupCounts
     if (!data.isDynamic() && sortKind == SORT_BY_VALUE)
       return;
 
+    // If the counts came from pre-computed totals, the sorted order may 
+    // already be known. It doesn't depend on the actual score, since all
+    // non-empty groups have the same one.
+    //
+    if (usingTotals) {
+      int[][] sorted = totals.getSorted(sortKind);
+      if (sorted != null) {
+        sortedChild = sorted[0];
+        sortedSibling = sorted[1];
+        return;
+      }
+    }
+
     // Allocate storage for sorted child/sibling links
     int nBefore = countDescendants(0);
     sortedChild = new int[data.nGroups()];
@@ -400,6 +643,10 @@ public class GroupCounts
     // Verify that we didn't lose anybody in the sort.
     int nAfter = countDescendants(0);
     assert nAfter == nBefore : "mis-count on sort";
+
+    // Save the order for later queries with the same totals.
+    if (usingTotals)
+      totals.putSorted(sortKind, sortedChild, sortedSibling);
   } // sortGroups()
   
   /** Utility function to count the group and all of its descendants */
@@ -0,0 +1,163 @@
+package org.cdlib.xtf.textEngine.facet;
+
+import java.util.Arrays;
+
+/**
+ * For each group in a {@link StaticGroupData}, the set of documents that are
+ * in the group or any of its descendants. Large sets are kept as bitsets,
+ * so they can be counted against a bitset of hits 64 documents at a time;
+ * small ones are kept as sorted lists of document IDs. The sets are built
+ * once for a given data object and may be shared by any number of threads.
+ */
+final class GroupDocSets 
+{
+  /** One past the largest document ID that is in any group */
+  private int docLimit;
+
+  /** Bitset of documents for each large group, else null */
+  private long[][] bits;
+
+  /** Sorted list of documents for each small group, else null */
+  private int[][] lists;
+
+  /** Number of steps needed to count one set of hits by intersection */
+  private long intersectCost;
+
+  /** Average number of steps needed to count one hit by following links */
+  private float walkCostPerHit;
+
+  /**
+   * Build the document sets for the given data.
+   *
+   * @param data   The data to build from
+   */
+  GroupDocSets(StaticGroupData data) 
+  {
+    int nGroups = data.nGroups();
+    docLimit = data.docLimit();
+
+    // First, find out how many documents each group contains, so we know
+    // which form to use for it.
+    //
+    int[] sizes = new int[nGroups];
+    int[] mark = new int[nGroups];
+    long nMemberships = forEachMembership(data, mark, sizes, null);
+
+    bits = new long[nGroups][];
+    lists = new int[nGroups][];
+    int nWords = (docLimit + 63) >>> 6;
+    for (int group = 0; group < nGroups; group++) 
+    {
+      // A bitset is 1 bit per document in the index; a list is 32 bits per
+      // document in the group. Pick whichever is smaller.
+      //
+      if ((long)sizes[group] * 32 > docLimit) {
+        bits[group] = new long[nWords];
+        intersectCost += nWords;
+      }
+      else {
+        lists[group] = new int[sizes[group]];
+        intersectCost += sizes[group];
+      }
+    }
+
+    // Now fill them in.
+    Arrays.fill(mark, 0);
+    Arrays.fill(sizes, 0);
+    forEachMembership(data, mark, sizes, this);
+
+    walkCostPerHit = 1 + 
+      ((data.nDocs() == 0) ? 0 : ((float)nMemberships / data.nDocs()));
+  } // constructor
+
+  /** Approximate number of bytes of memory the sets occupy */
+  long memorySize() 
+  {
+    long total = (bits.length + lists.length) * 8L;
+    for (int group = 0; group < bits.length; group++) {
+      if (bits[group] != null)
+        total += 16 + bits[group].length * 8L;
+      else
+        total += 16 + lists[group].length * 4L;
+    }
+    return total;
+  } // memorySize()
+
+  /**
+   * Run through every document, and each group it's in (including
+   * ancestors, counted only once per document.) Bumps the size of each
+   * group, and if 'sets' is specified, records the document in its set.
+   *
+   * @return  Total number of document/group memberships
+   */
+  private static long forEachMembership(StaticGroupData data, int[] mark,
+                                        int[] sizes, GroupDocSets sets) 
+  {
+    long nMemberships = 0;
+    for (int i = 0; i < data.nDocs(); i++) 
+    {
+      int doc = data.docId(i);
+      for (int link = data.firstLink(doc); link >= 0; 
+           link = data.nextLink(link)) 
+      {
+        for (int group = data.linkGroup(link); group >= 0;
+             group = data.parent(group)) 
+        {
+          // Use doc+1 as the mark, since the arrays start out zeroed.
+          if (mark[group] == doc + 1)
+            break;
+          mark[group] = doc + 1;
+          ++nMemberships;
+
+          if (sets != null) {
+            if (sets.bits[group] != null)
+              sets.bits[group][doc >>> 6] |= (1L << doc);
+            else
+              sets.lists[group][sizes[group]] = doc;
+          }
+          sizes[group]++;
+        }
+      }
+    }
+    return nMemberships;
+  } // forEachMembership()
+
+  /**
+   * Decide whether counting the given number of hits is faster by
+   * intersection than by following the links for each hit.
+   */
+  boolean preferIntersection(int nHits) {
+    return nHits * walkCostPerHit > intersectCost;
+  }
+
+  /**
+   * Count the hits in every group, by intersecting each group's documents
+   * with the hits.
+   *
+   * @param hitBits   Bitset of hits; document IDs at or beyond the limit
+   *                  are ignored.
+   * @param counts    Array to receive the count for each group
+   */
+  void count(long[] hitBits, int[] counts) 
+  {
+    for (int group = 0; group < counts.length; group++) 
+    {
+      int n = 0;
+      long[] groupBits = bits[group];
+      if (groupBits != null) {
+        int nWords = Math.min(groupBits.length, hitBits.length);
+        for (int w = 0; w < nWords; w++)
+          n += Long.bitCount(groupBits[w] & hitBits[w]);
+      }
+      else {
+        int[] list = lists[group];
+        for (int i = 0; i < list.length; i++) {
+          int doc = list[i];
+          if ((hitBits[doc >>> 6] & (1L << doc)) != 0)
+            ++n;
+        }
+      }
+      counts[group] = n;
+    }
+  } // count()
+} // class GroupDocSets
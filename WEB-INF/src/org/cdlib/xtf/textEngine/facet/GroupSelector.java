@@ -32,11 +32,16 @@ package org.cdlib.xtf.textEngine.facet;
 
 /**
  * Base class for the various selector classes that are chained together
- * to execute a selection expression in a faceted query.
+ * to execute a selection expression in a faceted query.<br>
+ *
+ * A chain built by the parser is never evaluated directly. Instead, each
+ * evaluation works on a {@link #cursor(GroupCounts) cursor}, a private copy
+ * of the chain holding the working state. This way a single parsed chain
+ * can be shared by any number of simultaneous queries.
  *
  * @author Martin Haye
  */
-public abstract class GroupSelector 
+public abstract class GroupSelector implements Cloneable
 {
   protected boolean conservative;
   protected GroupSelector next;
@@ -47,6 +52,33 @@ public abstract class GroupSelector
     this.next = next;
   }
 
+  /**
+   * Make a cursor for one evaluation of this chain: a copy of the whole
+   * chain with fresh working state, hooked up to the given counts.
+   */
+  public final GroupSelector cursor(GroupCounts counts) {
+    GroupSelector sel = copy();
+    sel.setCounts(counts);
+    return sel;
+  }
+
+  /**
+   * Copy this selector and the rest of the chain. Derived classes that keep
+   * working state in objects should override this to give the copy its own.
+   */
+  protected GroupSelector copy() 
+  {
+    try {
+      GroupSelector sel = (GroupSelector)clone();
+      if (next != null)
+        sel.next = next.copy();
+      return sel;
+    }
+    catch (CloneNotSupportedException e) {
+      throw new RuntimeException(e);
+    }
+  } // copy()
+
   /** Set the counts to be used */
   public void setCounts(GroupCounts counts) {
     this.counts = counts;
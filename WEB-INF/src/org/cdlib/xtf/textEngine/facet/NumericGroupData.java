@@ -0,0 +1,187 @@
+package org.cdlib.xtf.textEngine.facet;
+
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.lucene.index.IndexReader;
+import org.cdlib.xtf.textEngine.NumericFieldData;
+
+/**
+ * Groups documents into ranges of a numeric field (for instance, decades
+ * of a date field), reading the values straight from the field's numeric
+ * column as each document is counted. This means a histogram needs no
+ * extra terms in the index, and a document with several values is counted
+ * once in each range its values fall in.<br>
+ *
+ * A facet of this type is requested with a field name of the form
+ * <code>numeric:<i>field</i>(<i>size</i>)</code>, for example
+ * <code>numeric:year(10)</code> to group on decades. Groups are named by
+ * the range they cover, e.g. "1990-1999" (or just "1990" if the size is
+ * one), and are ordered by value.
+ */
+public class NumericGroupData extends GroupData 
+{
+  /** Prefix that marks a facet field as numeric */
+  public static final String FIELD_PREFIX = "numeric:";
+
+  /** Max number of ranges we'll allow, to keep memory use sane */
+  private static final int MAX_GROUPS = 100000;
+
+  /** Parses the facet field name */
+  private static final Pattern specPattern = 
+    Pattern.compile("numeric:([^()]+)\\((\\d+)\\)");
+
+  /** Full facet field name, including the prefix and range size */
+  private String spec;
+
+  /** The column of values to group */
+  private NumericFieldData data;
+
+  /** Size of each range */
+  private long rangeSize;
+
+  /** Range number (value / rangeSize) of the first group */
+  private long firstRange;
+
+  /** Total number of groups, including the root */
+  private int nGroups;
+
+  /**
+   * Set up groups for a given numeric facet field. This is cheap, since
+   * the values are read directly from the field's numeric column (which 
+   * is cached) as documents are counted.
+   *
+   * @param reader  Where to read the data from
+   * @param spec    Facet field of the form "numeric:field(size)"
+   */
+  public NumericGroupData(IndexReader reader, String spec)
+    throws IOException 
+  {
+    Matcher matcher = specPattern.matcher(spec);
+    if (!matcher.matches())
+      throw new RuntimeException(
+        "Unrecognized numeric facet field '" + spec + "'");
+    this.spec = spec;
+    rangeSize = Long.parseLong(matcher.group(2));
+    if (rangeSize <= 0)
+      throw new RuntimeException(
+        "Range size must be positive in numeric facet field '" + spec + "'");
+
+    data = NumericFieldData.getCachedData(reader, matcher.group(1));
+
+    // Make a group for every range between the smallest and largest values
+    // (even the empty ones, so that group numbers can be calculated 
+    // directly.)
+    //
+    if (data.size() == 0) {
+      nGroups = 1;
+      return;
+    }
+    firstRange = data.minValue() / rangeSize;
+    long nRanges = (data.maxValue() / rangeSize) - firstRange + 1;
+    if (nRanges >= MAX_GROUPS) {
+      throw new RuntimeException(
+        "Too many ranges (" + nRanges + ") in numeric facet field '" + 
+        spec + "'; use a larger range size");
+    }
+    nGroups = (int)nRanges + 1;
+  } // constructor
+
+  /** Calculate the group for a value */
+  private int groupOf(long value) {
+    return (int)(value / rangeSize - firstRange) + 1;
+  }
+
+  // inherit JavaDoc
+  public int firstLink(int docId) {
+    return data.firstValue(docId);
+  }
+
+  /**
+   * Get the next link for the document, skipping values that are in the
+   * same range as this one (values within a document are in ascending
+   * order, so they'll be adjacent.)
+   */
+  public int nextLink(int linkId) 
+  {
+    int group = linkGroup(linkId);
+    for (int pos = data.nextValue(linkId); pos >= 0; pos = data.nextValue(pos)) {
+      if (linkGroup(pos) != group)
+        return pos;
+    }
+    return -1;
+  } // nextLink()
+
+  // inherit JavaDoc
+  public int linkGroup(int linkId) {
+    return groupOf(data.valueAt(linkId));
+  }
+
+  // inherit JavaDoc
+  public String field() {
+    return spec;
+  }
+
+  // inherit JavaDoc
+  public int nGroups() {
+    return nGroups;
+  }
+
+  // inherit JavaDoc
+  public String name(int groupId) 
+  {
+    if (groupId == 0)
+      return "";
+    long first = (firstRange + groupId - 1) * rangeSize;
+    if (rangeSize == 1)
+      return Long.toString(first);
+    return first + "-" + (first + rangeSize - 1);
+  } // name()
+
+  // inherit JavaDoc
+  public int findGroup(String name) 
+  {
+    if (name.length() == 0)
+      return 0;
+    int dash = name.indexOf('-');
+    String firstStr = (dash < 0) ? name : name.substring(0, dash);
+    long first;
+    try {
+      first = Long.parseLong(firstStr);
+    }
+    catch (NumberFormatException e) {
+      return -1;
+    }
+    if (first < 0 || (first % rangeSize) != 0)
+      return -1;
+    long groupId = first / rangeSize - firstRange + 1;
+    if (groupId < 1 || groupId >= nGroups || !name.equals(name((int)groupId)))
+      return -1;
+    return (int)groupId;
+  } // findGroup()
+
+  // inherit JavaDoc
+  public int parent(int groupId) {
+    return (groupId == 0) ? -1 : 0;
+  }
+
+  // inherit JavaDoc
+  public int nChildren(int groupId) {
+    return (groupId == 0) ? (nGroups - 1) : 0;
+  }
+
+  // inherit JavaDoc
+  public int child(int groupId) {
+    return (groupId == 0 && nGroups > 1) ? 1 : -1;
+  }
+
+  // inherit JavaDoc
+  public int sibling(int groupId) {
+    return (groupId == 0 || groupId == nGroups - 1) ? -1 : (groupId + 1);
+  }
+
+  // inherit JavaDoc
+  public int compare(int group1, int group2) {
+    return (group1 < group2) ? -1 : ((group1 > group2) ? 1 : 0);
+  }
+} // class NumericGroupData
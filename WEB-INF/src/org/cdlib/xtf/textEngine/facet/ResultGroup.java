@@ -59,6 +59,9 @@ public class ResultGroup
    */
   public int totalDocs;
 
+  /** Highest score of any document in this group */
+  public float maxDocScore;
+
   /** Ordinal rank of the first document hit returned (0-based) */
   public int startDoc;
 
@@ -36,6 +36,12 @@ public class SiblingSelector extends GroupSelector
 {
   private HashSet parents = new HashSet();
 
+  protected GroupSelector copy() {
+    SiblingSelector sel = (SiblingSelector)super.copy();
+    sel.parents = new HashSet();
+    return sel;
+  }
+
   public void reset(boolean conservative) {
     super.reset(conservative);
     parents.clear();
@@ -36,6 +36,12 @@ public class SingletonSelector extends GroupSelector
 {
   private HashSet parents = new HashSet();
 
+  protected GroupSelector copy() {
+    SingletonSelector sel = (SingletonSelector)super.copy();
+    sel.parents = new HashSet();
+    return sel;
+  }
+
   public void reset(boolean conservative) {
     super.reset(conservative);
     parents.clear();
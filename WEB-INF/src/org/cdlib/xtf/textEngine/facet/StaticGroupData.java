@@ -29,33 +29,47 @@ package org.cdlib.xtf.textEngine.facet;
  * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
  * POSSIBILITY OF SUCH DAMAGE.
  */
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Vector;
-import java.util.WeakHashMap;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
-import org.apache.lucene.index.TermPositions;
+import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.util.IntList;
+import org.cdlib.xtf.textEngine.FieldDataCache;
 
 /**
  * This class contains the mapping, for a given field, from documents to
- * one or more term values in that document.
+ * one or more term values in that document.<br>
+ *
+ * The data can be built by reading the field's terms from the index, or
+ * (much faster) mapped from a file written at indexing time. In the latter
+ * case the arrays live outside the Java heap.
  *
  * @author Martin Haye
  */
 public class StaticGroupData extends GroupData 
+  implements FieldDataCache.Data
 {
   /** The particular field we have data from */
   private String field;
 
   /** Array of document IDs */
-  private int[] docs;
+  private IntBuffer docs;
 
   /**
    * Array of links: 0..docs.length is either positive to indicate a single group
@@ -63,62 +77,223 @@ public class StaticGroupData extends GroupData
    * of groups. docs.length..links.length holds the extra groups; each entry is
    * a group number, negative to mean end of the groups for a single doc.
    */
-  private int[] links;
+  private IntBuffer links;
 
   /** Array of group names */
   private String[] groups;
 
   /** The parent of each group, or -1 for none */
-  private int[] groupParents;
+  private IntBuffer groupParents;
 
   /** The first child of each group, or -1 for none. */
-  private int[] groupChildren;
+  private IntBuffer groupChildren;
 
   /** The next sibling of each group, or -1 for none. */
-  private int[] groupSiblings;
+  private IntBuffer groupSiblings;
+
+  /** Per-group document sets, built when first needed */
+  private GroupDocSets docSets;
+
+  /** Whether the arrays are mapped from a file */
+  private boolean isMapped;
+
+  /** Marks the start of a facet data file */
+  private static final int FILE_MAGIC = 0x58464431; // "XFD1"
+
+  /** Size of the header at the start of a facet data file */
+  private static final int FILE_HEADER_SIZE = 24;
 
-  /** Cached data. If the reader goes away, our cache will too. */
-  private static WeakHashMap cache = new WeakHashMap();
+  /** Prefix for our keys in the {@link FieldDataCache} */
+  private static final String CACHE_PREFIX = "facet|";
 
   /**
-   * Retrieves GroupData for a given field from a given reader. Maintains a cache
-   * so that if the same field is requested again for this reader, we don't have
-   * to re-read the group data.
+   * Retrieves GroupData for a given field from a given reader. If the reader
+   * belongs to an XtfSearcher, the data is kept in its 
+   * {@link FieldDataCache} so that if the same field is requested again for
+   * this reader, we don't have to re-read the group data.
    * 
-   * Synchronized so that if a bunch of threads come in wanting to load the same
-   * data, we won't waste time and memory loading it over and over.
+   * If a bunch of threads come in wanting to load the same data, only one
+   * will load it, so we won't waste time and memory loading it over and over.
    *
    * @param reader  Where to read the data from
    * @param field   Which field to read
    * @return        Group data for the specified field
    */
-  public static synchronized StaticGroupData getCachedData(IndexReader reader, String field)
+  public static StaticGroupData getCachedData(final IndexReader reader, 
+                                              final String field)
+    throws IOException 
+  {
+    FieldDataCache cache = FieldDataCache.forReader(reader);
+    if (cache == null)
+      return new StaticGroupData(reader, field);
+    return cache.get(CACHE_PREFIX + field, 
+      new FieldDataCache.Loader<StaticGroupData>() {
+        public StaticGroupData load() throws IOException {
+          return new StaticGroupData(reader, field);
+        }
+      });
+  } // getCachedData()
+
+  /**
+   * Records GroupData for a given field (typically mapped from a file when
+   * the index is opened), so that {@link #getCachedData} will find it rather
+   * than reading the terms.
+   *
+   * @param cache   Cache for the reader the data goes with
+   * @param field   Field the data is for
+   * @param data    The data to record
+   */
+  public static void putCachedData(FieldDataCache cache, String field,
+                                   StaticGroupData data) 
+  {
+    cache.put(CACHE_PREFIX + field, data);
+  } // putCachedData()
+
+  /**
+   * Get the file that facet data for the given field is stored in.
+   *
+   * @param indexPath   Directory containing the Lucene index
+   * @param field       Name of the facet field
+   */
+  public static File dataFile(String indexPath, String field) {
+    return new File(new File(indexPath, "facetData"), field + ".dat");
+  }
+
+  /**
+   * Write out the data to a file, so that it can later be mapped by
+   * {@link #mapFile(File, String, long)}. The arrays come first so they
+   * will be properly aligned for mapping; the group names follow.
+   *
+   * @param file          File to write to
+   * @param indexVersion  Version of the index the data was read from
+   */
+  public void writeFile(File file, long indexVersion)
+    throws IOException 
+  {
+    DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(file)));
+    try 
+    {
+      out.writeInt(FILE_MAGIC);
+      out.writeLong(indexVersion);
+      out.writeInt(groups.length);
+      out.writeInt(docs.capacity());
+      out.writeInt(links.capacity());
+      writeInts(out, groupParents);
+      writeInts(out, groupChildren);
+      writeInts(out, groupSiblings);
+      writeInts(out, docs);
+      writeInts(out, links);
+      for (int i = 0; i < groups.length; i++)
+        out.writeUTF(groups[i]);
+    }
+    finally {
+      out.close();
+    }
+  } // writeFile()
+
+  /** Write out all the ints in a buffer */
+  private static void writeInts(DataOutputStream out, IntBuffer buf)
+    throws IOException 
+  {
+    for (int i = 0; i < buf.capacity(); i++)
+      out.writeInt(buf.get(i));
+  }
+
+  /**
+   * Map facet data from a file written by {@link #writeFile(File, long)}.
+   *
+   * @param file          File to read
+   * @param field         Name of the facet field
+   * @param indexVersion  Version of the index the data must match
+   * @return              The data, or null if it was written for a 
+   *                      different version of the index.
+   */
+  public static StaticGroupData mapFile(File file, String field, 
+                                        long indexVersion)
     throws IOException 
   {
-    // See if we have a cache for this reader.
-    HashMap readerCache = (HashMap)cache.get(reader);
-    if (readerCache == null) {
-      readerCache = new HashMap();
-      cache.put(reader, readerCache);
+    StaticGroupData data = new StaticGroupData(field);
+    int nGroups;
+    long namesPos;
+
+    // Map the arrays.
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try 
+    {
+      FileChannel channel = raf.getChannel();
+      ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, 
+                                   channel.size());
+      if (buf.getInt(0) != FILE_MAGIC)
+        throw new IOException("Not a facet data file: " + file);
+      if (buf.getLong(4) != indexVersion)
+        return null;
+
+      nGroups = buf.getInt(12);
+      int nDocs = buf.getInt(16);
+      int nLinks = buf.getInt(20);
+
+      int pos = FILE_HEADER_SIZE;
+      data.groupParents = sliceInts(buf, pos, nGroups);
+      pos += nGroups * 4;
+      data.groupChildren = sliceInts(buf, pos, nGroups);
+      pos += nGroups * 4;
+      data.groupSiblings = sliceInts(buf, pos, nGroups);
+      pos += nGroups * 4;
+      data.docs = sliceInts(buf, pos, nDocs);
+      pos += nDocs * 4;
+      data.links = sliceInts(buf, pos, nLinks);
+      pos += nLinks * 4;
+      namesPos = pos;
+      data.isMapped = true;
+    }
+    finally {
+      raf.close();
     }
 
-    // Now see if we've already read data for this field.
-    StaticGroupData data = (StaticGroupData)readerCache.get(field);
-    if (data == null) 
+    // The group names are strings, so they have to be read into the heap.
+    DataInputStream in = new DataInputStream(
+      new BufferedInputStream(new FileInputStream(file)));
+    try 
     {
-      // Don't have cached data, so read and remember it.
-      data = new StaticGroupData(reader, field);
-      readerCache.put(field, data);
+      long toSkip = namesPos;
+      while (toSkip > 0)
+        toSkip -= in.skip(toSkip);
+      data.groups = new String[nGroups];
+      for (int i = 0; i < nGroups; i++)
+        data.groups[i] = in.readUTF();
+    }
+    finally {
+      in.close();
     }
 
     return data;
-  } // getCachedData()
+  } // mapFile()
+
+  /** Make an int view of part of a mapped file */
+  private static IntBuffer sliceInts(ByteBuffer buf, int pos, int count) 
+  {
+    ByteBuffer dup = buf.duplicate();
+    dup.position(pos);
+    dup.limit(pos + count * 4);
+    return dup.slice().asIntBuffer();
+  } // sliceInts()
+
+  /** Private constructor, used when mapping data from a file */
+  private StaticGroupData(String field) {
+    this.field = field;
+  }
 
   /**
    * Read in the term data for a given field, and build up the various arrays
    * of document to group info, and hierarchical relationships between the
    * groups.
    *
+   * The build streams over the terms twice, using only primitive arrays
+   * for the per-document data: the first pass assigns group numbers and
+   * counts the groups for each document, and the second fills in the
+   * final 'docs' and 'links' arrays in place.
+   *
    * @param reader    Where to read the term data from
    * @param field     Which field to read
    */
@@ -127,23 +302,23 @@ public class StaticGroupData extends GroupData
   {
     this.field = field;
 
-    TermPositions termPositions = reader.termPositions();
-    TermEnum termEnum = reader.terms(new Term(field, ""));
-
-    HashMap groupMap = new HashMap();
-    Vector groupVec = new Vector();
-    HashMap childMap = new HashMap();
-    HashMap docMap = new HashMap();
-    HashSet lcTerms = new HashSet();
-    int nLinks = 0;
+    HashMap<String, Integer> groupMap = new HashMap<String, Integer>();
+    ArrayList<String> groupNames = new ArrayList<String>();
+    IntList parents = new IntList();
+    IntList termKeys = new IntList();
+    int[] docCounts = new int[reader.maxDoc()];
 
     // Add a default root group.
-    groupVec.add("");
+    groupNames.add("");
     groupMap.put("", Integer.valueOf(0));
+    parents.add(-1);
 
-    // Make an entry for each document and each term. Ensure that
-    // there is only one term in this field per document.
+    // First pass: make a group for each term, and count the number of
+    // groups each document belongs to.
     //
+    TermDocs termDocs = reader.termDocs();
+    TermEnum termEnum = reader.terms(new Term(field, ""));
+    HashSet<String> foldedTerms = new HashSet<String>();
     try 
     {
       if (termEnum.term() == null)
@@ -157,55 +332,40 @@ public class StaticGroupData extends GroupData
 
         // If we've seen this term before, skip it. This can happen if
         // the real term was mixed case, and we encounter the lower-case
-        // version later.
+        // version later. Record the skip so the second pass can follow
+        // along.
         //
-        String lcTerm = term.text().toLowerCase();
-        if (lcTerms.contains(lcTerm))
+        if (isDuplicateTerm(reader, term, foldedTerms)) {
+          termKeys.add(-1);
           continue;
-        lcTerms.add(lcTerm);
+        }
 
         // Add a group key for this term. Also, if it's hierarchical,
-        // find the ancestor groups and add them to the child map.
+        // find the ancestor groups and record their relationships.
         //
         String termText = term.text();
         if (termText.length() == 0)
           termText = "<empty>";
-        Integer termKey = addTermKey(termText, groupVec, groupMap, childMap);
+        termKeys.add(addTermKey(termText, groupNames, groupMap, parents));
 
-        // Now process each document which contains this term.
-        termPositions.seek(termEnum);
-        while (termPositions.next()) 
-        {
-          // Get or create a vector for this document.
-          int docId = termPositions.doc();
-          Integer docKey = Integer.valueOf(docId);
-
-          Vector docGroups = (Vector)docMap.get(docKey);
-          if (docGroups == null) {
-            docGroups = new Vector(1);
-            docMap.put(docKey, docGroups);
-          }
-
-          // If we're going from one group to two, add extra link space
-          // for the initial link.
-          //
-          if (docGroups.size() == 1)
-            nLinks++;
-
-          docGroups.add(termKey);
-          nLinks++;
-        } // while( termPositions.next() )
+        // Now count each document which contains this term.
+        termDocs.seek(termEnum);
+        while (termDocs.next())
+          docCounts[termDocs.doc()]++;
       } while (termEnum.next());
     }
     finally {
-      termPositions.close();
+      termDocs.close();
       termEnum.close();
     }
+    foldedTerms = null;
+    groupMap = null;
 
     // Build the final array of groups. Basically we just take the last
     // component of each path.
     //
-    groups = (String[])groupVec.toArray(new String[groupVec.size()]);
+    groups = groupNames.toArray(new String[groupNames.size()]);
+    groupNames = null;
     for (int i = 0; i < groups.length; i++) {
       int lastSep = groups[i].lastIndexOf("::");
       if (lastSep >= 0)
@@ -213,62 +373,97 @@ public class StaticGroupData extends GroupData
     }
 
     // Build the group parent/child/sibling tables.
-    buildHierarchy(childMap);
+    buildHierarchy(parents.toArray());
 
-    // Now we're ready to build our final arrays that condense all the
-    // document -> group information.
-    //
-    docs = new int[docMap.size()];
-    links = new int[nLinks];
-    buildLinks(docMap);
+    // Lay out the 'docs' and 'links' arrays, and fill them in.
+    int[] cursors = layoutLinks(docCounts);
+    fillLinks(reader, docCounts, cursors, termKeys);
   } // constructor
 
   /**
-   * Add the given term to the group vector and map. If it's hierarchical,
-   * add relationships for the parent and all ancestors as well.
+   * Checks whether a term differs only in case from one that came before
+   * it. Most terms are already lower-case, and are only looked up (without
+   * making any new strings); only mixed-case terms are lowercased. Those
+   * usually sort before their lower-case form, but if the lower-case form
+   * came first we spot it in the index.
+   *
+   * @param reader       Index being read
+   * @param term         Term to check
+   * @param foldedTerms  Lower-case forms of the mixed-case terms seen so far
+   * @return             true if the term should be skipped
+   */
+  private static boolean isDuplicateTerm(IndexReader reader, Term term,
+                                         HashSet<String> foldedTerms)
+    throws IOException 
+  {
+    String text = term.text();
+    if (isLowerCase(text))
+      return foldedTerms.contains(text);
+
+    String lcText = text.toLowerCase();
+    if (!foldedTerms.add(lcText))
+      return true;
+    return lcText.compareTo(text) < 0 &&
+           reader.docFreq(new Term(term.field(), lcText)) > 0;
+  } // isDuplicateTerm()
+
+  /** 
+   * Checks whether lowercasing the string would leave it unchanged. 
+   * Surrogate pairs are assumed not to be lower-case, to be safe.
+   */
+  private static boolean isLowerCase(String text) 
+  {
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (Character.toLowerCase(c) != c ||
+          (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE))
+        return false;
+    }
+    return true;
+  } // isLowerCase()
+
+  /**
+   * Add the given term to the group list and map. If it's hierarchical,
+   * add the parent and all ancestors as well.
    *
    * @param termText    Term to add
-   * @param groupVec    Vector of groups in sort order
+   * @param groupNames  List of groups in sort order
    * @param groupMap    Mapping of terms to group numbers
-   * @param childMap    Mapping of parent key to child vector
+   * @param parents     Parent group number of each group
    * @return            New key for the term
    */
-  private Integer addTermKey(String termText, Vector groupVec,
-                             HashMap groupMap, HashMap childMap) 
+  private int addTermKey(String termText, ArrayList<String> groupNames,
+                         HashMap<String, Integer> groupMap, IntList parents) 
   {
     String curName = termText;
-    Integer childKey = null;
-    Integer termKey = null;
+    int childKey = -1;
+    int termKey = -1;
     while (true) 
     {
       // Find or make a key for the current name.
-      String parentName = curName;
-      Integer parentKey = (Integer)groupMap.get(parentName);
-      if (parentKey == null) {
-        parentKey = Integer.valueOf(groupVec.size());
-        groupVec.add(parentName);
-        groupMap.put(parentName, parentKey);
+      Integer found = groupMap.get(curName);
+      int parentKey;
+      if (found != null)
+        parentKey = found.intValue();
+      else {
+        parentKey = groupNames.size();
+        groupNames.add(curName);
+        groupMap.put(curName, Integer.valueOf(parentKey));
+        parents.add(-1);
       }
 
-      // If this is the first go-round, record the new key.
-      if (termKey == null)
+      // If this is the first go-round, record the new key. On subsequent
+      // go-rounds, record the relationship between the parent and its child.
+      //
+      if (termKey < 0)
         termKey = parentKey;
+      else
+        parents.set(childKey, parentKey);
 
-      // On the second and subsequent go-rounds, record the relationship 
-      // between the parent and its child
+      // Stop when we reach the root, or a group whose ancestors are
+      // already known.
       //
-      else 
-      {
-        HashSet parentChildSet = (HashSet)childMap.get(parentKey);
-        if (parentChildSet == null) {
-          parentChildSet = new HashSet();
-          childMap.put(parentKey, parentChildSet);
-        }
-        parentChildSet.add(childKey);
-      }
-
-      // Stop when we reach the root.
-      if (curName.length() == 0)
+      if (curName.length() == 0 || found != null)
         break;
 
       // Go up one level in the hierarchy.
@@ -285,87 +480,141 @@ public class StaticGroupData extends GroupData
   } // addTermKey()
 
   /**
-   * Based on a hierarchy data map, build the parent, child, and sibling
+   * Based on the parent of each group, build the parent, child, and sibling
    * relationship arrays that make all this info easy to find and fast to
-   * traverse.
+   * traverse. Children are linked in ascending group order.
    *
-   * @param childMap    Map of parent key to vector of child keys
+   * @param groupParents  Parent of each group, or -1 for none
    */
-  private void buildHierarchy(HashMap childMap) 
+  private void buildHierarchy(int[] groupParents) 
   {
-    groupParents = new int[groups.length];
-    Arrays.fill(groupParents, -1);
-
-    groupChildren = new int[groups.length];
+    int[] groupChildren = new int[groups.length];
     Arrays.fill(groupChildren, -1);
 
-    groupSiblings = new int[groups.length];
+    int[] groupSiblings = new int[groups.length];
     Arrays.fill(groupSiblings, -1);
 
-    for (Iterator iter = childMap.keySet().iterator(); iter.hasNext();) 
+    int[] lastChild = new int[groups.length];
+    Arrays.fill(lastChild, -1);
+
+    for (int child = 0; child < groups.length; child++) 
     {
-      Integer parentKey = (Integer)iter.next();
-      int parent = parentKey.intValue();
-      HashSet childSet = (HashSet)childMap.get(parentKey);
-      assert groupChildren[parent] < 0 : "multiple child lists for parent";
-
-      int prev = -1;
-      ArrayList children = new ArrayList(childSet);
-      Collections.sort(children);
-      for (int i = 0; i < children.size(); i++) {
-        int child = ((Integer)children.get(i)).intValue();
-        groupParents[child] = parent;
-        assert child != prev;
-        if (prev < 0)
-          groupChildren[parent] = child;
-        else
-          groupSiblings[prev] = child;
-        prev = child;
-      }
+      int parent = groupParents[child];
+      if (parent < 0)
+        continue;
+      if (lastChild[parent] < 0)
+        groupChildren[parent] = child;
+      else
+        groupSiblings[lastChild[parent]] = child;
+      lastChild[parent] = child;
     }
+
+    this.groupParents = IntBuffer.wrap(groupParents);
+    this.groupChildren = IntBuffer.wrap(groupChildren);
+    this.groupSiblings = IntBuffer.wrap(groupSiblings);
   } // buildHierarchy()
 
   /**
-   * Perform the final build step, forming the 'docs' and 'links' arrays.
+   * Allocate the 'docs' and 'links' arrays based on the number of groups
+   * for each document, and record where each document's groups will go.
+   * Afterward, docCounts maps each document ID to its index in 'docs'.
    *
-   * @param docMap  Map of document ID to vector of group IDs
+   * @param docCounts   Number of groups for each document ID
+   * @return            For each entry in 'docs', the next link to fill in,
+   *                    or -1 if the document has a single group.
    */
-  private void buildLinks(HashMap docMap) 
+  private int[] layoutLinks(int[] docCounts) 
   {
-    // Get an array of all the documents, sorted by document ID.
-    ArrayList keyList = new ArrayList(docMap.keySet());
-    assert keyList.size() == docs.length : "incorrect calculation";
-    Collections.sort(keyList);
+    // Figure out how much space we need.
+    int nDocs = 0;
+    int nLinks = 0;
+    for (int doc = 0; doc < docCounts.length; doc++) 
+    {
+      int count = docCounts[doc];
+      if (count == 0)
+        continue;
+      nDocs++;
+      nLinks += (count == 1) ? 1 : (count + 1);
+    }
 
-    int topLink = docs.length;
+    int[] docs = new int[nDocs];
+    int[] links = new int[nLinks];
+    int[] cursors = new int[nDocs];
 
-    for (int i = 0; i < docs.length; i++) 
+    // Two cases. If there's only one group, it'll be recorded directly.
+    // Otherwise, record a link to a list of groups.
+    //
+    int topLink = nDocs;
+    int docIdx = 0;
+    for (int doc = 0; doc < docCounts.length; doc++) 
     {
-      Integer docKey = (Integer)keyList.get(i);
-      Vector docGroups = (Vector)docMap.get(docKey);
-      int docNum = docKey.intValue();
-      docs[i] = docNum;
+      int count = docCounts[doc];
+      if (count == 0)
+        continue;
+      docs[docIdx] = doc;
+      if (count == 1)
+        cursors[docIdx] = -1;
+      else {
+        links[docIdx] = -topLink;
+        cursors[docIdx] = topLink;
+        topLink += count;
+      }
+      docCounts[doc] = docIdx++;
+    }
 
-      // Two cases. If there's only one group, record it directly. Otherwise,
-      // record a link to a list of groups.
-      //
-      if (docGroups.size() == 1)
-        links[i] = ((Integer)docGroups.get(0)).intValue();
-      else 
+    // We should have just the right number of links; no more, no less.
+    assert topLink == links.length : "incorrect calculation";
+
+    this.docs = IntBuffer.wrap(docs);
+    this.links = IntBuffer.wrap(links);
+    return cursors;
+  } // layoutLinks()
+
+  /**
+   * Second pass over the terms: fill in the group links for each document.
+   *
+   * @param reader      Where to read the term data from
+   * @param docIndexes  Maps document ID to its index in 'docs'
+   * @param cursors     Next link to fill for each doc (from layoutLinks)
+   * @param termKeys    Group for each term in the field, or -1 to skip it
+   */
+  private void fillLinks(IndexReader reader, int[] docIndexes, 
+                         int[] cursors, IntList termKeys)
+    throws IOException 
+  {
+    int[] links = this.links.array();
+
+    TermDocs termDocs = reader.termDocs();
+    TermEnum termEnum = reader.terms(new Term(field, ""));
+    try 
+    {
+      for (int i = 0; i < termKeys.size(); i++, termEnum.next()) 
       {
-        links[i] = -topLink;
-        for (Iterator iter = docGroups.iterator(); iter.hasNext();) {
-          int groupNum = ((Integer)iter.next()).intValue();
-          if (!iter.hasNext())
-            groupNum = -groupNum;
-          links[topLink++] = groupNum;
+        int termKey = termKeys.get(i);
+        if (termKey < 0)
+          continue;
+        termDocs.seek(termEnum);
+        while (termDocs.next()) 
+        {
+          int docIdx = docIndexes[termDocs.doc()];
+          if (cursors[docIdx] < 0)
+            links[docIdx] = termKey;
+          else
+            links[cursors[docIdx]++] = termKey;
         }
       }
     }
+    finally {
+      termDocs.close();
+      termEnum.close();
+    }
 
-    // We should have just the right number of links; no more, no less.
-    assert topLink == links.length : "incorrect calculation";
-  } // buildLinks()
+    // Mark the last group for each multi-group document.
+    for (int docIdx = 0; docIdx < cursors.length; docIdx++) {
+      if (cursors[docIdx] >= 0)
+        links[cursors[docIdx] - 1] = -links[cursors[docIdx] - 1];
+    }
+  } // fillLinks()
 
   /**
    * Return the ID of the first link for the given document, or -1 if there
@@ -376,21 +625,30 @@ public class StaticGroupData extends GroupData
    */
   public final int firstLink(int docId) 
   {
-    int found = Arrays.binarySearch(docs, docId);
-    if (found < 0 || found >= docs.length)
-      return -1;
-
-    if (links[found] >= 0)
-      return found;
-    else
-      return -links[found];
+    // Binary search for the document.
+    int lo = 0;
+    int hi = docs.capacity() - 1;
+    while (lo <= hi) 
+    {
+      int mid = (lo + hi) >>> 1;
+      int midDoc = docs.get(mid);
+      if (midDoc < docId)
+        lo = mid + 1;
+      else if (midDoc > docId)
+        hi = mid - 1;
+      else {
+        int link = links.get(mid);
+        return (link >= 0) ? mid : -link;
+      }
+    }
+    return -1;
   } // getDocLink()
 
   /** Return the ID of the link after the specified one, or -1 if no more */
   public final int nextLink(int linkId) {
-    if (linkId < docs.length)
+    if (linkId < docs.capacity())
       return -1;
-    else if (links[linkId] < 0)
+    else if (links.get(linkId) < 0)
       return -1;
     else
       return linkId + 1;
@@ -398,10 +656,62 @@ public class StaticGroupData extends GroupData
 
   /** Returns the group number of the specified link */
   public final int linkGroup(int linkId) {
-    int n = links[linkId];
+    int n = links.get(linkId);
     return (n < 0) ? -n : n;
   } // getLinkGroup()
 
+  /** Get the number of documents that are in at least one group */
+  final int nDocs() {
+    return docs.capacity();
+  }
+
+  /** Get the ID of the n'th document that's in at least one group */
+  final int docId(int n) {
+    return docs.get(n);
+  }
+
+  /** Get one past the largest document ID that's in any group */
+  final int docLimit() {
+    int nDocs = docs.capacity();
+    return (nDocs == 0) ? 0 : (docs.get(nDocs - 1) + 1);
+  }
+
+  /**
+   * Get the set of documents for each group, used to count large sets of
+   * hits by intersection. Built the first time it's needed.
+   */
+  synchronized GroupDocSets docSets() {
+    if (docSets == null)
+      docSets = new GroupDocSets(this);
+    return docSets;
+  }
+
+  // inherit JavaDoc
+  public long memorySize() 
+  {
+    long total = 0;
+    for (int i = 0; i < groups.length; i++)
+      total += 48 + groups[i].length() * 2;
+    if (!isMapped)
+      total += arraysSize();
+    synchronized (this) {
+      if (docSets != null)
+        total += docSets.memorySize();
+    }
+    return total;
+  } // memorySize()
+
+  // inherit JavaDoc
+  public long mappedSize() {
+    return isMapped ? arraysSize() : 0;
+  }
+
+  /** Number of bytes taken up by the doc, link, and hierarchy arrays */
+  private long arraysSize() {
+    return (docs.capacity() + links.capacity() + 
+            groupParents.capacity() * 3L) * 4;
+  }
+
   /** Get the name of the grouping field */
   public final String field() {
     return field;
@@ -419,26 +729,26 @@ public class StaticGroupData extends GroupData
 
   /** Get the parent of the given group, or -1 if group is the root */
   public final int parent(int groupId) {
-    return groupParents[groupId];
+    return groupParents.get(groupId);
   }
 
   /** Get the number of children a group has */
   public final int nChildren(int groupId) {
     int nChildren = 0;
-    for (int kid = groupChildren[groupId]; kid >= 0;
-         kid = groupSiblings[kid])
+    for (int kid = groupChildren.get(groupId); kid >= 0;
+         kid = groupSiblings.get(kid))
       nChildren++;
     return nChildren;
   }
 
   /** Get the first child of the given group, or -1 if it has no children */
   public final int child(int groupId) {
-    return groupChildren[groupId];
+    return groupChildren.get(groupId);
   }
 
   /** Get the sibling of the given group, or -1 if no more */
   public final int sibling(int groupId) {
-    return groupSiblings[groupId];
+    return groupSiblings.get(groupId);
   }
 
   /** Compare two groups for sort order */
@@ -39,6 +39,13 @@ public class TopChoiceSelector extends GroupSelector
   private Vector bestChildren = new Vector(10);
   private int[] firstChild;
 
+  protected GroupSelector copy() {
+    TopChoiceSelector sel = (TopChoiceSelector)super.copy();
+    sel.bestChildren = new Vector(10);
+    sel.firstChild = null;
+    return sel;
+  }
+
   public void reset(boolean conservative) {
     super.reset(conservative);
     bestLevel = 999999999;
@@ -39,6 +39,15 @@ public class UnionSelector extends GroupSelector
     this.selectors = selectors;
   }
 
+  /** Copy the chain, including each of the sub-selectors */
+  protected GroupSelector copy() {
+    UnionSelector sel = (UnionSelector)super.copy();
+    sel.selectors = new GroupSelector[selectors.length];
+    for (int i = 0; i < selectors.length; i++)
+      sel.selectors[i] = selectors[i].copy();
+    return sel;
+  }
+
   /** Set the counts to be used */
   public void setCounts(GroupCounts counts) {
     super.setCounts(counts);
@@ -30,11 +30,16 @@ package org.cdlib.xtf.textIndexer;
  * POSSIBILITY OF SUCH DAMAGE.
  */
 import java.io.File;
+import java.io.IOException;
+import java.util.Set;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.cdlib.xtf.textEngine.NativeFSDirectory;
+import org.cdlib.xtf.textEngine.NumericFieldData;
+import org.cdlib.xtf.textEngine.XtfSearcher;
+import org.cdlib.xtf.textEngine.facet.StaticGroupData;
 import org.cdlib.xtf.util.Path;
 import org.cdlib.xtf.util.Trace;
 
@@ -150,6 +155,12 @@ public class IdxTreeOptimizer
       // Close the index.
       indexWriter.close();
 
+      // Now that document numbers won't change, build the facet and
+      // numeric data.
+      //
+      writeFacetData(path, dir);
+      writeNumericData(path, dir);
+
       // Indicate that we're done.
       Trace.more(Trace.info, "Done.");
     } //  try( to open the specified index )
@@ -161,4 +172,103 @@ public class IdxTreeOptimizer
 
     Trace.untab();
   } // optimizeIndex()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Writes out data files for each facet field in an index, so that the
+   * text engine can simply map them in rather than reading through all
+   * the terms when the facet is first used. Each file records the index
+   * version, so a stale one (e.g. after further indexing without 
+   * optimization) will be ignored.
+   *
+   * @param path    Path of the index directory
+   * @param dir     Lucene directory for the index
+   */
+  private void writeFacetData(String path, Directory dir)
+    throws Exception 
+  {
+    // If no fields were marked as facets, there's nothing to do.
+    Set<String> facetFields = XtfSearcher.readFacetFields(path);
+    if (facetFields.isEmpty())
+      return;
+
+    File facetDir = new File(path, "facetData");
+    Path.createPath(facetDir.toString());
+
+    IndexReader reader = IndexReader.open(dir);
+    try 
+    {
+      for (String field : facetFields) 
+      {
+        // Write to a temporary file and then rename, so a searcher on the
+        // old version never sees a partial file.
+        //
+        File file = StaticGroupData.dataFile(path, field);
+        File tmpFile = new File(file.toString() + ".tmp");
+        try {
+          StaticGroupData data = new StaticGroupData(reader, field);
+          data.writeFile(tmpFile, reader.getVersion());
+          file.delete();
+          if (!tmpFile.renameTo(file))
+            throw new IOException("Error renaming " + tmpFile);
+        }
+        catch (Exception e) {
+          tmpFile.delete();
+          Trace.warning("Unable to write facet data for field '" + field + 
+                        "': " + e);
+        }
+      }
+    }
+    finally {
+      reader.close();
+    }
+  } // writeFacetData()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Writes out a value column for each numeric field in an index, so that
+   * the text engine can map it in for range queries. As with the facet
+   * data, each file records the index version so a stale one is ignored.
+   *
+   * @param path    Path of the index directory
+   * @param dir     Lucene directory for the index
+   */
+  private void writeNumericData(String path, Directory dir)
+    throws Exception 
+  {
+    // If no fields were marked as numeric, there's nothing to do.
+    Set<String> numericFields = XtfSearcher.readNumericFields(path);
+    if (numericFields.isEmpty())
+      return;
+
+    File numericDir = new File(path, "numericData");
+    Path.createPath(numericDir.toString());
+
+    IndexReader reader = IndexReader.open(dir);
+    try 
+    {
+      for (String field : numericFields) 
+      {
+        File file = NumericFieldData.dataFile(path, field);
+        File tmpFile = new File(file.toString() + ".tmp");
+        try {
+          NumericFieldData data = new NumericFieldData(reader, field);
+          data.writeFile(tmpFile, reader.getVersion());
+          file.delete();
+          if (!tmpFile.renameTo(file))
+            throw new IOException("Error renaming " + tmpFile);
+        }
+        catch (Exception e) {
+          tmpFile.delete();
+          Trace.warning("Unable to write numeric data for field '" + field + 
+                        "': " + e);
+        }
+      }
+    }
+    finally {
+      reader.close();
+    }
+  } // writeNumericData()
 }
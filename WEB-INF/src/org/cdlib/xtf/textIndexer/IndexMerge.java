@@ -446,8 +446,12 @@ public class IndexMerge
       File accentFile = new File(sourceDir + dirInfos[i].accentMapName);
       File pluralFile = new File(sourceDir + dirInfos[i].pluralMapName);
       File tokFldFile = new File(sourceDir + "tokenizedFields.txt");
+      File facetFldFile = new File(sourceDir + "facetFields.txt");
+      File numFldFile = new File(sourceDir + "numericFields.txt");
 
-      if (accentFile.canRead() || pluralFile.canRead() || tokFldFile.canRead())
+      if (accentFile.canRead() || pluralFile.canRead() || 
+          tokFldFile.canRead() || facetFldFile.canRead() ||
+          numFldFile.canRead())
         anyToDo = true;
     }
 
@@ -475,6 +479,20 @@ public class IndexMerge
         mergeTokFldFiles(tokFldSrc, tokFldDst);
       else if (tokFldSrc.canRead() && tokFldDst.canRead())
         mergeTokFldFiles(tokFldSrc, tokFldDst);
+
+      File facetFldSrc = new File(dirInfos[i].path, "facetFields.txt");
+      File facetFldDst = new File(dirInfos[0].path, "facetFields.txt");
+      if (facetFldSrc.canRead() && !facetFldDst.canRead())
+        Path.copyFile(facetFldSrc, facetFldDst);
+      else if (facetFldSrc.canRead())
+        mergeTokFldFiles(facetFldDst, facetFldSrc);
+
+      File numFldSrc = new File(dirInfos[i].path, "numericFields.txt");
+      File numFldDst = new File(dirInfos[0].path, "numericFields.txt");
+      if (numFldSrc.canRead() && !numFldDst.canRead())
+        Path.copyFile(numFldSrc, numFldDst);
+      else if (numFldSrc.canRead())
+        mergeTokFldFiles(numFldDst, numFldSrc);
     } // for
 
     Trace.more("Done.");
@@ -400,6 +400,12 @@ public class XMLTextProcessor extends DefaultHandler
   /** Keeps track of fields we already know are tokenized */
   private HashSet tokenizedFields;
 
+  /** Keeps track of fields we already know are facets */
+  private HashSet<String> facetFields;
+
+  /** Set of numeric fields, recorded so value columns can be built later */
+  private HashSet<String> numericFields;
+
   /** Maximum number of document deletions to do in a single batch */
   private static final int MAX_DELETION_BATCH = 50;
 
@@ -629,6 +635,10 @@ public class XMLTextProcessor extends DefaultHandler
 
       // Read in the the list of all the tokenized fields (if any).
       tokenizedFields = XtfSearcher.readTokenizedFields(indexPath, indexReader);
+
+      // Same for the facet and numeric fields.
+      facetFields = XtfSearcher.readFacetFields(indexPath);
+      numericFields = XtfSearcher.readNumericFields(indexPath);
     } // try
 
     catch (IOException e) 
@@ -1535,6 +1545,17 @@ public class XMLTextProcessor extends DefaultHandler
           isFacet = true;
       }
 
+      // See if there is a "numeric" attribute set for this node. If not,
+      // default to false.
+      //
+      boolean isNumeric = false;
+      tokIdx = atts.getIndex(xtfUri, "numeric");
+      if (tokIdx >= 0) {
+        String tokStr = atts.getValue(tokIdx);
+        if (tokStr != null && (tokStr.equals("yes") || tokStr.equals("true")))
+          isNumeric = true;
+      }
+
       // See if there is a "spell" attribute set for this node. If not,
       // default to true.
       //
@@ -1568,6 +1589,7 @@ public class XMLTextProcessor extends DefaultHandler
                                 index,
                                 tokenize,
                                 isFacet,
+                                isNumeric,
                                 spell,
                                 boost,
                                 false);
@@ -3597,6 +3619,22 @@ public class XMLTextProcessor extends DefaultHandler
         if (metaField.isFacet && metaField.index) {
           metaField.tokenize = true;
           analyzer.addFacetField(metaField.name);
+
+          // Record it so facet data can be built for it later.
+          if (!facetFields.contains(metaField.name)) {
+            addToFieldsFile("facetFields.txt", metaField.name);
+            facetFields.add(metaField.name);
+          }
+        }
+
+        // If it's numeric, record it so a value column can be built for it
+        // when the index is optimized.
+        //
+        if (metaField.isNumeric && metaField.index) {
+          if (!numericFields.contains(metaField.name)) {
+            addToFieldsFile("numericFields.txt", metaField.name);
+            numericFields.add(metaField.name);
+          }
         }
 
         // If it's marked as misspelled, inform the analyzer so it doesn't
@@ -3626,7 +3664,7 @@ public class XMLTextProcessor extends DefaultHandler
         if (metaField.tokenize && !metaField.isFacet) 
         {
           if (!tokenizedFields.contains(metaField.name)) {
-            addToTokenizedFieldsFile(metaField.name);
+            addToFieldsFile("tokenizedFields.txt", metaField.name);
             tokenizedFields.add(metaField.name);
           }
         }
@@ -3657,17 +3695,18 @@ public class XMLTextProcessor extends DefaultHandler
   ////////////////////////////////////////////////////////////////////////////
 
   /**
-   * Adds a field to the on-disk list of tokenized fields for an index.
-   * Exceptions are handled internally and thrown as RuntimeException.
+   * Adds a field to an on-disk list of fields for an index (e.g. the list
+   * of tokenized fields.) Exceptions are handled internally and thrown as 
+   * RuntimeException.
    */
-  private void addToTokenizedFieldsFile(String field)
+  private void addToFieldsFile(String fileName, String field)
   {
     try 
     {
       // If we wrote directly to the file, it could mess with indexes that have
       // hard-links to the existing file. Instead, write a new one and then rename.
       //
-      String path = Path.normalizePath(indexPath) + "tokenizedFields.txt";
+      String path = Path.normalizePath(indexPath) + fileName;
       File oldFile = new File(path);
       File tmpFile = new File(path + ".tmp");
       BufferedWriter writer = new BufferedWriter(new FileWriter(tmpFile));
@@ -3708,7 +3747,7 @@ public class XMLTextProcessor extends DefaultHandler
     {
       // Log the problem.
       Trace.tab();
-      Trace.error("*** Exception Adding to tokenizedFields.txt: " + t);
+      Trace.error("*** Exception Adding to " + fileName + ": " + t);
       Trace.untab();
 
       if (t instanceof RuntimeException)
@@ -3960,19 +3999,21 @@ public class XMLTextProcessor extends DefaultHandler
     public boolean index;
     public boolean tokenize;
     public boolean isFacet;
+    public boolean isNumeric;
     public boolean spell;
     public float wordBoost;
     public boolean isInherited;
 
     public MetaField(String name, boolean store, boolean index,
-                     boolean tokenize, boolean isFacet, boolean spell,
-                     float wordBoost, boolean isInherited) 
+                     boolean tokenize, boolean isFacet, boolean isNumeric,
+                     boolean spell, float wordBoost, boolean isInherited) 
     {
       this.name = name;
       this.store = store;
       this.index = index;
       this.tokenize = tokenize;
       this.isFacet = isFacet;
+      this.isNumeric = isNumeric;
       this.spell = spell;
       this.wordBoost = wordBoost;
     }
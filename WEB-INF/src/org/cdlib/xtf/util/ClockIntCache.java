@@ -0,0 +1,294 @@
+package org.cdlib.xtf.util;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A fast cache where the keys are integers. Like {@link IntHash} it is
+ * meant for dense keys, but it uses open addressing so that puts and gets
+ * allocate nothing. The number of ordinary entries is bounded; beyond that,
+ * entries are evicted using the "clock" approximation of LRU (each entry
+ * has a bit that is set when it's used and cleared when the clock hand
+ * passes over it.) Permanent entries are never evicted and don't count
+ * toward the bound.
+ *
+ * Not thread-safe.
+ */
+public class ClockIntCache 
+{
+  /** Slot flag: the slot holds an entry */
+  private static final byte USED = 1;
+
+  /** Slot flag: entry has been used since the clock hand last passed */
+  private static final byte REFERENCED = 2;
+
+  /** Slot flag: entry is never evicted */
+  private static final byte PERMANENT = 4;
+
+  /** Slot flag: entry was evicted (so probing must continue past it) */
+  private static final byte DELETED = 8;
+
+  /** Max # of evictable entries */
+  private final int maxSize;
+
+  /** Keys, values, and flags of each slot */
+  private int[] keys;
+  private Object[] vals;
+  private byte[] flags;
+
+  /** Number of slots minus one (the number of slots is a power of two) */
+  private int mask;
+
+  /** Number of live entries */
+  private int count;
+
+  /** Number of live entries that may be evicted */
+  private int nEvictable;
+
+  /** Number of slots that are used or deleted */
+  private int nFilled;
+
+  /** Current position of the clock hand */
+  private int hand;
+
+  /**
+   * Construct a new cache.
+   *
+   * @param maxSize   Max # of (non-permanent) entries to keep
+   */
+  public ClockIntCache(int maxSize) {
+    this.maxSize = Math.max(1, maxSize);
+    allocate(16);
+  } // constructor
+
+  /** Set up empty slot arrays of the given size (a power of two) */
+  private void allocate(int nSlots) {
+    keys = new int[nSlots];
+    vals = new Object[nSlots];
+    flags = new byte[nSlots];
+    mask = nSlots - 1;
+    nFilled = count;
+    hand = 0;
+  } // allocate()
+
+  /** Find the slot for a key, or -1 if not present */
+  private int find(int key) 
+  {
+    int slot = (key * 0x9E3779B9) & mask;
+    while (true) 
+    {
+      byte f = flags[slot];
+      if (f == 0)
+        return -1;
+      if ((f & USED) != 0 && keys[slot] == key)
+        return slot;
+      slot = (slot + 1) & mask;
+    }
+  } // find()
+
+  /** Check whether the given key is present in the cache */
+  public boolean contains(int key) {
+    return find(key) >= 0;
+  }
+
+  /** Retrieve the value for the given key, or null if not found. */
+  public Object get(int key) 
+  {
+    int slot = find(key);
+    if (slot < 0)
+      return null;
+    flags[slot] |= REFERENCED;
+    return vals[slot];
+  } // get()
+
+  /**
+   * Add a key/value pair to the cache. May result in older entries being
+   * evicted.
+   */
+  public void put(int key, Object val) {
+    put(key, val, false);
+  }
+
+  /**
+   * Add a key/value pair that will never be evicted. If the key was
+   * already present, it becomes permanent.
+   */
+  public void putPermanent(int key, Object val) {
+    put(key, val, true);
+  }
+
+  /** Common code for put() and putPermanent() */
+  private void put(int key, Object val, boolean permanent) 
+  {
+    // If already present, just replace the value (and maybe the flags).
+    int slot = find(key);
+    if (slot >= 0) 
+    {
+      boolean wasPermanent = (flags[slot] & PERMANENT) != 0;
+      if (permanent && !wasPermanent) {
+        flags[slot] |= PERMANENT;
+        --nEvictable;
+      }
+      vals[slot] = val;
+      flags[slot] |= REFERENCED;
+      return;
+    }
+
+    // Make room if necessary.
+    if (!permanent) {
+      while (nEvictable >= maxSize)
+        evictOne();
+    }
+    if ((nFilled + 1) * 2 > keys.length)
+      rehash();
+
+    // Find an empty (or deleted) slot and fill it.
+    slot = (key * 0x9E3779B9) & mask;
+    while ((flags[slot] & USED) != 0)
+      slot = (slot + 1) & mask;
+    if (flags[slot] == 0)
+      ++nFilled;
+    keys[slot] = key;
+    vals[slot] = val;
+    flags[slot] = (byte)(USED | REFERENCED | (permanent ? PERMANENT : 0));
+    ++count;
+    if (!permanent)
+      ++nEvictable;
+  } // put()
+
+  /** Advance the clock hand until an entry can be evicted, and evict it */
+  private void evictOne() 
+  {
+    while (true) 
+    {
+      int slot = hand;
+      hand = (hand + 1) & mask;
+
+      byte f = flags[slot];
+      if ((f & USED) == 0 || (f & PERMANENT) != 0)
+        continue;
+      if ((f & REFERENCED) != 0) {
+        flags[slot] = (byte)(f & ~REFERENCED);
+        continue;
+      }
+
+      flags[slot] = DELETED;
+      vals[slot] = null;
+      --count;
+      --nEvictable;
+      return;
+    }
+  } // evictOne()
+
+  /** Re-insert all entries into a table of suitable size */
+  private void rehash() 
+  {
+    int[] oldKeys = keys;
+    Object[] oldVals = vals;
+    byte[] oldFlags = flags;
+
+    int nSlots = 16;
+    while (nSlots < (count + 1) * 4)
+      nSlots <<= 1;
+    allocate(nSlots);
+
+    for (int i = 0; i < oldKeys.length; i++) 
+    {
+      if ((oldFlags[i] & USED) == 0)
+        continue;
+      int slot = (oldKeys[i] * 0x9E3779B9) & mask;
+      while (flags[slot] != 0)
+        slot = (slot + 1) & mask;
+      keys[slot] = oldKeys[i];
+      vals[slot] = oldVals[i];
+      flags[slot] = oldFlags[i];
+    }
+  } // rehash()
+
+  /** Tells how many entries are currently in the cache */
+  public int size() {
+    return count;
+  }
+
+  /**
+   * Iterate over the values in the cache. The cache must not be changed
+   * while the iteration is in progress.
+   */
+  public Iterator values() 
+  {
+    return new Iterator() 
+    {
+      private int slot = nextSlot(0);
+
+      private int nextSlot(int from) {
+        while (from < flags.length && (flags[from] & USED) == 0)
+          ++from;
+        return from;
+      }
+
+      public boolean hasNext() {
+        return slot < flags.length;
+      }
+
+      public Object next() {
+        if (slot >= flags.length)
+          throw new NoSuchElementException();
+        Object ret = vals[slot];
+        slot = nextSlot(slot + 1);
+        return ret;
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  } // values()
+
+  /**
+   * Basic regression test
+   */
+  public static final Tester tester = new Tester("ClockIntCache") 
+  {
+    protected void testImpl() 
+    {
+      ClockIntCache cache = new ClockIntCache(3);
+
+      cache.put(1, "a");
+      cache.put(2, "b");
+      cache.putPermanent(100, "p");
+      cache.put(3, "c");
+      assert cache.size() == 4;
+      assert cache.get(2).equals("b");
+
+      // Adding another pushes out one of the older ones.
+      cache.put(4, "d");
+      assert cache.size() == 4;
+      assert cache.contains(4);
+      assert cache.contains(100);
+
+      // Recently used entries survive.
+      cache.get(4);
+      cache.put(5, "e");
+      assert cache.contains(4);
+      assert cache.size() == 4;
+
+      // Permanent entries are never evicted.
+      for (int i = 1000; i < 2000; i++)
+        cache.put(i, "x");
+      assert cache.get(100).equals("p");
+      assert cache.size() == 4;
+
+      // Many permanent entries force the table to grow.
+      for (int i = 0; i < 1000; i++)
+        cache.putPermanent(-i - 1, Integer.valueOf(i));
+      for (int i = 0; i < 1000; i++)
+        assert cache.get(-i - 1).equals(Integer.valueOf(i));
+      assert cache.size() == 1004;
+
+      int n = 0;
+      for (Iterator iter = cache.values(); iter.hasNext(); iter.next())
+        ++n;
+      assert n == cache.size();
+    } // testImpl()
+  };
+} // class ClockIntCache
@@ -0,0 +1,106 @@
+package org.cdlib.xtf.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a single sub-file within a {@link StructuredFile} that was opened
+ * in mapped mode. All readers of a given sub-file share one read-only
+ * memory mapping of it, so reads need no system calls and no locks; each
+ * reader merely keeps its own position.
+ */
+class MappedSubFileReader extends SubStoreReader 
+{
+  /** The structured file that owns this sub-file */
+  private StructuredFile parent;
+
+  /** Our private view of the shared mapping (has its own position) */
+  private ByteBuffer buf;
+
+  /**
+   * Construct a reader on the given mapped segment.
+   *
+   * @param parent    Structured file to attach to
+   * @param segment   Shared mapping of the sub-file's bytes
+   */
+  MappedSubFileReader(StructuredFile parent, ByteBuffer segment) {
+    this.parent = parent;
+    this.buf = segment.duplicate();
+    buf.position(0);
+  }
+
+  public void close()
+    throws IOException 
+  {
+    synchronized (parent) {
+      parent.closeReader(this);
+    }
+  }
+
+  public long getFilePointer()
+    throws IOException 
+  {
+    return buf.position();
+  }
+
+  public long length()
+    throws IOException 
+  {
+    return buf.limit();
+  }
+
+  public void read(byte[] b, int off, int len)
+    throws IOException 
+  {
+    try {
+      buf.get(b, off, len);
+    }
+    catch (BufferUnderflowException e) {
+      throw new EOFException("End of sub-file reached");
+    }
+  }
+
+  public void read(long pos, byte[] b, int off, int len)
+    throws IOException 
+  {
+    if (pos < 0 || pos + len > buf.limit())
+      throw new EOFException("End of sub-file reached");
+
+    // A fresh view keeps this safe to call from several threads at once.
+    ByteBuffer view = buf.duplicate();
+    view.position((int)pos);
+    view.get(b, off, len);
+  }
+
+  public void seek(long pos)
+    throws IOException 
+  {
+    if (pos < 0 || pos > buf.limit())
+      throw new EOFException("Cannot seek past end of subfile");
+    buf.position((int)pos);
+  }
+
+  public byte readByte()
+    throws IOException 
+  {
+    try {
+      return buf.get();
+    }
+    catch (BufferUnderflowException e) {
+      throw new EOFException("End of sub-file reached");
+    }
+  }
+
+  public int readInt()
+    throws IOException 
+  {
+    try {
+      return buf.getInt();
+    }
+    catch (BufferUnderflowException e) {
+      throw new EOFException("End of sub-file reached");
+    }
+  }
+} // class MappedSubFileReader
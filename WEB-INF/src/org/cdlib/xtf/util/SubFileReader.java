@@ -131,6 +131,21 @@ class SubFileReader extends SubStoreReader
     }
   }
 
+  public void read(long pos, byte[] b, int off, int len)
+    throws IOException 
+  {
+    synchronized (parent) 
+    {
+      if (pos < 0 || pos + len > segLength)
+        throw new EOFException("End of sub-file reached");
+      file.seek(segOffset + pos);
+      file.readFully(b, off, len);
+
+      // The main file pointer no longer matches any sub-file's position.
+      parent.curSubFile = null;
+    }
+  }
+
   public void seek(long pos)
     throws IOException 
   {
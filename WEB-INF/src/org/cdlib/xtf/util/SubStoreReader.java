@@ -62,6 +62,24 @@ public abstract class SubStoreReader
   public abstract void read(byte[] b, int off, int len)
     throws IOException;
 
+  /**
+   * Reads bytes starting at the given position within the sub-store,
+   * without disturbing the current file pointer. Unlike a seek() followed
+   * by a read(), this is atomic and may safely be called by several
+   * threads at once.
+   *
+   * @param pos   Position (relative to the sub-store start) to read from
+   * @param b     Buffer to fill; exactly b.length bytes are read.
+   */
+  public void read(long pos, byte[] b)
+    throws IOException 
+  {
+    read(pos, b, 0, b.length);
+  }
+
+  public abstract void read(long pos, byte[] b, int off, int len)
+    throws IOException;
+
   public abstract void seek(long pos)
     throws IOException;
 
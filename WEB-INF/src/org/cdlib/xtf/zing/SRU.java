@@ -106,7 +106,12 @@ public class SRU extends CrossQuery
     // and the actual query request, in case the stylesheet wants to use these
     // things.
     //
-    formatHits("SRUResult", req, res, attribs, queryReq, result, startTime);
+    try {
+      formatHits("SRUResult", req, res, attribs, queryReq, result, startTime);
+    }
+    finally {
+      result.release();
+    }
   }
 
   /**